@@ -0,0 +1,158 @@
+package com.github.jillesvangurp.common;
+
+/**
+ * Coordinates as longs in units of 1e-7 degrees, the precision that osm stores them with. Parsing and formatting these
+ * is plain integer work, unlike Double.valueOf and Double.toString, and the decimal form of a coordinate with seven
+ * decimals is exact, so nothing is lost by going back and forth.
+ */
+public class FixedPoint {
+    public static final int DECIMALS = 7;
+    public static final double SCALE = 1e7;
+
+    private static final String COORDINATE_FIELD = "\"l\":[";
+
+    /**
+     * @param chars
+     *            text with a decimal number like -0.1130375, without exponent
+     * @param start
+     *            start of the number
+     * @param end
+     *            end of the number (exclusive)
+     * @return the number in units of 1e-7, more decimals are rounded half away from zero
+     * @throws NumberFormatException
+     *             if the text is not a decimal number
+     */
+    public static long parse(CharSequence chars, int start, int end) {
+        boolean negative = start < end && chars.charAt(start) == '-';
+        int i = negative ? start + 1 : start;
+        long value = 0;
+        int decimals = -1;
+        boolean digits = false;
+        for (; i < end; i++) {
+            char c = chars.charAt(i);
+            if (c == '.' && decimals < 0) {
+                decimals = 0;
+            } else if (c >= '0' && c <= '9') {
+                digits = true;
+                if (decimals < DECIMALS) {
+                    value = value * 10 + (c - '0');
+                    if (decimals >= 0) {
+                        decimals++;
+                    }
+                } else if (decimals == DECIMALS) {
+                    if (c >= '5') {
+                        value++;
+                    }
+                    // ignore the rest
+                    decimals++;
+                }
+            } else {
+                throw new NumberFormatException("not a decimal number: " + chars.subSequence(start, end));
+            }
+        }
+        if (!digits) {
+            throw new NumberFormatException("not a decimal number: " + chars.subSequence(start, end));
+        }
+        for (int d = Math.max(0, Math.min(decimals, DECIMALS)); d < DECIMALS; d++) {
+            value *= 10;
+        }
+        return negative ? -value : value;
+    }
+
+    public static double toDouble(long fixed) {
+        return fixed / SCALE;
+    }
+
+    /**
+     * @return the double in units of 1e-7
+     */
+    public static long fromDouble(double value) {
+        return Math.round(value * SCALE);
+    }
+
+    /**
+     * Appends the number with at least one and at most seven decimals, e.g. 51.5121071 or 13.0. This is the same as
+     * Double.toString of {@link #toDouble(long)} for numbers from 0.001 up to 10 million.
+     */
+    public static StringBuilder append(StringBuilder buf, long fixed) {
+        if (fixed < 0) {
+            buf.append('-');
+            fixed = -fixed;
+        }
+        long whole = fixed / 10000000;
+        int fraction = (int) (fixed % 10000000);
+        buf.append(whole).append('.');
+        if (fraction == 0) {
+            return buf.append('0');
+        }
+        int decimals = DECIMALS;
+        while (fraction % 10 == 0) {
+            fraction /= 10;
+            decimals--;
+        }
+        int digits = 1;
+        for (int limit = 10; limit <= fraction; limit *= 10) {
+            digits++;
+        }
+        // leading zeros of the fraction
+        for (int i = digits; i < decimals; i++) {
+            buf.append('0');
+        }
+        return buf.append(fraction);
+    }
+
+    public static String toString(long fixed) {
+        return append(new StringBuilder(16), fixed).toString();
+    }
+
+    /**
+     * Formats the coordinates of the nodes in json written by OsmJoin as decimal degrees, for readers that expect
+     * those. Coordinates that already have decimals are left alone.
+     *
+     * @param json
+     *            compact json with "l":[lon,lat] fields
+     * @return the json with decimal coordinates
+     */
+    public static String decodeJson(String json) {
+        int idx = json.indexOf(COORDINATE_FIELD);
+        if (idx < 0) {
+            return json;
+        }
+        StringBuilder buf = new StringBuilder(json.length() + 64);
+        int start = 0;
+        while (idx >= 0) {
+            int lonStart = idx + COORDINATE_FIELD.length();
+            int comma = json.indexOf(',', lonStart);
+            int close = comma < 0 ? -1 : json.indexOf(']', comma);
+            if (close < 0) {
+                break;
+            }
+            if (isInteger(json, lonStart, comma) && isInteger(json, comma + 1, close)) {
+                buf.append(json, start, lonStart);
+                append(buf, Long.parseLong(json.substring(lonStart, comma)));
+                buf.append(',');
+                append(buf, Long.parseLong(json.substring(comma + 1, close)));
+                start = close;
+            }
+            idx = json.indexOf(COORDINATE_FIELD, close);
+        }
+        buf.append(json, start, json.length());
+        return buf.toString();
+    }
+
+    private static boolean isInteger(String json, int start, int end) {
+        if (start < end && json.charAt(start) == '-') {
+            start++;
+        }
+        if (start >= end) {
+            return false;
+        }
+        for (int i = start; i < end; i++) {
+            char c = json.charAt(i);
+            if (c < '0' || c > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,322 @@
+package com.github.jillesvangurp.common;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Sidecar index with the offsets of the gzip members of a multi member gzip file, as written by
+ * {@link ParallelGzipOutputStream}. The index is a text file next to the gzip file with a line per member with the
+ * offset of the member in the file, its uncompressed size, and its number of lines.
+ *
+ * For gzip files written by other tools, {@link #build(String)} creates the index with a single scan of the file.
+ */
+public class GzipIndex {
+    public static final String SUFFIX = ".members";
+
+    private final List<Member> members;
+
+    GzipIndex(List<Member> members) {
+        this.members = Collections.unmodifiableList(members);
+    }
+
+    /**
+     * @param gzipFile
+     *            gzip file
+     * @return the index file for the gzip file
+     */
+    public static File indexFile(String gzipFile) {
+        return new File(gzipFile + SUFFIX);
+    }
+
+    /**
+     * @param gzipFile
+     *            gzip file
+     * @return the index of the gzip file or null if there is no index or it is older than the gzip file
+     */
+    public static GzipIndex read(String gzipFile) throws IOException {
+        File index = indexFile(gzipFile);
+        if (!index.exists() || index.lastModified() < new File(gzipFile).lastModified()) {
+            return null;
+        }
+        List<Member> members = new ArrayList<>();
+        try (BufferedReader reader = ResourceUtil.fileReader(index)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t");
+                if (fields.length != 3) {
+                    throw new IllegalStateException("corrupt gzip index " + index + ": " + line);
+                }
+                members.add(new Member(Long.valueOf(fields[0]), Long.valueOf(fields[1]), Long.valueOf(fields[2])));
+            }
+        }
+        return new GzipIndex(members);
+    }
+
+    /**
+     * Creates the index by inflating the whole file once. This is what a reader has to do anyway, so it is only worth
+     * it if the index is written and the file is read more than once.
+     *
+     * @param gzipFile
+     *            gzip file
+     * @return the index
+     */
+    public static GzipIndex build(String gzipFile) throws IOException {
+        return build(gzipFile, Long.MAX_VALUE);
+    }
+
+    /**
+     * Like {@link #build(String)} but gives up as soon as a member turns out to be bigger than maxMemberSize, e.g. for
+     * a file with a single member that is going to be read sequentially anyway.
+     *
+     * @param gzipFile
+     *            gzip file
+     * @param maxMemberSize
+     *            max uncompressed size of a member
+     * @return the index, or null if a member is too big
+     */
+    public static GzipIndex build(String gzipFile, long maxMemberSize) throws IOException {
+        List<Member> members = new ArrayList<>();
+        Inflater inflater = new Inflater(true);
+        byte[] out = new byte[64 * 1024];
+        try (Scanner scanner = new Scanner(new FileInputStream(gzipFile))) {
+            while (scanner.fill()) {
+                long offset = scanner.position();
+                if (!scanner.skipHeader()) {
+                    if (members.isEmpty()) {
+                        throw new IllegalStateException(gzipFile + " is not a gzip file");
+                    }
+                    // trailing garbage, which gzip ignores as well
+                    break;
+                }
+                inflater.reset();
+                inflater.setInput(scanner.buf, scanner.pos, scanner.length - scanner.pos);
+                long size = 0;
+                long lines = 0;
+                while (!inflater.finished()) {
+                    int n;
+                    try {
+                        n = inflater.inflate(out);
+                    } catch (DataFormatException e) {
+                        throw new IllegalStateException("corrupt gzip member at " + offset + " in " + gzipFile, e);
+                    }
+                    for (int i = 0; i < n; i++) {
+                        if (out[i] == '\n') {
+                            lines++;
+                        }
+                    }
+                    size += n;
+                    if (size > maxMemberSize) {
+                        return null;
+                    }
+                    if (n == 0 && inflater.needsInput()) {
+                        scanner.pos = scanner.length;
+                        if (!scanner.fill()) {
+                            throw new IllegalStateException("truncated gzip member at " + offset + " in " + gzipFile);
+                        }
+                        inflater.setInput(scanner.buf, scanner.pos, scanner.length - scanner.pos);
+                    }
+                }
+                scanner.pos = scanner.length - inflater.getRemaining();
+                // crc and size
+                scanner.skip(8);
+                members.add(new Member(offset, size, lines));
+            }
+        } finally {
+            inflater.end();
+        }
+        return new GzipIndex(members);
+    }
+
+    /**
+     * @param parts
+     *            number of partitions
+     * @return the first member of each partition, with partitions of about the same uncompressed size; may be fewer
+     *         than parts if there are not enough members
+     */
+    public int[] split(int parts) {
+        long total = 0;
+        for (Member member : members) {
+            total += member.size;
+        }
+        List<Integer> starts = new ArrayList<>();
+        starts.add(0);
+        long size = 0;
+        for (int i = 0; i < members.size(); i++) {
+            if (size >= total * starts.size() / parts && starts.size() < parts && i > starts.get(starts.size() - 1)) {
+                starts.add(i);
+            }
+            size += members.get(i).size;
+        }
+        int[] result = new int[starts.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = starts.get(i);
+        }
+        return result;
+    }
+
+    void write(String gzipFile) throws IOException {
+        try (BufferedWriter writer = ResourceUtil.fileWriter(indexFile(gzipFile))) {
+            for (Member member : members) {
+                writer.write(member.offset + "\t" + member.size + "\t" + member.lines + "\n");
+            }
+        }
+    }
+
+    /**
+     * Concatenates gzip files. The result is a valid gzip file with the members of all files, so this is just a copy of
+     * the bytes. The index of the result is written as well, using the indexes of the files or building them if needed.
+     *
+     * @param gzipFiles
+     *            files to concatenate, in order
+     * @param output
+     *            the concatenated file
+     */
+    public static void concat(List<String> gzipFiles, String output) throws IOException {
+        List<Member> members = new ArrayList<>();
+        try (FileChannel out = new FileOutputStream(output).getChannel()) {
+            for (String file : gzipFiles) {
+                long start = out.position();
+                for (Member member : ParallelGzipReader.index(file).members()) {
+                    members.add(new Member(start + member.offset, member.size, member.lines));
+                }
+                try (FileChannel in = new FileInputStream(file).getChannel()) {
+                    long size = in.size();
+                    long copied = 0;
+                    while (copied < size) {
+                        copied += in.transferTo(copied, size - copied, out);
+                    }
+                }
+            }
+        }
+        new GzipIndex(members).write(output);
+    }
+
+    public List<Member> members() {
+        return members;
+    }
+
+    /**
+     * @return total number of lines in the gzip file
+     */
+    public long lines() {
+        long lines = 0;
+        for (Member member : members) {
+            lines += member.lines;
+        }
+        return lines;
+    }
+
+    public static class Member {
+        /** offset of the member in the gzip file */
+        public final long offset;
+        /** uncompressed size in bytes */
+        public final long size;
+        /** number of newlines in the member */
+        public final long lines;
+
+        public Member(long offset, long size, long lines) {
+            this.offset = offset;
+            this.size = size;
+            this.lines = lines;
+        }
+    }
+
+    /**
+     * Buffered access to the raw bytes for parsing the member headers.
+     */
+    private static class Scanner implements AutoCloseable {
+        private final InputStream in;
+        final byte[] buf = new byte[64 * 1024];
+        int pos = 0;
+        int length = 0;
+        // file position of buf[0]
+        private long start = 0;
+
+        Scanner(InputStream in) {
+            this.in = in;
+        }
+
+        long position() {
+            return start + pos;
+        }
+
+        /**
+         * @return false if there are no more bytes
+         */
+        boolean fill() throws IOException {
+            if (pos < length) {
+                return true;
+            }
+            start += length;
+            pos = 0;
+            length = 0;
+            int n;
+            while ((n = in.read(buf)) == 0) {
+                // keep reading
+            }
+            if (n < 0) {
+                return false;
+            }
+            length = n;
+            return true;
+        }
+
+        int read() throws IOException {
+            if (!fill()) {
+                throw new IllegalStateException("unexpected end of gzip file");
+            }
+            return buf[pos++] & 0xff;
+        }
+
+        void skip(int bytes) throws IOException {
+            for (int i = 0; i < bytes; i++) {
+                read();
+            }
+        }
+
+        /**
+         * @return false if the bytes at the position are not a gzip header
+         */
+        boolean skipHeader() throws IOException {
+            if (read() != 0x1f || read() != 0x8b || read() != 8) {
+                return false;
+            }
+            int flags = read();
+            // mtime, extra flags, os
+            skip(6);
+            if ((flags & 4) != 0) {
+                skip(read() | read() << 8);
+            }
+            if ((flags & 8) != 0) {
+                while (read() != 0) {
+                    // file name
+                }
+            }
+            if ((flags & 16) != 0) {
+                while (read() != 0) {
+                    // comment
+                }
+            }
+            if ((flags & 2) != 0) {
+                skip(2);
+            }
+            return true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
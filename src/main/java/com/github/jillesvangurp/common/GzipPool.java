@@ -0,0 +1,14 @@
+package com.github.jillesvangurp.common;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Daemon thread pool shared by the parallel gzip streams, so opening many of them does not create more threads than
+ * there are cores. Compressing is cpu bound, so these are platform threads also when {@link Threads#setVirtual} is on.
+ */
+class GzipPool {
+    static final int THREADS = Runtime.getRuntime().availableProcessors();
+
+    static final ExecutorService POOL = Executors.newFixedThreadPool(THREADS, Threads.platformThreadFactory("gzip-"));
+}
@@ -0,0 +1,117 @@
+package com.github.jillesvangurp.common;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Thread safe bitmap for non negative long ids such as osm node, way, and relation ids.
+ *
+ * Memory is allocated lazily in pages of 2^18 ids (32KB per page) so that only id ranges that are actually used take
+ * up space. Note that for the full planet node id range (10+ billion ids) a dense bitmap still needs a bit over a GB of
+ * heap.
+ */
+public class IdBitmap {
+    private static final int PAGE_SHIFT = 18;
+    private static final int WORDS_PER_PAGE = 1 << (PAGE_SHIFT - 6);
+    private static final int DIRECTORY_SHIFT = 12;
+    private static final int DIRECTORY_SIZE = 1 << DIRECTORY_SHIFT;
+    private static final int DIRECTORY_MASK = DIRECTORY_SIZE - 1;
+    public static final long MAX_ID = (1l << (PAGE_SHIFT + 2 * DIRECTORY_SHIFT)) - 1;
+
+    // two level directory of pages so we don't need to know the max id up front
+    private final AtomicReferenceArray<AtomicReferenceArray<AtomicLongArray>> directory = new AtomicReferenceArray<>(DIRECTORY_SIZE);
+
+    /**
+     * @param id
+     *            id
+     * @return true if the bit was not set before
+     */
+    public boolean set(long id) {
+        AtomicLongArray page = page(id, true);
+        int word = (int) ((id >>> 6) & (WORDS_PER_PAGE - 1));
+        long mask = 1l << (id & 63);
+        while (true) {
+            long old = page.get(word);
+            if ((old & mask) != 0) {
+                return false;
+            }
+            if (page.compareAndSet(word, old, old | mask)) {
+                return true;
+            }
+        }
+    }
+
+    public boolean get(long id) {
+        AtomicLongArray page = page(id, false);
+        if (page == null) {
+            return false;
+        }
+        int word = (int) ((id >>> 6) & (WORDS_PER_PAGE - 1));
+        return (page.get(word) & (1l << (id & 63))) != 0;
+    }
+
+    /**
+     * @return number of ids in the bitmap. Note. this iterates over all pages so don't call this in a loop.
+     */
+    public long cardinality() {
+        long count = 0;
+        for (int i = 0; i < DIRECTORY_SIZE; i++) {
+            AtomicReferenceArray<AtomicLongArray> pages = directory.get(i);
+            if (pages != null) {
+                for (int j = 0; j < DIRECTORY_SIZE; j++) {
+                    AtomicLongArray page = pages.get(j);
+                    if (page != null) {
+                        for (int w = 0; w < WORDS_PER_PAGE; w++) {
+                            count += Long.bitCount(page.get(w));
+                        }
+                    }
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return approximate number of bytes allocated for pages
+     */
+    public long allocatedBytes() {
+        long pageCount = 0;
+        for (int i = 0; i < DIRECTORY_SIZE; i++) {
+            AtomicReferenceArray<AtomicLongArray> pages = directory.get(i);
+            if (pages != null) {
+                for (int j = 0; j < DIRECTORY_SIZE; j++) {
+                    if (pages.get(j) != null) {
+                        pageCount++;
+                    }
+                }
+            }
+        }
+        return pageCount * WORDS_PER_PAGE * 8;
+    }
+
+    private AtomicLongArray page(long id, boolean create) {
+        if (id < 0 || id > MAX_ID) {
+            throw new IllegalArgumentException("id out of range " + id);
+        }
+        long pageNr = id >>> PAGE_SHIFT;
+        int dirIdx = (int) (pageNr >>> DIRECTORY_SHIFT);
+        int pageIdx = (int) (pageNr & DIRECTORY_MASK);
+        AtomicReferenceArray<AtomicLongArray> pages = directory.get(dirIdx);
+        if (pages == null) {
+            if (!create) {
+                return null;
+            }
+            directory.compareAndSet(dirIdx, null, new AtomicReferenceArray<AtomicLongArray>(DIRECTORY_SIZE));
+            pages = directory.get(dirIdx);
+        }
+        AtomicLongArray page = pages.get(pageIdx);
+        if (page == null) {
+            if (!create) {
+                return null;
+            }
+            pages.compareAndSet(pageIdx, null, new AtomicLongArray(WORDS_PER_PAGE));
+            page = pages.get(pageIdx);
+        }
+        return page;
+    }
+}
@@ -0,0 +1,192 @@
+package com.github.jillesvangurp.common;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Map.Entry;
+
+import com.github.jsonj.JsonElement;
+import com.github.jsonj.JsonPrimitive;
+
+/**
+ * Serializes jsonj elements into a reusable buffer instead of building a string per element like toString does. The
+ * output is the same compact json as toString.
+ *
+ * Not thread safe; use one per writing thread, or {@link #serialize(JsonElement)} which uses a thread local instance.
+ */
+public class JsonStreamWriter {
+    // don't hang on to the buffers for the occasional huge relation
+    private static final int MAX_RETAINED_CHARS = 1024 * 1024;
+
+    private static final ThreadLocal<JsonStreamWriter> LOCAL = new ThreadLocal<JsonStreamWriter>() {
+        @Override
+        protected JsonStreamWriter initialValue() {
+            return new JsonStreamWriter();
+        }
+    };
+
+    private StringBuilder buf = new StringBuilder(4096);
+    private char[] chars = new char[4096];
+
+    /**
+     * @param element
+     *            json
+     * @return the json as a string; uses the buffers of a thread local writer so only the string itself is allocated
+     */
+    public static String serialize(JsonElement element) {
+        JsonStreamWriter writer = LOCAL.get();
+        String result = writer.append(element).toString();
+        writer.reset();
+        return result;
+    }
+
+    /**
+     * Writes the element followed by a newline.
+     *
+     * @param out
+     *            writer
+     * @param element
+     *            json
+     * @throws IOException
+     *             if the writer throws it
+     */
+    public void writeLine(Writer out, JsonElement element) throws IOException {
+        append(element).append('\n');
+        int length = buf.length();
+        if (chars.length < length) {
+            chars = new char[Math.max(length, chars.length * 2)];
+        }
+        buf.getChars(0, length, chars, 0);
+        out.write(chars, 0, length);
+        reset();
+    }
+
+    private StringBuilder append(JsonElement element) {
+        buf.setLength(0);
+        appendElement(element);
+        return buf;
+    }
+
+    private void reset() {
+        if (buf.capacity() > MAX_RETAINED_CHARS) {
+            buf = new StringBuilder(4096);
+        } else {
+            buf.setLength(0);
+        }
+        if (chars.length > MAX_RETAINED_CHARS) {
+            chars = new char[4096];
+        }
+    }
+
+    private void appendElement(JsonElement element) {
+        if (element == null) {
+            buf.append("null");
+        } else if (element.isObject()) {
+            buf.append('{');
+            boolean first = true;
+            for (Entry<String, JsonElement> field : element.asObject().entrySet()) {
+                if (!first) {
+                    buf.append(',');
+                }
+                first = false;
+                appendString(field.getKey());
+                buf.append(':');
+                appendElement(field.getValue());
+            }
+            buf.append('}');
+        } else if (element.isArray()) {
+            buf.append('[');
+            boolean first = true;
+            for (JsonElement e : element.asArray()) {
+                if (!first) {
+                    buf.append(',');
+                }
+                first = false;
+                appendElement(e);
+            }
+            buf.append(']');
+        } else {
+            appendPrimitive(element.asPrimitive());
+        }
+    }
+
+    private void appendPrimitive(JsonPrimitive primitive) {
+        Object value = primitive.value();
+        switch (primitive.type()) {
+        case string:
+            appendString((String) value);
+            break;
+        case number:
+            if (value instanceof Long || value instanceof Integer) {
+                // no intermediate string
+                buf.append(((Number) value).longValue());
+            } else if (value instanceof Double) {
+                appendDouble(((Double) value).doubleValue());
+            } else {
+                buf.append(value.toString());
+            }
+            break;
+        case bool:
+            buf.append(((Boolean) value).booleanValue());
+            break;
+        default:
+            buf.append("null");
+            break;
+        }
+    }
+
+    private void appendDouble(double value) {
+        double abs = Math.abs(value);
+        // coordinates, which have at most seven decimals, can be formatted as integers; outside this range Double.toString uses an exponent
+        if (abs >= 0.001 && abs < 1e7) {
+            long fixed = FixedPoint.fromDouble(value);
+            if (FixedPoint.toDouble(fixed) == value) {
+                FixedPoint.append(buf, fixed);
+                return;
+            }
+        }
+        buf.append(value);
+    }
+
+    private void appendString(String s) {
+        buf.append('"');
+        int start = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\' || c < 0x20) {
+                // copy everything up to here in one go
+                buf.append(s, start, i);
+                start = i + 1;
+                switch (c) {
+                case '"':
+                    buf.append("\\\"");
+                    break;
+                case '\\':
+                    buf.append("\\\\");
+                    break;
+                case '\n':
+                    buf.append("\\n");
+                    break;
+                case '\r':
+                    buf.append("\\r");
+                    break;
+                case '\t':
+                    buf.append("\\t");
+                    break;
+                case '\b':
+                    buf.append("\\b");
+                    break;
+                case '\f':
+                    buf.append("\\f");
+                    break;
+                default:
+                    buf.append("\\u00");
+                    buf.append(Character.forDigit(c >> 4, 16));
+                    buf.append(Character.forDigit(c & 0xf, 16));
+                    break;
+                }
+            }
+        }
+        buf.append(s, start, s.length());
+        buf.append('"');
+    }
+}
@@ -0,0 +1,195 @@
+package com.github.jillesvangurp.common;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Gzip output stream that compresses blocks of the stream on a shared thread pool, like pigz does.
+ *
+ * Each block is written as a complete gzip member. Concatenated gzip members are a valid gzip file, so gzip, zcat and
+ * {@link java.util.zip.GZIPInputStream} read the output as usual. Blocks are only cut after a newline, so every member
+ * has complete lines, which is what allows {@link GzipIndex} based readers to decompress members independently. A
+ * line that is longer than the block size simply makes its block bigger.
+ *
+ * The number of blocks that are being compressed per stream is bounded, so memory use is a few blocks per stream. Not
+ * thread safe, like any output stream.
+ */
+public class ParallelGzipOutputStream extends OutputStream {
+    public static final int DEFAULT_BLOCK_SIZE = 1024 * 1024;
+
+    private final OutputStream out;
+    private final String indexFile;
+    private final int blockSize;
+    private final int maxInFlight;
+    private final ArrayDeque<Future<byte[]>> inFlight = new ArrayDeque<>();
+    private final List<GzipIndex.Member> members = new ArrayList<>();
+    // sizes and line counts of the blocks in flight, in the same order
+    private final ArrayDeque<long[]> pending = new ArrayDeque<>();
+    private byte[] buf;
+    private int count = 0;
+    // set when the current block has no newline within the block size, and how far we looked beyond it
+    private boolean longLine = false;
+    private int scanned = 0;
+    private long offset = 0;
+    private boolean closed = false;
+
+    /**
+     * @param out
+     *            stream for the compressed bytes, closed when this stream is closed
+     * @param indexFile
+     *            gzip file name for which to write a {@link GzipIndex} on close, or null for no index
+     * @param blockSize
+     *            uncompressed bytes per member
+     */
+    public ParallelGzipOutputStream(OutputStream out, String indexFile, int blockSize) {
+        if (blockSize <= 0) {
+            throw new IllegalArgumentException("block size should be positive but was " + blockSize);
+        }
+        this.out = out;
+        this.indexFile = indexFile;
+        this.blockSize = blockSize;
+        maxInFlight = GzipPool.THREADS * 2;
+        buf = new byte[blockSize + blockSize / 8];
+    }
+
+    public ParallelGzipOutputStream(OutputStream out) {
+        this(out, null, DEFAULT_BLOCK_SIZE);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (closed) {
+            throw new IOException("stream is closed");
+        }
+        if (count + len > buf.length) {
+            byte[] newBuf = new byte[Math.max(buf.length * 2, count + len)];
+            System.arraycopy(buf, 0, newBuf, 0, count);
+            buf = newBuf;
+        }
+        System.arraycopy(b, off, buf, count, len);
+        count += len;
+        while (count >= blockSize) {
+            int cut = cut();
+            if (cut < 0) {
+                // no newline yet, wait for more
+                break;
+            }
+            byte[] block = buf;
+            // the remainder after the cut goes to a new buffer
+            buf = new byte[Math.max(blockSize + blockSize / 8, count - cut)];
+            System.arraycopy(block, cut, buf, 0, count - cut);
+            count -= cut;
+            submit(block, cut);
+        }
+    }
+
+    /**
+     * @return the position after the last newline within the block size, or after the first newline beyond it for long
+     *         lines, or -1 if there is no newline
+     */
+    private int cut() {
+        if (!longLine) {
+            for (int i = blockSize - 1; i >= 0; i--) {
+                if (buf[i] == '\n') {
+                    return i + 1;
+                }
+            }
+            longLine = true;
+            scanned = blockSize;
+        }
+        for (int i = scanned; i < count; i++) {
+            if (buf[i] == '\n') {
+                longLine = false;
+                return i + 1;
+            }
+        }
+        scanned = count;
+        return -1;
+    }
+
+    private void submit(final byte[] block, final int length) throws IOException {
+        long lines = 0;
+        for (int i = 0; i < length; i++) {
+            if (block[i] == '\n') {
+                lines++;
+            }
+        }
+        pending.add(new long[] { length, lines });
+        inFlight.add(GzipPool.POOL.submit(new Callable<byte[]>() {
+            @Override
+            public byte[] call() throws IOException {
+                ByteArrayOutputStream bos = new ByteArrayOutputStream(Math.max(32, length / 4));
+                try (GZIPOutputStream gzip = new GZIPOutputStream(bos, 64 * 1024)) {
+                    gzip.write(block, 0, length);
+                }
+                return bos.toByteArray();
+            }
+        }));
+        while (inFlight.size() > maxInFlight) {
+            writeNext();
+        }
+    }
+
+    private void writeNext() throws IOException {
+        byte[] member;
+        try {
+            member = inFlight.poll().get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while compressing", e);
+        } catch (ExecutionException e) {
+            throw new IOException("compression failed", e.getCause());
+        }
+        long[] sizeAndLines = pending.poll();
+        members.add(new GzipIndex.Member(offset, sizeAndLines[0], sizeAndLines[1]));
+        out.write(member);
+        offset += member.length;
+    }
+
+    /**
+     * Writes the members that are done compressing. This does not cut a block, since that would make small members.
+     */
+    @Override
+    public void flush() throws IOException {
+        while (!inFlight.isEmpty() && inFlight.peek().isDone()) {
+            writeNext();
+        }
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        try {
+            // an empty gzip file is not valid, so always write at least one member
+            if (count > 0 || members.isEmpty() && inFlight.isEmpty()) {
+                submit(buf, count);
+            }
+            while (!inFlight.isEmpty()) {
+                writeNext();
+            }
+        } finally {
+            closed = true;
+            buf = null;
+            out.close();
+        }
+        if (indexFile != null) {
+            new GzipIndex(members).write(indexFile);
+        }
+    }
+}
@@ -0,0 +1,212 @@
+package com.github.jillesvangurp.common;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Reader for multi member gzip files that inflates the members on a shared thread pool, using a {@link GzipIndex}.
+ *
+ * The members are inflated and decoded ahead of the consumer and handed out in file order, so the consumer only has to
+ * split the lines. This requires that members contain complete lines, which is the case for files written by
+ * {@link ParallelGzipOutputStream}. A reader can also be opened for a range of members, so that several readers can
+ * process a file in parallel.
+ */
+public class ParallelGzipReader extends Reader {
+    /**
+     * Members bigger than this are not read into memory as a whole, files with such members are read sequentially
+     * instead.
+     */
+    static final long MAX_MEMBER_SIZE = 64 * 1024 * 1024;
+
+    private final FileChannel channel;
+    private final long fileSize;
+    private final List<GzipIndex.Member> members;
+    private final int lastMember;
+    private final int readAhead;
+    private final ArrayDeque<Future<CharBuffer>> inFlight = new ArrayDeque<>();
+    private int nextMember;
+    private CharBuffer current = CharBuffer.allocate(0);
+    private boolean closed = false;
+
+    /**
+     * @param file
+     *            gzip file
+     * @param index
+     *            index of the file
+     * @param firstMember
+     *            first member to read
+     * @param lastMember
+     *            member after the last member to read
+     * @param readAhead
+     *            max number of members that are inflated ahead of the consumer
+     */
+    public ParallelGzipReader(String file, GzipIndex index, int firstMember, int lastMember, int readAhead) throws IOException {
+        members = index.members();
+        if (firstMember < 0 || lastMember > members.size() || firstMember > lastMember) {
+            throw new IllegalArgumentException("invalid member range " + firstMember + "-" + lastMember + " for " + members.size() + " members");
+        }
+        if (readAhead < 1) {
+            throw new IllegalArgumentException("read ahead should be at least 1 but was " + readAhead);
+        }
+        this.lastMember = lastMember;
+        this.readAhead = readAhead;
+        nextMember = firstMember;
+        @SuppressWarnings("resource")
+        FileInputStream fis = new FileInputStream(file);
+        channel = fis.getChannel();
+        fileSize = channel.size();
+        fill();
+    }
+
+    /**
+     * Opens the file for reading in parallel if it has an index. If there is no index, one is built and written next to
+     * the file, if possible. Falls back to reading sequentially, with a {@link ReadAheadReader}, for files with huge
+     * members.
+     *
+     * @param file
+     *            gzip file
+     * @return reader for the file
+     */
+    public static Reader open(String file) throws IOException {
+        // don't inflate all of e.g. a single member file from another tool just to find out it has to be read sequentially
+        GzipIndex index = index(file, MAX_MEMBER_SIZE);
+        if (index != null) {
+            for (GzipIndex.Member member : index.members()) {
+                if (member.size > MAX_MEMBER_SIZE) {
+                    index = null;
+                    break;
+                }
+            }
+        }
+        if (index == null) {
+            return new ReadAheadReader(new InputStreamReader(new GZIPInputStream(new FileInputStream(file), 64 * 1024), ResourceUtil.UTF8));
+        }
+        return new ParallelGzipReader(file, index, 0, index.members().size(), GzipPool.THREADS);
+    }
+
+    /**
+     * @param file
+     *            gzip file
+     * @return the index of the file, built with a scan if there is none
+     */
+    public static GzipIndex index(String file) throws IOException {
+        return index(file, Long.MAX_VALUE);
+    }
+
+    /**
+     * @return the index of the file, built with a scan if there is none; null if the scan finds a member bigger than
+     *         maxMemberSize, see {@link GzipIndex#build(String, long)}
+     */
+    private static GzipIndex index(String file, long maxMemberSize) throws IOException {
+        GzipIndex index = GzipIndex.read(file);
+        if (index == null) {
+            index = GzipIndex.build(file, maxMemberSize);
+            if (index == null) {
+                return null;
+            }
+            try {
+                index.write(file);
+            } catch (IOException e) {
+                // e.g. a read only directory, we'll just scan again next time
+            }
+        }
+        return index;
+    }
+
+    private void fill() {
+        while (inFlight.size() < readAhead && nextMember < lastMember) {
+            final int member = nextMember++;
+            inFlight.add(GzipPool.POOL.submit(new Callable<CharBuffer>() {
+                @Override
+                public CharBuffer call() throws IOException {
+                    return inflate(member);
+                }
+            }));
+        }
+    }
+
+    private CharBuffer inflate(int member) throws IOException {
+        GzipIndex.Member m = members.get(member);
+        long end = member + 1 < members.size() ? members.get(member + 1).offset : fileSize;
+        ByteBuffer compressed = ByteBuffer.allocate((int) (end - m.offset));
+        while (compressed.hasRemaining()) {
+            // positional reads are safe to do from several threads
+            if (channel.read(compressed, m.offset + compressed.position()) < 0) {
+                throw new EOFException("gzip member " + member + " is truncated");
+            }
+        }
+        byte[] bytes = new byte[(int) m.size];
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed.array()), 64 * 1024)) {
+            int read = 0;
+            while (read < bytes.length) {
+                int n = in.read(bytes, read, bytes.length - read);
+                if (n < 0) {
+                    throw new EOFException("gzip member " + member + " is shorter than its index says");
+                }
+                read += n;
+            }
+        }
+        return ResourceUtil.UTF8.decode(ByteBuffer.wrap(bytes));
+    }
+
+    private boolean next() throws IOException {
+        while (!current.hasRemaining()) {
+            Future<CharBuffer> future = inFlight.poll();
+            if (future == null) {
+                return false;
+            }
+            try {
+                current = future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted while inflating", e);
+            } catch (ExecutionException e) {
+                throw new IOException("cannot inflate", e.getCause());
+            }
+            fill();
+        }
+        return true;
+    }
+
+    @Override
+    public int read(char[] cbuf, int off, int len) throws IOException {
+        if (closed) {
+            throw new IOException("reader is closed");
+        }
+        if (len == 0) {
+            return 0;
+        }
+        if (!next()) {
+            return -1;
+        }
+        int n = Math.min(len, current.remaining());
+        current.get(cbuf, off, n);
+        return n;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!closed) {
+            closed = true;
+            for (Future<CharBuffer> future : inFlight) {
+                future.cancel(false);
+            }
+            inFlight.clear();
+            channel.close();
+        }
+    }
+}
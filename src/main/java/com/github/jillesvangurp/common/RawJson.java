@@ -0,0 +1,219 @@
+package com.github.jillesvangurp.common;
+
+import java.util.List;
+
+/**
+ * Static methods for working with json objects as text without parsing them. This only works for the compact json
+ * produced by jsonj (no whitespace between tokens), which is what we write in all intermediate files.
+ *
+ * Use this to splice fields into a json object: copy the object without its closing brace with
+ * {@link #appendOpen(StringBuilder, String, int[])}, add fields with
+ * {@link #appendArrayField(StringBuilder, String, List)}, and close it again.
+ */
+public class RawJson {
+    private static final String ID_PREFIX = "{\"id\":";
+
+    /**
+     * @param json
+     *            json object
+     * @return the value of the id field if it is the first field and a number, -1 otherwise
+     */
+    public static long id(String json) {
+        if (!json.startsWith(ID_PREFIX)) {
+            return -1;
+        }
+        long id = 0;
+        int i = ID_PREFIX.length();
+        int start = i;
+        while (i < json.length()) {
+            char c = json.charAt(i);
+            if (c < '0' || c > '9') {
+                break;
+            }
+            id = id * 10 + (c - '0');
+            i++;
+        }
+        return i == start || i > start + 18 ? -1 : id;
+    }
+
+    /**
+     * @param json
+     *            json object
+     * @param name
+     *            name of a top level field
+     * @return the start of the field name, the start of the value, and the end of the value (exclusive); or null if the
+     *         object does not have the field
+     */
+    public static int[] field(String json, String name) {
+        return field(json, 0, name);
+    }
+
+    /**
+     * @param json
+     *            json
+     * @param objectStart
+     *            start of an object in the json, e.g. the value start of a field
+     * @param name
+     *            name of a field of that object
+     * @return the start of the field name, the start of the value, and the end of the value (exclusive); or null if the
+     *         object does not have the field
+     */
+    public static int[] field(String json, int objectStart, String name) {
+        if (json.length() < objectStart + 2 || json.charAt(objectStart) != '{') {
+            throw new IllegalArgumentException("not a json object: " + json);
+        }
+        int i = objectStart + 1;
+        while (i < json.length() && json.charAt(i) == '"') {
+            int keyStart = i;
+            int keyEnd = skipString(json, i);
+            // skip the :
+            int valueStart = keyEnd + 1;
+            int valueEnd = skipValue(json, valueStart);
+            if (keyEnd - keyStart - 2 == name.length() && json.regionMatches(keyStart + 1, name, 0, name.length())) {
+                return new int[] { keyStart, valueStart, valueEnd };
+            }
+            // skip the ,
+            i = valueEnd + 1;
+        }
+        return null;
+    }
+
+    /**
+     * @param json
+     *            json
+     * @param objectStart
+     *            start of an object in the json
+     * @param names
+     *            field names
+     * @return true if the object has a field with one of the names
+     */
+    public static boolean hasAnyField(String json, int objectStart, String... names) {
+        if (json.length() < objectStart + 2 || json.charAt(objectStart) != '{') {
+            throw new IllegalArgumentException("not a json object: " + json);
+        }
+        int i = objectStart + 1;
+        while (i < json.length() && json.charAt(i) == '"') {
+            int keyStart = i;
+            int keyEnd = skipString(json, i);
+            int keyLength = keyEnd - keyStart - 2;
+            for (String name : names) {
+                if (keyLength == name.length() && json.regionMatches(keyStart + 1, name, 0, keyLength)) {
+                    return true;
+                }
+            }
+            i = skipValue(json, keyEnd + 1) + 1;
+        }
+        return false;
+    }
+
+    /**
+     * Appends the json object without its closing brace, so more fields can be appended.
+     *
+     * @param out
+     *            buffer
+     * @param json
+     *            json object
+     * @param without
+     *            optional field to leave out, as returned by {@link #field(String, String)}
+     */
+    public static void appendOpen(StringBuilder out, String json, int[] without) {
+        int end = json.length() - 1;
+        if (json.charAt(end) != '}') {
+            throw new IllegalArgumentException("not a json object: " + json);
+        }
+        if (without == null) {
+            out.append(json, 0, end);
+        } else {
+            int from = without[0];
+            int to = without[2];
+            if (json.charAt(from - 1) == ',') {
+                from--;
+            } else if (to < end && json.charAt(to) == ',') {
+                to++;
+            }
+            out.append(json, 0, from);
+            out.append(json, to, end);
+        }
+    }
+
+    /**
+     * Appends a field with an array of json values to an object opened with
+     * {@link #appendOpen(StringBuilder, String, int[])}. The values are appended as is. Note that this does not check
+     * whether the object already has a field with that name.
+     *
+     * @param out
+     *            buffer
+     * @param name
+     *            field name, must not need escaping
+     * @param values
+     *            json values
+     */
+    public static void appendArrayField(StringBuilder out, String name, List<String> values) {
+        if (out.charAt(out.length() - 1) != '{') {
+            out.append(',');
+        }
+        out.append('"').append(name).append("\":[");
+        for (int i = 0; i < values.size(); i++) {
+            if (i > 0) {
+                out.append(',');
+            }
+            out.append(values.get(i));
+        }
+        out.append(']');
+    }
+
+    private static int skipString(String json, int start) {
+        int i = start + 1;
+        while (i < json.length()) {
+            char c = json.charAt(i);
+            if (c == '\\') {
+                i += 2;
+            } else if (c == '"') {
+                return i + 1;
+            } else {
+                i++;
+            }
+        }
+        throw new IllegalArgumentException("unterminated string in " + json);
+    }
+
+    private static int skipValue(String json, int start) {
+        int depth = 0;
+        int i = start;
+        while (i < json.length()) {
+            char c = json.charAt(i);
+            switch (c) {
+            case '"':
+                i = skipString(json, i);
+                if (depth == 0) {
+                    return i;
+                }
+                continue;
+            case '{':
+            case '[':
+                depth++;
+                break;
+            case '}':
+            case ']':
+                if (depth == 0) {
+                    // end of the enclosing object
+                    return i;
+                }
+                depth--;
+                if (depth == 0) {
+                    return i + 1;
+                }
+                break;
+            case ',':
+                if (depth == 0) {
+                    return i;
+                }
+                break;
+            default:
+                break;
+            }
+            i++;
+        }
+        throw new IllegalArgumentException("unterminated value in " + json);
+    }
+}
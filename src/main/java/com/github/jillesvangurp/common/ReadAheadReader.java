@@ -0,0 +1,152 @@
+package com.github.jillesvangurp.common;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Reader that reads the next chunk of the wrapped reader on a background thread while the consumer works through the
+ * current one. Reading a gzip file through this moves the inflating and decoding off the consumer thread.
+ *
+ * Uses two buffers of a fixed number of chars, so memory per reader is bounded and it is fine to have hundreds of them
+ * open, e.g. for merging bucket files. The background reads run on a shared pool with a fixed number of threads, or
+ * on a virtual thread each, see {@link Threads}.
+ */
+public class ReadAheadReader extends Reader {
+    public static final int DEFAULT_CHUNK_CHARS = 256 * 1024;
+
+    // separate from the gzip pool: the wrapped reader may be waiting on tasks in that pool
+    private static final ExecutorService POOL = Threads.ioExecutor("read-ahead-", Math.max(4, GzipPool.THREADS));
+
+    private final Reader in;
+    private char[] current;
+    private char[] next;
+    private int pos = 0;
+    private int limit = 0;
+    private Future<Integer> pending;
+    private boolean eof = false;
+    private boolean closed = false;
+
+    /**
+     * @param in
+     *            reader to read ahead on, closed when this reader is closed
+     * @param chunkChars
+     *            size of each of the two buffers
+     */
+    public ReadAheadReader(Reader in, int chunkChars) {
+        if (chunkChars <= 0) {
+            throw new IllegalArgumentException("chunk size should be positive but was " + chunkChars);
+        }
+        this.in = in;
+        current = new char[chunkChars];
+        next = new char[chunkChars];
+        pending = readAhead(next);
+    }
+
+    public ReadAheadReader(Reader in) {
+        this(in, DEFAULT_CHUNK_CHARS);
+    }
+
+    private Future<Integer> readAhead(final char[] buf) {
+        return POOL.submit(new Callable<Integer>() {
+            @Override
+            public Integer call() throws IOException {
+                // fill the whole buffer so the consumer does not wait for small reads
+                int n = 0;
+                while (n < buf.length) {
+                    int read = in.read(buf, n, buf.length - n);
+                    if (read < 0) {
+                        return n == 0 ? -1 : n;
+                    }
+                    n += read;
+                }
+                return n;
+            }
+        });
+    }
+
+    private boolean fill() throws IOException {
+        while (pos >= limit) {
+            if (eof) {
+                return false;
+            }
+            int n = await();
+            if (n < 0) {
+                eof = true;
+                return false;
+            }
+            // swap the buffers and start on the next chunk while the consumer works on this one
+            char[] filled = next;
+            next = current;
+            current = filled;
+            pos = 0;
+            limit = n;
+            if (n < current.length) {
+                // a short chunk means the end of the input
+                eof = true;
+            } else {
+                pending = readAhead(next);
+            }
+        }
+        return true;
+    }
+
+    private int await() throws IOException {
+        try {
+            return pending.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while reading ahead", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException("read ahead failed", cause);
+        } finally {
+            pending = null;
+        }
+    }
+
+    @Override
+    public int read(char[] cbuf, int off, int len) throws IOException {
+        if (closed) {
+            throw new IOException("reader is closed");
+        }
+        if (len == 0) {
+            return 0;
+        }
+        if (!fill()) {
+            return -1;
+        }
+        int n = Math.min(len, limit - pos);
+        System.arraycopy(current, pos, cbuf, off, n);
+        pos += n;
+        return n;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            if (pending != null) {
+                // don't close the reader underneath a background read
+                try {
+                    await();
+                } catch (IOException e) {
+                    // we're closing anyway
+                }
+            }
+        } finally {
+            current = null;
+            next = null;
+            in.close();
+        }
+    }
+}
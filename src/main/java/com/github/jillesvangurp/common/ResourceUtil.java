@@ -11,12 +11,14 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
+import java.io.Reader;
 import java.nio.charset.Charset;
 import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
 
 import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
 
+import com.jillesvangurp.iterables.LineIterable;
+
 
 /**
  * Collection of static methods for working with files that combine commonly used constructor calls for opening files for
@@ -25,20 +27,47 @@ import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
 public class ResourceUtil {
     public static final Charset UTF8 = Charset.forName("UTF-8");
 
+    /**
+     * Gzip writer that compresses on a thread pool and writes a {@link GzipIndex} next to the file when it is closed;
+     * see {@link ParallelGzipOutputStream}.
+     */
     public static BufferedWriter gzipFileWriter(String file) throws IOException {
-        return new BufferedWriter(new OutputStreamWriter(new GZIPOutputStream(new FileOutputStream(file)), Charset.forName("utf-8")));
+        return new BufferedWriter(new OutputStreamWriter(new ParallelGzipOutputStream(new FileOutputStream(file), file, ParallelGzipOutputStream.DEFAULT_BLOCK_SIZE), UTF8),64*1024);
     }
 
     public static BufferedWriter gzipFileWriter(File file) throws IOException {
-        return new BufferedWriter(new OutputStreamWriter(new GZIPOutputStream(new FileOutputStream(file)), Charset.forName("utf-8")),64*1024);
+        return gzipFileWriter(file.getAbsolutePath());
     }
 
+    /**
+     * Gzip reader that inflates ahead on a thread pool; see {@link ParallelGzipReader}.
+     */
     public static BufferedReader gzipFileReader(String file) throws IOException {
-        return new BufferedReader(new InputStreamReader(new GZIPInputStream(new FileInputStream(file)),UTF8));
+        return new BufferedReader(ParallelGzipReader.open(file), 64*1024);
     }
 
     public static BufferedReader gzipFileReader(File file) throws IOException {
-        return new BufferedReader(new InputStreamReader(new GZIPInputStream(new FileInputStream(file)),UTF8));
+        return gzipFileReader(file.getAbsolutePath());
+    }
+
+    /**
+     * Gzip reader that inflates sequentially on a background thread with two buffers of chunkChars. Unlike
+     * {@link #gzipFileReader(String)}, memory use per reader is small and fixed, so use this when opening many files
+     * at once.
+     */
+    public static Reader readAheadGzipReader(String file, int chunkChars) throws IOException {
+        return new ReadAheadReader(new InputStreamReader(new GZIPInputStream(new FileInputStream(file), 64*1024), UTF8), chunkChars);
+    }
+
+    /**
+     * Use this instead of LineIterable.openGzipFile, which inflates on the calling thread.
+     */
+    public static LineIterable gzipLineIterable(String file) throws IOException {
+        return new LineIterable(gzipFileReader(file));
+    }
+
+    public static LineIterable gzipLineIterable(File file) throws IOException {
+        return gzipLineIterable(file.getAbsolutePath());
     }
 
     public static BufferedWriter fileWriter(String file) throws IOException {
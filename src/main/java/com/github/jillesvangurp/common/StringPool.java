@@ -0,0 +1,157 @@
+package com.github.jillesvangurp.common;
+
+/**
+ * Bounded pool of canonical strings for the tag keys and values that repeat billions of times in osm. Unlike
+ * String.intern the pool has a fixed size, and strings are looked up by a range of chars, so a hit does not allocate:
+ * the substring that would otherwise be created for each tag is only created on a miss.
+ *
+ * The pool is split in stripes with a lock each, so threads rarely contend. Each stripe is a hash table of fixed size
+ * where a miss replaces whatever is in the slot; strings that keep coming back stay in the pool and the rest get
+ * overwritten. Strings longer than maxLength, e.g. most names, are never pooled.
+ */
+public class StringPool {
+    // on a 64 bit jvm with compressed oops, roughly the String and char[] headers plus the hash and length fields
+    private static final int STRING_OVERHEAD_BYTES = 40;
+
+    private final Stripe[] stripes;
+    private final int stripeBits;
+    private final int slotMask;
+    private final int maxLength;
+
+    /**
+     * @param size
+     *            number of strings in the pool, rounded up to a power of two
+     * @param maxLength
+     *            longer strings are not pooled
+     */
+    public StringPool(int size, int maxLength) {
+        if (size < 1 || maxLength < 0) {
+            throw new IllegalArgumentException("invalid pool size " + size + " or max length " + maxLength);
+        }
+        int slots = Integer.highestOneBit(size - 1) << 1;
+        if (slots < 1) {
+            slots = 1;
+        }
+        int stripeCount = Math.min(64, slots);
+        stripeBits = Integer.numberOfTrailingZeros(stripeCount);
+        slotMask = slots / stripeCount - 1;
+        stripes = new Stripe[stripeCount];
+        for (int i = 0; i < stripeCount; i++) {
+            stripes[i] = new Stripe(slots / stripeCount);
+        }
+        this.maxLength = maxLength;
+    }
+
+    public String intern(String s) {
+        return s == null ? null : intern(s, 0, s.length());
+    }
+
+    /**
+     * @param chars
+     *            e.g. the input of a regex matcher, or a reused StringBuilder
+     * @param start
+     *            start of the string in chars
+     * @param end
+     *            end of the string in chars (exclusive)
+     * @return the pooled string with those chars, or a new string if it is not in the pool
+     */
+    public String intern(CharSequence chars, int start, int end) {
+        int length = end - start;
+        if (length > maxLength) {
+            Stripe stripe = stripes[length & (stripes.length - 1)];
+            synchronized (stripe) {
+                stripe.skipped++;
+            }
+            return chars.subSequence(start, end).toString();
+        }
+        int hash = 0;
+        for (int i = start; i < end; i++) {
+            // same as String.hashCode, which Strings cache, so the pooled strings don't need their hash recomputed
+            hash = 31 * hash + chars.charAt(i);
+        }
+        int spread = hash ^ (hash >>> 16);
+        Stripe stripe = stripes[spread & (stripes.length - 1)];
+        int slot = (spread >>> stripeBits) & slotMask;
+        synchronized (stripe) {
+            String pooled = stripe.slots[slot];
+            if (pooled != null && pooled.hashCode() == hash && sameChars(pooled, chars, start, end)) {
+                stripe.hits++;
+                stripe.savedChars += length;
+                return pooled;
+            }
+            stripe.misses++;
+        }
+        String s = chars.subSequence(start, end).toString();
+        synchronized (stripe) {
+            stripe.slots[slot] = s;
+        }
+        return s;
+    }
+
+    private static boolean sameChars(String pooled, CharSequence chars, int start, int end) {
+        if (pooled.length() != end - start) {
+            return false;
+        }
+        for (int i = start; i < end; i++) {
+            if (pooled.charAt(i - start) != chars.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public long hits() {
+        long hits = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                hits += stripe.hits;
+            }
+        }
+        return hits;
+    }
+
+    public long misses() {
+        long misses = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                misses += stripe.misses;
+            }
+        }
+        return misses;
+    }
+
+    /**
+     * @return hit rate, number of strings that were too long, and an estimate of the heap that the hits did not
+     *         allocate
+     */
+    public String stats() {
+        long hits = 0;
+        long misses = 0;
+        long skipped = 0;
+        long savedChars = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                hits += stripe.hits;
+                misses += stripe.misses;
+                skipped += stripe.skipped;
+                savedChars += stripe.savedChars;
+            }
+        }
+        long lookups = hits + misses;
+        long savedBytes = hits * STRING_OVERHEAD_BYTES + savedChars * 2;
+        return String.format("%d of %d strings from the pool (%.1f%%), %d too long to pool, saved about %d MB", hits, lookups,
+                lookups > 0 ? hits * 100.0 / lookups : 0.0, skipped, savedBytes / (1024 * 1024));
+    }
+
+    private static class Stripe {
+        final String[] slots;
+        long hits;
+        long misses;
+        long skipped;
+        long savedChars;
+
+        Stripe(int size) {
+            slots = new String[size];
+        }
+    }
+}
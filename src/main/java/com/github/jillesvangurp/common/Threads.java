@@ -0,0 +1,136 @@
+package com.github.jillesvangurp.common;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Creates the threads that mostly wait for io: the read ahead on merge runs and on gzip files that can't be read in
+ * parallel. By default these are daemon platform threads. On java 21 or later, {@link #setVirtual}
+ * switches them to virtual threads, so there can be one per open file without tuning thread counts. The cpu bound work
+ * (parsing, joining, compressing) stays on the pools with a fixed number of platform threads either way.
+ *
+ * Writing has no threads of its own: the sorting writers flush their buckets and the partitions write their exchange
+ * files on the thread that puts the entries, and {@link ParallelGzipOutputStream} compresses on {@link GzipPool} and
+ * writes the compressed members on that same thread. Writes mostly go to the page cache, so handing them to an io
+ * thread would only add a queue of buffers to the memory that the buckets already use.
+ *
+ * Virtual threads are looked up by reflection, so this still compiles for java 7; build with -Pjdk21 to compile for a
+ * current jdk.
+ */
+public class Threads {
+    private static final Logger LOG = LoggerFactory.getLogger(Threads.class);
+
+    private static final Method OF_VIRTUAL;
+    private static final Method BUILDER_NAME;
+    private static final Method BUILDER_FACTORY;
+    private static final Method THREAD_PER_TASK_EXECUTOR;
+    static {
+        Method ofVirtual = null;
+        Method name = null;
+        Method factory = null;
+        Method threadPerTask = null;
+        try {
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+            // the public interface, the builder implementation classes are not accessible
+            Class<?> builder = Class.forName("java.lang.Thread$Builder");
+            name = builder.getMethod("name", String.class, long.class);
+            factory = builder.getMethod("factory");
+            threadPerTask = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+        } catch (NoSuchMethodException | ClassNotFoundException e) {
+            ofVirtual = null;
+        }
+        OF_VIRTUAL = ofVirtual;
+        BUILDER_NAME = name;
+        BUILDER_FACTORY = factory;
+        THREAD_PER_TASK_EXECUTOR = threadPerTask;
+    }
+
+    private static volatile boolean virtual = false;
+
+    /**
+     * @return true if the jvm has virtual threads
+     */
+    public static boolean virtualThreadsSupported() {
+        return OF_VIRTUAL != null;
+    }
+
+    /**
+     * Switches the io threads created from now on to virtual threads, or back. Call this at startup, before any files
+     * are read; pools that already exist keep their threads. Falls back to platform threads with a warning if the jvm
+     * has no virtual threads.
+     *
+     * @param enabled
+     *            true to use virtual threads
+     */
+    public static void setVirtual(boolean enabled) {
+        if (enabled && !virtualThreadsSupported()) {
+            LOG.warn("virtual threads need java 21 or later, this is java " + System.getProperty("java.version") + "; using platform threads");
+        }
+        virtual = enabled && virtualThreadsSupported();
+    }
+
+    public static boolean isVirtual() {
+        return virtual;
+    }
+
+    /**
+     * @param prefix
+     *            thread name prefix, a number is appended
+     * @return factory for io threads; daemon platform threads or virtual threads, see {@link #setVirtual(boolean)}
+     */
+    public static ThreadFactory ioThreadFactory(final String prefix) {
+        if (virtual) {
+            try {
+                Object builder = BUILDER_NAME.invoke(OF_VIRTUAL.invoke(null), prefix, 1l);
+                return (ThreadFactory) BUILDER_FACTORY.invoke(builder);
+            } catch (IllegalAccessException | InvocationTargetException e) {
+                throw new IllegalStateException("cannot create virtual thread factory", e);
+            }
+        }
+        return platformThreadFactory(prefix);
+    }
+
+    /**
+     * @param prefix
+     *            thread name prefix, a number is appended
+     * @return factory for daemon platform threads, for cpu bound work
+     */
+    public static ThreadFactory platformThreadFactory(final String prefix) {
+        return new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, prefix + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    /**
+     * @param prefix
+     *            thread name prefix
+     * @param platformThreads
+     *            number of threads when using platform threads
+     * @return executor with a fixed number of daemon platform threads, or one that starts a virtual thread per task
+     */
+    public static ExecutorService ioExecutor(String prefix, int platformThreads) {
+        ThreadFactory factory = ioThreadFactory(prefix);
+        if (virtual) {
+            try {
+                return (ExecutorService) THREAD_PER_TASK_EXECUTOR.invoke(null, factory);
+            } catch (IllegalAccessException | InvocationTargetException e) {
+                throw new IllegalStateException("cannot create virtual thread executor", e);
+            }
+        }
+        return Executors.newFixedThreadPool(platformThreads, factory);
+    }
+}
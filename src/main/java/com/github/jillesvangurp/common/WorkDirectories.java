@@ -0,0 +1,114 @@
+package com.github.jillesvangurp.common;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * A list of directories for temporary and intermediate files, typically one per local disk. Use this to put the files
+ * that are read and written at the same time on different devices, so the reads and writes overlap.
+ */
+public class WorkDirectories {
+    private final List<File> dirs;
+
+    public WorkDirectories(List<String> dirs) {
+        if (dirs.isEmpty()) {
+            throw new IllegalArgumentException("at least one work directory is needed");
+        }
+        List<File> files = new ArrayList<>();
+        for (String dir : dirs) {
+            File file = new File(dir);
+            try {
+                FileUtils.forceMkdir(file);
+            } catch (IOException e) {
+                throw new IllegalStateException("cannot create dir " + dir, e);
+            }
+            files.add(file);
+        }
+        this.dirs = Collections.unmodifiableList(files);
+    }
+
+    /**
+     * @param spec
+     *            comma separated directories
+     * @return the work directories
+     */
+    public static WorkDirectories parse(String spec) {
+        List<String> dirs = new ArrayList<>();
+        for (String dir : spec.split(",")) {
+            if (dir.trim().length() > 0) {
+                dirs.add(dir.trim());
+            }
+        }
+        return new WorkDirectories(dirs);
+    }
+
+    public List<File> dirs() {
+        return dirs;
+    }
+
+    public int size() {
+        return dirs.size();
+    }
+
+    /**
+     * @param files
+     *            files or directories, they don't have to exist yet
+     * @return the directories that are on other devices than the files, may be empty
+     */
+    public List<File> avoiding(String... files) {
+        Set<Object> devices = new HashSet<>();
+        for (String file : files) {
+            devices.add(device(new File(file)));
+        }
+        List<File> result = new ArrayList<>();
+        for (File dir : dirs) {
+            if (!devices.contains(device(dir))) {
+                result.add(dir);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @param dirs
+     *            candidates, not empty
+     * @return the directory with the most usable space
+     */
+    public static File mostFreeSpace(List<File> dirs) {
+        File best = dirs.get(0);
+        for (File dir : dirs) {
+            if (dir.getUsableSpace() > best.getUsableSpace()) {
+                best = dir;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * @return the file store of the file, or of the nearest existing parent directory
+     */
+    static Object device(File file) {
+        File existing = file.getAbsoluteFile();
+        while (existing != null && !existing.exists()) {
+            existing = existing.getParentFile();
+        }
+        if (existing == null) {
+            return file.getAbsolutePath();
+        }
+        try {
+            // file stores of the same device are equal
+            return Files.getFileStore(existing.toPath());
+        } catch (IOException e) {
+            // can't tell, so assume every directory is its own device
+            return existing.getAbsolutePath();
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package com.github.jillesvangurp.flow;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Arithmetic on outstanding demand, which stays at Long.MAX_VALUE (no limit) instead of overflowing.
+ */
+final class Demand {
+    private Demand() {
+    }
+
+    static long add(AtomicLong requested, long n) {
+        if (n <= 0) {
+            throw new IllegalArgumentException("request should be positive: " + n);
+        }
+        while (true) {
+            long current = requested.get();
+            long next = current + n < 0 ? Long.MAX_VALUE : current + n;
+            if (requested.compareAndSet(current, next)) {
+                return next;
+            }
+        }
+    }
+
+    static long multiply(long n, int factor) {
+        return n > Long.MAX_VALUE / factor ? Long.MAX_VALUE : n * factor;
+    }
+}
@@ -0,0 +1,133 @@
+package com.github.jillesvangurp.flow;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.github.jillesvangurp.flow.Flow.Publisher;
+import com.github.jillesvangurp.flow.Flow.Subscriber;
+import com.github.jillesvangurp.flow.Flow.Subscription;
+
+/**
+ * Sends the items of one publisher to several branches, see {@link Pipe#fanOut(int)}. Upstream is asked for no more
+ * items than the branch with the least demand asked for, so every branch can take every item. A cancelled branch no
+ * longer holds the others back.
+ */
+final class FanOut<T> implements Subscriber<T> {
+    private final Publisher<T> source;
+    private final List<Branch> branches;
+    private final AtomicInteger subscribed = new AtomicInteger();
+    private volatile Subscription upstream;
+    // guarded by this
+    private long upstreamRequested = 0;
+
+    FanOut(Publisher<T> source, int count) {
+        this.source = source;
+        List<Branch> list = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            list.add(new Branch());
+        }
+        branches = Collections.unmodifiableList(list);
+    }
+
+    List<Pipe<T>> branches() {
+        return new ArrayList<Pipe<T>>(branches);
+    }
+
+    private final class Branch extends Pipe<T> implements Subscription {
+        private volatile Subscriber<? super T> subscriber;
+        // everything this branch asked for so far
+        private final AtomicLong requested = new AtomicLong();
+        private volatile boolean cancelled = false;
+
+        @Override
+        public void subscribe(Subscriber<? super T> s) {
+            synchronized (this) {
+                if (subscriber != null) {
+                    throw new IllegalStateException("a branch can only be subscribed once");
+                }
+                subscriber = s;
+            }
+            s.onSubscribe(this);
+            if (subscribed.incrementAndGet() == branches.size()) {
+                source.subscribe(FanOut.this);
+            }
+        }
+
+        @Override
+        public void request(long n) {
+            Demand.add(requested, n);
+            requestUpstream();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            requestUpstream();
+        }
+    }
+
+    private void requestUpstream() {
+        Subscription s = upstream;
+        if (s == null) {
+            return;
+        }
+        long delta;
+        synchronized (this) {
+            long min = Long.MAX_VALUE;
+            boolean active = false;
+            for (Branch branch : branches) {
+                if (!branch.cancelled) {
+                    active = true;
+                    min = Math.min(min, branch.requested.get());
+                }
+            }
+            if (!active) {
+                delta = -1;
+            } else {
+                delta = min - upstreamRequested;
+                upstreamRequested = Math.max(min, upstreamRequested);
+            }
+        }
+        if (delta < 0) {
+            s.cancel();
+        } else if (delta > 0) {
+            s.request(delta);
+        }
+    }
+
+    @Override
+    public void onSubscribe(Subscription subscription) {
+        upstream = subscription;
+        requestUpstream();
+    }
+
+    @Override
+    public void onNext(T item) {
+        for (Branch branch : branches) {
+            if (!branch.cancelled) {
+                branch.subscriber.onNext(item);
+            }
+        }
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+        for (Branch branch : branches) {
+            if (!branch.cancelled) {
+                branch.subscriber.onError(throwable);
+            }
+        }
+    }
+
+    @Override
+    public void onComplete() {
+        for (Branch branch : branches) {
+            if (!branch.cancelled) {
+                branch.subscriber.onComplete();
+            }
+        }
+    }
+}
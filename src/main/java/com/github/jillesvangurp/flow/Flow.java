@@ -0,0 +1,37 @@
+package com.github.jillesvangurp.flow;
+
+/**
+ * The interfaces of java.util.concurrent.Flow, which is java 9 and later while this code compiles for java 7. They have
+ * the same names and methods, so moving to the jdk versions is a change of imports.
+ *
+ * A {@link Subscriber} only gets as many items as it asked for with {@link Subscription#request(long)}, which is what
+ * makes a slow stage hold back the stages before it instead of queueing up their output.
+ */
+public final class Flow {
+    private Flow() {
+    }
+
+    public interface Publisher<T> {
+        void subscribe(Subscriber<? super T> subscriber);
+    }
+
+    public interface Subscriber<T> {
+        void onSubscribe(Subscription subscription);
+
+        void onNext(T item);
+
+        void onError(Throwable throwable);
+
+        void onComplete();
+    }
+
+    public interface Subscription {
+        /**
+         * @param n
+         *            number of additional items the subscriber is ready for, Long.MAX_VALUE for no limit
+         */
+        void request(long n);
+
+        void cancel();
+    }
+}
@@ -0,0 +1,170 @@
+package com.github.jillesvangurp.flow;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.github.jillesvangurp.flow.Flow.Subscriber;
+import com.github.jillesvangurp.flow.Flow.Subscription;
+import com.jillesvangurp.iterables.Processor;
+
+/**
+ * Processes the items on an executor and passes the results on in the order of the items, see
+ * {@link Pipe#parallelMap(Processor, Executor, int)}.
+ *
+ * Each item gets a slot in a queue. Whichever thread finishes the item at the head of the queue, or brings new demand,
+ * passes the finished results on; one thread at a time. A new item is only requested from upstream when a slot is
+ * taken off the queue, so there are never more than parallelism items in flight.
+ */
+final class ParallelMapSubscriber<T, R> implements Subscriber<T>, Subscription {
+    private final Subscriber<? super R> downstream;
+    private final Processor<? super T, ? extends R> processor;
+    private final Executor executor;
+    private final int parallelism;
+
+    private final ConcurrentLinkedQueue<Slot<R>> slots = new ConcurrentLinkedQueue<>();
+    private final AtomicLong requested = new AtomicLong();
+    private final AtomicInteger wip = new AtomicInteger();
+    private Subscription upstream;
+    private volatile boolean upstreamDone = false;
+    private volatile Throwable upstreamError;
+    private volatile boolean cancelled = false;
+    // only used while draining
+    private boolean done = false;
+
+    ParallelMapSubscriber(Subscriber<? super R> downstream, Processor<? super T, ? extends R> processor, Executor executor, int parallelism) {
+        this.downstream = downstream;
+        this.processor = processor;
+        this.executor = executor;
+        this.parallelism = parallelism;
+    }
+
+    private static final class Slot<R> {
+        R result;
+        Throwable error;
+        volatile boolean finished = false;
+    }
+
+    @Override
+    public void onSubscribe(Subscription subscription) {
+        upstream = subscription;
+        downstream.onSubscribe(this);
+        subscription.request(parallelism);
+    }
+
+    @Override
+    public void onNext(final T item) {
+        final Slot<R> slot = new Slot<>();
+        slots.offer(slot);
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        slot.result = processor.process(item);
+                    } catch (Throwable t) {
+                        slot.error = t;
+                    }
+                    slot.finished = true;
+                    drain();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            slot.error = e;
+            slot.finished = true;
+            drain();
+        }
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+        upstreamError = throwable;
+        upstreamDone = true;
+        drain();
+    }
+
+    @Override
+    public void onComplete() {
+        upstreamDone = true;
+        drain();
+    }
+
+    @Override
+    public void request(long n) {
+        Demand.add(requested, n);
+        drain();
+    }
+
+    @Override
+    public void cancel() {
+        cancelled = true;
+        upstream.cancel();
+        drain();
+    }
+
+    private void drain() {
+        if (wip.getAndIncrement() != 0) {
+            return;
+        }
+        int missed = 1;
+        do {
+            long r = requested.get();
+            long emitted = 0;
+            int taken = 0;
+            while (!done) {
+                if (cancelled) {
+                    done = true;
+                    slots.clear();
+                    break;
+                }
+                Throwable error = upstreamError;
+                if (error != null) {
+                    fail(error);
+                    break;
+                }
+                // read before looking at the queue: all slots are queued before upstream completes
+                boolean finished = upstreamDone;
+                Slot<R> slot = slots.peek();
+                if (slot == null) {
+                    if (finished) {
+                        done = true;
+                        downstream.onComplete();
+                    }
+                    break;
+                }
+                if (!slot.finished) {
+                    break;
+                }
+                if (slot.error != null) {
+                    upstream.cancel();
+                    fail(slot.error);
+                    break;
+                }
+                if (slot.result != null && emitted == r) {
+                    break;
+                }
+                slots.poll();
+                taken++;
+                if (slot.result != null) {
+                    downstream.onNext(slot.result);
+                    emitted++;
+                }
+            }
+            if (emitted != 0 && r != Long.MAX_VALUE) {
+                requested.addAndGet(-emitted);
+            }
+            if (taken != 0 && !done) {
+                upstream.request(taken);
+            }
+            missed = wip.addAndGet(-missed);
+        } while (missed != 0);
+    }
+
+    private void fail(Throwable error) {
+        done = true;
+        slots.clear();
+        downstream.onError(error);
+    }
+}
@@ -0,0 +1,131 @@
+package com.github.jillesvangurp.flow;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import com.github.jillesvangurp.flow.Flow.Subscriber;
+import com.github.jillesvangurp.flow.Flow.Subscription;
+import com.jillesvangurp.iterables.Processor;
+
+/**
+ * End of a {@link Pipe} that processes the items on an executor in any order, see
+ * {@link Pipe#parallelDrain(Processor, Executor, int)}.
+ *
+ * The thread that runs the sink does the requesting, one item at a time, so the stages before it (reading and
+ * decompressing the input, batching) run on that thread and the executor only gets the processing. It waits while
+ * parallelism items are requested or being processed. Unlike a parallel map, a slow item does not hold up the others.
+ */
+final class ParallelSink<T> implements Subscriber<T> {
+    private final Processor<? super T, ?> processor;
+    private final Executor executor;
+    private final int parallelism;
+
+    // all guarded by this
+    private Subscription upstream;
+    private int requested = 0;
+    private int processing = 0;
+    private boolean completed = false;
+    private Throwable error;
+
+    ParallelSink(Processor<? super T, ?> processor, Executor executor, int parallelism) {
+        this.processor = processor;
+        this.executor = executor;
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Requests and processes items until the pipe completes and all items are processed.
+     *
+     * @throws IllegalStateException
+     *             if a stage failed, after the items that were being processed are done
+     */
+    void run() {
+        Subscription subscription;
+        while (true) {
+            synchronized (this) {
+                try {
+                    while (!(completed || error != null) || processing > 0) {
+                        if (error == null && !completed && upstream != null && requested + processing < parallelism) {
+                            break;
+                        }
+                        wait();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    error = e;
+                }
+                if (completed || error != null) {
+                    subscription = upstream;
+                    break;
+                }
+                requested++;
+                subscription = upstream;
+            }
+            subscription.request(1);
+        }
+        Throwable t;
+        boolean upstreamDone;
+        synchronized (this) {
+            t = error;
+            upstreamDone = completed;
+        }
+        if (t != null) {
+            if (subscription != null && !upstreamDone) {
+                subscription.cancel();
+            }
+            throw new IllegalStateException("pipe failed: " + t.getMessage(), t);
+        }
+    }
+
+    @Override
+    public synchronized void onSubscribe(Subscription subscription) {
+        upstream = subscription;
+        notifyAll();
+    }
+
+    @Override
+    public void onNext(final T item) {
+        synchronized (this) {
+            requested--;
+            processing++;
+        }
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    Throwable failure = null;
+                    try {
+                        processor.process(item);
+                    } catch (Throwable t) {
+                        failure = t;
+                    }
+                    finished(failure);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            finished(e);
+        }
+    }
+
+    private synchronized void finished(Throwable failure) {
+        processing--;
+        if (failure != null && error == null) {
+            error = failure;
+        }
+        notifyAll();
+    }
+
+    @Override
+    public synchronized void onError(Throwable throwable) {
+        if (error == null) {
+            error = throwable;
+        }
+        notifyAll();
+    }
+
+    @Override
+    public synchronized void onComplete() {
+        completed = true;
+        notifyAll();
+    }
+}
@@ -0,0 +1,497 @@
+package com.github.jillesvangurp.flow;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.github.jillesvangurp.flow.Flow.Publisher;
+import com.github.jillesvangurp.flow.Flow.Subscriber;
+import com.github.jillesvangurp.flow.Flow.Subscription;
+import com.jillesvangurp.iterables.Processor;
+
+/**
+ * Processing stages that are chained like iterables but pass items on demand, see {@link Flow}:
+ *
+ * <pre>
+ * Pipe.from(lines).batch(100).parallelMap(parseBlock, executor, 16).drain(writer);
+ * </pre>
+ *
+ * The stages take the same {@link Processor} implementations as the iterables; a processor that returns null drops the
+ * item. Nothing runs until a {@link Sink} subscribes. Items are then pushed on the thread that asked for them, or on
+ * the executor of a {@link #parallelMap}, so the stages of a pipe share the threads of that executor instead of each
+ * having their own. Note that with a parallel map, the stages before it also run on the executor threads: they are
+ * asked for more items by whichever thread finished the last one. Use {@link #parallelDrain} when the results don't
+ * need to be passed on in order, which keeps the reading on the calling thread. The number of items in flight is
+ * bounded by the demand of the sinks and the parallelism of the parallel stages.
+ *
+ * A pipe can be subscribed once; use {@link #fanOut(int)} to send the items to several sinks.
+ */
+public abstract class Pipe<T> implements Publisher<T> {
+
+    /**
+     * @return pipe that reads the items from the iterable as they are requested; nulls are skipped
+     */
+    public static <T> Pipe<T> from(final Iterable<? extends T> iterable) {
+        return new Pipe<T>() {
+            @Override
+            public void subscribe(Subscriber<? super T> subscriber) {
+                IterableSubscription<T> subscription = new IterableSubscription<T>(subscriber, iterable.iterator());
+                subscriber.onSubscribe(subscription);
+                subscription.drain();
+            }
+        };
+    }
+
+    /**
+     * @return the publisher as a pipe
+     */
+    public static <T> Pipe<T> from(final Publisher<T> publisher) {
+        if (publisher instanceof Pipe) {
+            return (Pipe<T>) publisher;
+        }
+        return new Pipe<T>() {
+            @Override
+            public void subscribe(Subscriber<? super T> subscriber) {
+                publisher.subscribe(subscriber);
+            }
+        };
+    }
+
+    /**
+     * @param processor
+     *            processor for single items
+     * @return processor for a {@link #batch(int)} that applies the processor to each item; returns the non null
+     *         results, or null if there are none
+     */
+    public static <T, R> Processor<List<T>, List<R>> perItem(final Processor<? super T, ? extends R> processor) {
+        return new Processor<List<T>, List<R>>() {
+            @Override
+            public List<R> process(List<T> items) {
+                List<R> results = null;
+                for (T item : items) {
+                    R result = processor.process(item);
+                    if (result != null) {
+                        if (results == null) {
+                            results = new ArrayList<>(items.size());
+                        }
+                        results.add(result);
+                    }
+                }
+                return results;
+            }
+        };
+    }
+
+    /**
+     * @param processor
+     *            called for each item on the thread that passes it on; null results are dropped
+     * @return pipe with the results
+     */
+    public <R> Pipe<R> map(final Processor<? super T, ? extends R> processor) {
+        final Pipe<T> upstream = this;
+        return new Pipe<R>() {
+            @Override
+            public void subscribe(Subscriber<? super R> subscriber) {
+                upstream.subscribe(new MapSubscriber<T, R>(subscriber, processor));
+            }
+        };
+    }
+
+    /**
+     * @param predicate
+     *            returns true for the items to keep
+     * @return pipe with the items the predicate accepts
+     */
+    public Pipe<T> filter(final Processor<? super T, Boolean> predicate) {
+        return map(new Processor<T, T>() {
+            @Override
+            public T process(T item) {
+                return Boolean.TRUE.equals(predicate.process(item)) ? item : null;
+            }
+        });
+    }
+
+    /**
+     * Size of the batches of a {@link Pipe#batch(BatchSize)}, e.g. derived from the record sizes measured so far.
+     */
+    public interface BatchSize {
+        /**
+         * @return number of items for the batch that is started next; called once per batch
+         */
+        int next();
+    }
+
+    /**
+     * @param size
+     *            items per batch; the last one may be smaller
+     * @return pipe with lists of items, e.g. to give a {@link #parallelMap} tasks that are big enough to be worth
+     *         scheduling
+     */
+    public Pipe<List<T>> batch(final int size) {
+        if (size < 1) {
+            throw new IllegalArgumentException("batch size should be at least 1: " + size);
+        }
+        return batch(new BatchSize() {
+            @Override
+            public int next() {
+                return size;
+            }
+        });
+    }
+
+    /**
+     * Like {@link #batch(int)} but asks for the size each time a batch is started, so the batches can follow what the
+     * pipe has seen so far. Sizes below 1 are treated as 1.
+     *
+     * @param sizes
+     *            items per batch
+     * @return pipe with lists of items
+     */
+    public Pipe<List<T>> batch(final BatchSize sizes) {
+        final Pipe<T> upstream = this;
+        return new Pipe<List<T>>() {
+            @Override
+            public void subscribe(Subscriber<? super List<T>> subscriber) {
+                upstream.subscribe(new BatchSubscriber<T>(subscriber, sizes));
+            }
+        };
+    }
+
+    /**
+     * Runs the processor for several items at the same time and passes the results on in the order of the items.
+     *
+     * @param processor
+     *            called on the executor; null results are dropped
+     * @param executor
+     *            runs the processor; also the downstream stages run on its threads
+     * @param parallelism
+     *            max number of items that are processed or waiting to be passed on
+     * @return pipe with the results
+     */
+    public <R> Pipe<R> parallelMap(final Processor<? super T, ? extends R> processor, final Executor executor, final int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism should be at least 1: " + parallelism);
+        }
+        final Pipe<T> upstream = this;
+        return new Pipe<R>() {
+            @Override
+            public void subscribe(Subscriber<? super R> subscriber) {
+                upstream.subscribe(new ParallelMapSubscriber<T, R>(subscriber, processor, executor, parallelism));
+            }
+        };
+    }
+
+    /**
+     * Sends every item to several branches. The pipe is read once all branches have a subscriber and at the pace of the
+     * slowest branch.
+     *
+     * @param branches
+     *            number of branches
+     * @return the branches
+     */
+    public List<Pipe<T>> fanOut(int branches) {
+        if (branches < 1) {
+            throw new IllegalArgumentException("need at least one branch: " + branches);
+        }
+        return new FanOut<T>(this, branches).branches();
+    }
+
+    /**
+     * Runs the processor for the items on the executor, in any order, until all items are processed. The items are
+     * requested on the calling thread, so reading the input stays on that thread while the executor processes what was
+     * read before.
+     *
+     * @param processor
+     *            called on the executor
+     * @param executor
+     *            runs the processor
+     * @param parallelism
+     *            max number of items that are read ahead or being processed
+     * @throws IllegalStateException
+     *             if a stage failed
+     */
+    public void parallelDrain(Processor<? super T, ?> processor, Executor executor, int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism should be at least 1: " + parallelism);
+        }
+        ParallelSink<T> sink = new ParallelSink<T>(processor, executor, parallelism);
+        subscribe(sink);
+        sink.run();
+    }
+
+    /**
+     * Starts the pipe without waiting for it to finish, e.g. to subscribe the other branches of a {@link #fanOut(int)}.
+     *
+     * @param processor
+     *            called for each item
+     * @return the sink, use {@link Sink#await()} to wait for the pipe to finish
+     */
+    public Sink<T> to(Processor<? super T, ?> processor) {
+        Sink<T> sink = new Sink<T>(processor);
+        subscribe(sink);
+        return sink;
+    }
+
+    /**
+     * Runs the pipe until all items are processed.
+     *
+     * @param processor
+     *            called for each item
+     * @throws IllegalStateException
+     *             if a stage failed
+     */
+    public void drain(Processor<? super T, ?> processor) {
+        to(processor).await();
+    }
+
+    /**
+     * Runs the pipe until all items are processed, ignoring them.
+     */
+    public void drain() {
+        drain(new Processor<T, Void>() {
+            @Override
+            public Void process(T item) {
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Emits on the thread that requests; a request during onNext is picked up by the loop that is already emitting.
+     */
+    static final class IterableSubscription<T> implements Subscription {
+        private final Subscriber<? super T> subscriber;
+        private final Iterator<? extends T> iterator;
+        private final AtomicLong requested = new AtomicLong();
+        private final AtomicInteger wip = new AtomicInteger();
+        private volatile boolean cancelled = false;
+        private boolean done = false;
+
+        IterableSubscription(Subscriber<? super T> subscriber, Iterator<? extends T> iterator) {
+            this.subscriber = subscriber;
+            this.iterator = iterator;
+        }
+
+        @Override
+        public void request(long n) {
+            Demand.add(requested, n);
+            drain();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+        }
+
+        void drain() {
+            if (wip.getAndIncrement() != 0) {
+                return;
+            }
+            int missed = 1;
+            do {
+                long r = requested.get();
+                long emitted = 0;
+                while (!cancelled && !done) {
+                    T item = null;
+                    try {
+                        // complete without waiting for demand
+                        if (!iterator.hasNext()) {
+                            done = true;
+                            subscriber.onComplete();
+                            break;
+                        }
+                        if (emitted == r) {
+                            break;
+                        }
+                        item = iterator.next();
+                    } catch (RuntimeException e) {
+                        done = true;
+                        subscriber.onError(e);
+                        break;
+                    }
+                    if (item != null) {
+                        subscriber.onNext(item);
+                        emitted++;
+                    }
+                }
+                if (emitted != 0 && r != Long.MAX_VALUE) {
+                    requested.addAndGet(-emitted);
+                }
+                missed = wip.addAndGet(-missed);
+            } while (missed != 0);
+        }
+    }
+
+    static final class MapSubscriber<T, R> implements Subscriber<T>, Subscription {
+        private final Subscriber<? super R> downstream;
+        private final Processor<? super T, ? extends R> processor;
+        private Subscription upstream;
+        private boolean done = false;
+
+        MapSubscriber(Subscriber<? super R> downstream, Processor<? super T, ? extends R> processor) {
+            this.downstream = downstream;
+            this.processor = processor;
+        }
+
+        @Override
+        public void onSubscribe(Subscription subscription) {
+            upstream = subscription;
+            downstream.onSubscribe(this);
+        }
+
+        @Override
+        public void onNext(T item) {
+            if (done) {
+                return;
+            }
+            R result;
+            try {
+                result = processor.process(item);
+            } catch (RuntimeException e) {
+                upstream.cancel();
+                onError(e);
+                return;
+            }
+            if (result == null) {
+                // dropped, ask for a replacement
+                upstream.request(1);
+            } else {
+                downstream.onNext(result);
+            }
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            if (!done) {
+                done = true;
+                downstream.onError(throwable);
+            }
+        }
+
+        @Override
+        public void onComplete() {
+            if (!done) {
+                done = true;
+                downstream.onComplete();
+            }
+        }
+
+        @Override
+        public void request(long n) {
+            upstream.request(n);
+        }
+
+        @Override
+        public void cancel() {
+            upstream.cancel();
+        }
+    }
+
+    /**
+     * Requests the items of one batch at a time, so the size of the next batch can be decided when it is started.
+     */
+    static final class BatchSubscriber<T> implements Subscriber<T>, Subscription {
+        private final Subscriber<? super List<T>> downstream;
+        private final BatchSize sizes;
+        private Subscription upstream;
+
+        // all guarded by this; size is 0 while no batch is being filled
+        private long pending = 0;
+        private int size = 0;
+        private List<T> batch = new ArrayList<>();
+
+        BatchSubscriber(Subscriber<? super List<T>> downstream, BatchSize sizes) {
+            this.downstream = downstream;
+            this.sizes = sizes;
+        }
+
+        @Override
+        public void onSubscribe(Subscription subscription) {
+            upstream = subscription;
+            downstream.onSubscribe(this);
+        }
+
+        @Override
+        public void onNext(T item) {
+            List<T> full = null;
+            int next = 0;
+            synchronized (this) {
+                batch.add(item);
+                if (batch.size() == size) {
+                    full = batch;
+                    next = startBatch();
+                }
+            }
+            if (full != null) {
+                downstream.onNext(full);
+                if (next > 0) {
+                    upstream.request(next);
+                }
+            }
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            synchronized (this) {
+                batch = null;
+            }
+            downstream.onError(throwable);
+        }
+
+        @Override
+        public void onComplete() {
+            List<T> partial;
+            synchronized (this) {
+                partial = batch;
+                batch = null;
+            }
+            // a partial batch means fewer items than requested came in, so there is demand for it
+            if (!partial.isEmpty()) {
+                downstream.onNext(partial);
+            }
+            downstream.onComplete();
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                throw new IllegalArgumentException("request should be positive: " + n);
+            }
+            int next = 0;
+            synchronized (this) {
+                pending = pending + n < 0 ? Long.MAX_VALUE : pending + n;
+                if (size == 0 && batch != null) {
+                    next = startBatch();
+                }
+            }
+            if (next > 0) {
+                upstream.request(next);
+            }
+        }
+
+        @Override
+        public void cancel() {
+            upstream.cancel();
+        }
+
+        /**
+         * @return number of items to request for the new batch, or 0 if no batch is requested
+         */
+        private int startBatch() {
+            if (pending == 0) {
+                size = 0;
+                batch = new ArrayList<>();
+                return 0;
+            }
+            if (pending != Long.MAX_VALUE) {
+                pending--;
+            }
+            size = Math.max(1, sizes.next());
+            batch = new ArrayList<>(size);
+            return size;
+        }
+    }
+}
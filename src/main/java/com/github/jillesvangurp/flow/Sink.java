@@ -0,0 +1,98 @@
+package com.github.jillesvangurp.flow;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+
+import com.github.jillesvangurp.flow.Flow.Subscriber;
+import com.github.jillesvangurp.flow.Flow.Subscription;
+import com.jillesvangurp.iterables.Processor;
+
+/**
+ * End of a {@link Pipe} that hands each item to a processor. It asks for a few items up front and for one more after
+ * each item it processed, so it never has more than that waiting.
+ */
+public final class Sink<T> implements Subscriber<T> {
+    static final int PREFETCH = 16;
+
+    private final Processor<? super T, ?> processor;
+    private final CountDownLatch finished = new CountDownLatch(1);
+    private Subscription upstream;
+    private volatile Throwable error;
+    // also set by cancel, from another thread
+    private volatile boolean done = false;
+
+    Sink(Processor<? super T, ?> processor) {
+        this.processor = processor;
+    }
+
+    @Override
+    public void onSubscribe(Subscription subscription) {
+        upstream = subscription;
+        subscription.request(PREFETCH);
+    }
+
+    @Override
+    public void onNext(T item) {
+        if (done) {
+            return;
+        }
+        try {
+            processor.process(item);
+        } catch (RuntimeException e) {
+            upstream.cancel();
+            onError(e);
+            return;
+        }
+        upstream.request(1);
+    }
+
+    @Override
+    public synchronized void onError(Throwable throwable) {
+        if (!done) {
+            done = true;
+            error = throwable;
+            finished.countDown();
+        }
+    }
+
+    @Override
+    public synchronized void onComplete() {
+        if (!done) {
+            done = true;
+            finished.countDown();
+        }
+    }
+
+    /**
+     * Stops the pipe, e.g. because another pipe that works with it failed. Items that are already on their way are
+     * dropped and {@link #await()} fails.
+     */
+    public void cancel() {
+        upstream.cancel();
+        onError(new CancellationException("cancelled"));
+    }
+
+    public boolean isDone() {
+        return finished.getCount() == 0;
+    }
+
+    /**
+     * Waits until the pipe has finished.
+     *
+     * @throws IllegalStateException
+     *             if a stage failed, with the failure as the cause
+     */
+    public void await() {
+        try {
+            finished.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            upstream.cancel();
+            throw new IllegalStateException("interrupted while waiting for the pipe", e);
+        }
+        Throwable t = error;
+        if (t != null) {
+            throw new IllegalStateException("pipe failed: " + t.getMessage(), t);
+        }
+    }
+}
@@ -0,0 +1,362 @@
+package com.github.jillesvangurp.mergesort;
+
+import static com.jillesvangurp.iterables.Iterables.map;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.github.jillesvangurp.common.ParallelGzipReader;
+import com.github.jillesvangurp.common.ResourceUtil;
+import com.github.jillesvangurp.metrics.LoggingCounter;
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+import com.jillesvangurp.iterables.LineIterable;
+
+/**
+ * Read only key value store for looking up single entries in big sorted files without scanning them.
+ *
+ * The entries are stored sorted by key in separately compressed blocks. A sparse index with the first key of each block
+ * is kept in memory, so a lookup only has to inflate the block that may contain the key. Optionally, a Bloom filter
+ * answers most lookups of keys that are not in the store without touching the blocks at all.
+ *
+ * A store consists of three files next to each other: the blocks (.blocks), the index (.blockindex), and the Bloom
+ * filter (.bloom, if any). The blocks are memory mapped and lookups are safe to do from many threads.
+ */
+public class BlockStore implements Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(BlockStore.class);
+
+    public static final String BLOCKS_SUFFIX = ".blocks";
+    public static final String INDEX_SUFFIX = ".blockindex";
+    public static final String BLOOM_SUFFIX = ".bloom";
+
+    public static final int DEFAULT_BLOCK_SIZE = 64 * 1024;
+    // a mapped buffer can't be bigger than 2GB, so big files are mapped in segments
+    static final long MAX_SEGMENT_BYTES = 1024 * 1024 * 1024;
+
+    private final String[] firstKeys;
+    private final long[] offsets;
+    private final int[] lengths;
+    private final int[] blockSegments;
+    private final MappedByteBuffer[] segments;
+    private final long[] segmentStarts;
+    private final BloomFilter<CharSequence> bloomFilter;
+
+    private BlockStore(String[] firstKeys, long[] offsets, int[] lengths, FileChannel channel, BloomFilter<CharSequence> bloomFilter, long maxSegmentBytes)
+            throws IOException {
+        this.firstKeys = firstKeys;
+        this.offsets = offsets;
+        this.lengths = lengths;
+        this.bloomFilter = bloomFilter;
+        blockSegments = new int[offsets.length];
+        // segments start at block boundaries so a block is always in a single segment
+        List<Long> starts = new ArrayList<>();
+        List<Long> ends = new ArrayList<>();
+        for (int i = 0; i < offsets.length; i++) {
+            long end = offsets[i] + lengths[i];
+            if (starts.isEmpty() || end - starts.get(starts.size() - 1) > maxSegmentBytes) {
+                starts.add(offsets[i]);
+                ends.add(end);
+            } else {
+                ends.set(ends.size() - 1, end);
+            }
+            blockSegments[i] = starts.size() - 1;
+        }
+        segments = new MappedByteBuffer[starts.size()];
+        segmentStarts = new long[starts.size()];
+        for (int i = 0; i < segments.length; i++) {
+            segmentStarts[i] = starts.get(i);
+            segments[i] = channel.map(MapMode.READ_ONLY, starts.get(i), ends.get(i) - starts.get(i));
+        }
+    }
+
+    /**
+     * @param store
+     *            path of the store without the suffixes
+     * @return the store
+     */
+    public static BlockStore open(String store) throws IOException {
+        return open(store, MAX_SEGMENT_BYTES);
+    }
+
+    static BlockStore open(String store, long maxSegmentBytes) throws IOException {
+        List<String> keys = new ArrayList<>();
+        List<long[]> blocks = new ArrayList<>();
+        try (BufferedReader reader = ResourceUtil.fileReader(store + INDEX_SUFFIX)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                // the key may contain tabs, the numbers don't
+                int second = line.lastIndexOf('\t');
+                int first = line.lastIndexOf('\t', second - 1);
+                if (first < 0) {
+                    throw new IllegalStateException("corrupt block index " + store + INDEX_SUFFIX + ": " + line);
+                }
+                keys.add(line.substring(0, first));
+                blocks.add(new long[] { Long.valueOf(line.substring(first + 1, second)), Long.valueOf(line.substring(second + 1)) });
+            }
+        }
+        long[] offsets = new long[blocks.size()];
+        int[] lengths = new int[blocks.size()];
+        for (int i = 0; i < offsets.length; i++) {
+            offsets[i] = blocks.get(i)[0];
+            lengths[i] = (int) blocks.get(i)[1];
+        }
+        BloomFilter<CharSequence> bloomFilter = null;
+        File bloomFile = new File(store + BLOOM_SUFFIX);
+        if (bloomFile.exists()) {
+            try (ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(bloomFile)))) {
+                @SuppressWarnings("unchecked")
+                BloomFilter<CharSequence> read = (BloomFilter<CharSequence>) in.readObject();
+                bloomFilter = read;
+            } catch (ClassNotFoundException e) {
+                throw new IllegalStateException("cannot read bloom filter " + bloomFile, e);
+            }
+        }
+        // the mapped buffers stay valid after the channel is closed
+        try (FileInputStream in = new FileInputStream(store + BLOCKS_SUFFIX)) {
+            return new BlockStore(keys.toArray(new String[keys.size()]), offsets, lengths, in.getChannel(), bloomFilter, maxSegmentBytes);
+        }
+    }
+
+    /**
+     * @param key
+     *            key
+     * @return the value for the key or null if the store doesn't have it. If there are several values for the key, the
+     *         first one is returned.
+     */
+    public String get(String key) {
+        if (bloomFilter != null && !bloomFilter.mightContain(key)) {
+            return null;
+        }
+        int block = block(key);
+        if (block < 0) {
+            return null;
+        }
+        String content = inflate(block);
+        String prefix = key + ';';
+        int start;
+        if (content.startsWith(prefix)) {
+            start = 0;
+        } else {
+            start = content.indexOf('\n' + prefix);
+            if (start < 0) {
+                return null;
+            }
+            start++;
+        }
+        int end = content.indexOf('\n', start);
+        return content.substring(start + prefix.length(), end < 0 ? content.length() : end);
+    }
+
+    public String get(long id) {
+        return get("" + id);
+    }
+
+    /**
+     * @return number of blocks
+     */
+    public int blocks() {
+        return offsets.length;
+    }
+
+    int segments() {
+        return segments.length;
+    }
+
+    /**
+     * @return the last block with a first key that is not after the key, or -1 if all blocks start after the key
+     */
+    private int block(String key) {
+        int idx = Arrays.binarySearch(firstKeys, key);
+        return idx >= 0 ? idx : -idx - 2;
+    }
+
+    private String inflate(int block) {
+        // a duplicate has its own position, so concurrent lookups don't interfere
+        ByteBuffer buffer = segments[blockSegments[block]].duplicate();
+        buffer.position((int) (offsets[block] - segmentStarts[blockSegments[block]]));
+        byte[] compressed = new byte[lengths[block]];
+        buffer.get(compressed);
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(compressed.length * 4);
+            byte[] buf = new byte[64 * 1024];
+            while (!inflater.finished()) {
+                int n = inflater.inflate(buf);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IllegalStateException("block " + block + " is truncated");
+                }
+                out.write(buf, 0, n);
+            }
+            return new String(out.toByteArray(), ResourceUtil.UTF8);
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("block " + block + " is corrupt", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    @Override
+    public void close() {
+        // the mappings are released when the buffers are garbage collected
+    }
+
+    /**
+     * Writes a store.
+     *
+     * @param sortedEntries
+     *            entries sorted by key
+     * @param store
+     *            path of the store without the suffixes
+     * @param blockSize
+     *            uncompressed size of the blocks, bigger blocks compress better but make lookups slower. Entries with
+     *            the same key are kept in one block.
+     * @param expectedEntries
+     *            used to size the bloom filter
+     * @param bloomFpp
+     *            false positive probability of the Bloom filter, or 0 for no Bloom filter
+     * @throws IllegalArgumentException
+     *             if the entries are not sorted
+     */
+    public static void write(Iterable<Entry<String, String>> sortedEntries, String store, int blockSize, long expectedEntries, double bloomFpp)
+            throws IOException {
+        BloomFilter<CharSequence> bloomFilter = null;
+        if (bloomFpp > 0) {
+            bloomFilter = BloomFilter.create(Funnels.stringFunnel(ResourceUtil.UTF8), (int) Math.min(Integer.MAX_VALUE, Math.max(1, expectedEntries)), bloomFpp);
+        }
+        try (LoggingCounter counter = LoggingCounter.counter(LOG, "write block store " + store, "entries", 1000000)) {
+            try (OutputStream blocks = new BufferedOutputStream(new FileOutputStream(store + BLOCKS_SUFFIX), 1024 * 1024)) {
+                try (BufferedWriter index = ResourceUtil.fileWriter(store + INDEX_SUFFIX)) {
+                    Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+                    try {
+                        StringBuilder block = new StringBuilder();
+                        String firstKey = null;
+                        String lastKey = null;
+                        long offset = 0;
+                        for (Entry<String, String> entry : sortedEntries) {
+                            String key = entry.getKey();
+                            int cmp = lastKey == null ? 1 : key.compareTo(lastKey);
+                            if (cmp < 0) {
+                                throw new IllegalArgumentException("entries are not sorted, " + key + " comes after " + lastKey);
+                            }
+                            if (cmp > 0 && block.length() >= blockSize) {
+                                offset += writeBlock(deflater, block, firstKey, offset, blocks, index);
+                                block.setLength(0);
+                            }
+                            if (block.length() == 0) {
+                                firstKey = key;
+                            }
+                            block.append(key).append(';').append(entry.getValue()).append('\n');
+                            if (bloomFilter != null && cmp > 0) {
+                                bloomFilter.put(key);
+                            }
+                            lastKey = key;
+                            counter.inc();
+                        }
+                        if (block.length() > 0) {
+                            writeBlock(deflater, block, firstKey, offset, blocks, index);
+                        }
+                    } finally {
+                        deflater.end();
+                    }
+                }
+            }
+        }
+        File bloomFile = new File(store + BLOOM_SUFFIX);
+        if (bloomFilter != null) {
+            try (ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(bloomFile)))) {
+                out.writeObject(bloomFilter);
+            }
+        } else {
+            // don't leave a stale filter of an earlier store behind
+            FileUtils.deleteQuietly(bloomFile);
+        }
+    }
+
+    private static int writeBlock(Deflater deflater, StringBuilder block, String firstKey, long offset, OutputStream blocks, BufferedWriter index)
+            throws IOException {
+        byte[] bytes = block.toString().getBytes(ResourceUtil.UTF8);
+        deflater.reset();
+        deflater.setInput(bytes);
+        deflater.finish();
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(bytes.length / 3);
+        byte[] buf = new byte[64 * 1024];
+        while (!deflater.finished()) {
+            int n = deflater.deflate(buf);
+            compressed.write(buf, 0, n);
+        }
+        compressed.writeTo(blocks);
+        index.write(firstKey + "\t" + offset + "\t" + compressed.size() + "\n");
+        return compressed.size();
+    }
+
+    /**
+     * Writes a store with the entries of sorted gzip files with lines of key;value, e.g. the files written by
+     * {@link SortingWriter}. Several files are merged.
+     *
+     * @param sortedGzipFiles
+     *            sorted files
+     * @param store
+     *            path of the store without the suffixes
+     * @param blockSize
+     *            uncompressed size of the blocks
+     * @param bloomFpp
+     *            false positive probability of the Bloom filter, or 0 for no Bloom filter
+     */
+    public static void build(List<String> sortedGzipFiles, String store, int blockSize, double bloomFpp) throws IOException {
+        long expectedEntries = 0;
+        List<LineIterable> iterables = new ArrayList<>();
+        try {
+            for (String file : sortedGzipFiles) {
+                if (bloomFpp > 0) {
+                    // only the Bloom filter needs the count; without an index this inflates the file
+                    expectedEntries += ParallelGzipReader.index(file).lines();
+                }
+                iterables.add(ResourceUtil.gzipLineIterable(file));
+            }
+            Iterable<Entry<String, String>> entries = iterables.size() == 1 ? map(iterables.get(0), new EntryParsingProcessor())
+                    : new MergingEntryIterable(iterables);
+            write(entries, store, blockSize, expectedEntries, bloomFpp);
+        } finally {
+            for (LineIterable iterable : iterables) {
+                IOUtils.closeQuietly(iterable);
+            }
+        }
+    }
+
+    /**
+     * @param gzipFile
+     *            a .gz file
+     * @return path of the store for the file: the file without the .gz suffix
+     */
+    public static String storeName(String gzipFile) {
+        return gzipFile.endsWith(".gz") ? gzipFile.substring(0, gzipFile.length() - 3) : gzipFile;
+    }
+}
@@ -0,0 +1,14 @@
+package com.github.jillesvangurp.mergesort;
+
+import java.io.Closeable;
+
+/**
+ * Writes key value entries, e.g. to a sorted file with {@link SortingWriter}.
+ */
+public interface EntryWriter extends Closeable {
+    /**
+     * @param key the key
+     * @param value the value
+     */
+    void put(String key, String value);
+}
@@ -1,12 +1,14 @@
 package com.github.jillesvangurp.mergesort;
 
 import java.io.BufferedWriter;
-import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
+import java.io.Writer;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map.Entry;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
@@ -15,6 +17,7 @@ import org.apache.commons.lang.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.github.jillesvangurp.common.ReadAheadReader;
 import com.github.jillesvangurp.common.ResourceUtil;
 import com.github.jillesvangurp.metrics.LoggingCounter;
 import com.google.common.collect.Multimap;
@@ -26,16 +29,24 @@ import com.jillesvangurp.iterables.LineIterable;
  * Takes key value parameters and produces a file with lines of key;value sorted by key. Implements merge sort and uses
  * a temp directory to store in between files so it can sort more data than fits into memory.
  */
-public class SortingWriter implements Closeable {
+public class SortingWriter implements EntryWriter {
     private static Logger LOG=LoggerFactory.getLogger(SortingWriter.class);
 
     private final String output;
     private final int bucketSize;
+    private final long maxBucketBytes;
+    // rough estimate of the memory used by an entry besides the characters
+    private static final int ENTRY_OVERHEAD_BYTES = 128;
+    // the merge reads ahead on all buckets; it uses at most the bucket memory for that, since the bucket is empty by then
+    private static final long MAX_READ_AHEAD_BYTES = 256 * 1024 * 1024;
+    private static final int MIN_READ_AHEAD_CHARS = 4096;
+    private static final long MIN_FREE_BYTES = 1024l * 1024 * 1024;
+    private final AtomicLong bucketBytes = new AtomicLong();
     private int currentBucket = 0;
     private final List<String> bucketFiles = new ArrayList<>();
 
     Multimap<String, String> bucket = Multimaps.synchronizedMultimap(TreeMultimap.<String,String>create());
-    private final String tempDir;
+    private final List<String> tempDirs;
 
     ReadWriteLock bucketLock = new ReentrantReadWriteLock();
 
@@ -53,11 +64,51 @@ public class SortingWriter implements Closeable {
      * @throws IOException when creating the directory fails
      */
     public SortingWriter(String tempDir, String output, int bucketSize) throws IOException {
-        this.tempDir = tempDir;
+        this(tempDir, output, bucketSize, Long.MAX_VALUE);
+    }
+
+    /**
+     * @param tempDir
+     *            this directory is used for bucket files. Note. this class will blindly overwrite any pre-existing
+     *            bucket files.
+     * @param output
+     *            the file with the sorted output.
+     * @param bucketSize
+     *            the max number of entries in the bucket.
+     * @param maxBucketBytes
+     *            the bucket is also written to disk when the estimated memory used by its entries exceeds this. This
+     *            keeps memory usage in check when the record sizes vary a lot.
+     * @throws IOException when creating the directory fails
+     */
+    public SortingWriter(String tempDir, String output, int bucketSize, long maxBucketBytes) throws IOException {
+        this(Collections.singletonList(tempDir), output, bucketSize, maxBucketBytes);
+    }
+
+    /**
+     * @param tempDirs
+     *            directories for the bucket files, ideally on different disks. Buckets are spread over them round
+     *            robin, skipping directories that are almost full. Note. this class will blindly overwrite any
+     *            pre-existing bucket files.
+     * @param output
+     *            the file with the sorted output.
+     * @param bucketSize
+     *            the max number of entries in the bucket.
+     * @param maxBucketBytes
+     *            the bucket is also written to disk when the estimated memory used by its entries exceeds this.
+     * @throws IOException when creating the directories fails
+     */
+    public SortingWriter(List<String> tempDirs, String output, int bucketSize, long maxBucketBytes) throws IOException {
+        if (tempDirs.isEmpty()) {
+            throw new IllegalArgumentException("at least one temp dir is needed");
+        }
+        this.tempDirs = tempDirs;
         this.output = output;
         this.bucketSize = bucketSize;
-        if(StringUtils.isNotEmpty(tempDir)) {
-            FileUtils.forceMkdir(new File(tempDir));
+        this.maxBucketBytes = maxBucketBytes;
+        for (String tempDir : tempDirs) {
+            if(StringUtils.isNotEmpty(tempDir)) {
+                FileUtils.forceMkdir(new File(tempDir));
+            }
         }
         loggingCounter = LoggingCounter.counter(LOG, "sort buckets " + output , "lines", 100000);
     }
@@ -67,8 +118,9 @@ public class SortingWriter implements Closeable {
      * @param key the key to sort on
      * @param value the value
      */
+    @Override
     public void put(String key, String value) {
-        if (bucket.size() >= bucketSize) {
+        if (bucketFull()) {
             flushBucket(false);
         }
         bucketLock.readLock().lock();
@@ -78,6 +130,7 @@ public class SortingWriter implements Closeable {
                 // TODO better alternative than loggin?
                 // LOG.warn("failed to add " +key+";"+value);
             } else {
+                bucketBytes.addAndGet(2l * (key.length() + value.length()) + ENTRY_OVERHEAD_BYTES);
                 loggingCounter.inc();
             }
         } finally {
@@ -85,27 +138,32 @@ public class SortingWriter implements Closeable {
         }
     }
 
+    private boolean bucketFull() {
+        return bucket.size() >= bucketSize || bucketBytes.get() >= maxBucketBytes;
+    }
+
     private void flushBucket(boolean skipSizeCheck) {
         Multimap<String, String> oldBucket=null;
         int bucketNr=-1;
         bucketLock.writeLock().lock();
         try {
-            if(bucket.size() > bucketSize || skipSizeCheck) {
+            if(bucketFull() || skipSizeCheck) {
                 // atomically switch over the bucket and then write the old one
                 oldBucket = bucket;
                 bucketNr= currentBucket;
                 currentBucket++;
                 bucket = Multimaps.synchronizedMultimap(TreeMultimap.<String,String>create());
+                bucketBytes.set(0);
             }
         } finally {
             bucketLock.writeLock().unlock();
         }
         if(oldBucket != null) {
-            File file = new File(tempDir, "bucket-" + bucketNr + ".gz");
+            File file = new File(bucketDir(bucketNr), "bucket-" + bucketNr + ".gz");
 
             try (BufferedWriter bw = ResourceUtil.gzipFileWriter(file.getAbsolutePath())) {
                 for (Entry<String, String> e : oldBucket.entries()) {
-                    bw.write(e.getKey() + ";" + e.getValue() + "\n");
+                    writeLine(bw, e);
                 }
                 bucketFiles.add(file.getAbsolutePath());
             } catch (IOException e) {
@@ -114,6 +172,36 @@ public class SortingWriter implements Closeable {
         }
     }
 
+    /**
+     * @return the temp dir for the bucket, round robin over the temp dirs that have some space left
+     */
+    private String bucketDir(int bucketNr) {
+        for (int i = 0; i < tempDirs.size(); i++) {
+            String dir = tempDirs.get((bucketNr + i) % tempDirs.size());
+            if (tempDirs.size() == 1 || new File(dir).getUsableSpace() >= MIN_FREE_BYTES) {
+                return dir;
+            }
+        }
+        // all of them are almost full, let's hope for the best
+        return tempDirs.get(bucketNr % tempDirs.size());
+    }
+
+    /**
+     * @return chars per read ahead buffer, such that the two buffers of each bucket together stay within the budget
+     */
+    static int readAheadChars(long budgetBytes, int buckets) {
+        long chars = budgetBytes / Math.max(1, buckets) / 4;
+        return (int) Math.max(MIN_READ_AHEAD_CHARS, Math.min(ReadAheadReader.DEFAULT_CHUNK_CHARS, chars));
+    }
+
+    private static void writeLine(Writer writer, Entry<String, String> e) throws IOException {
+        // avoid concatenating a copy of the line
+        writer.write(e.getKey());
+        writer.write(';');
+        writer.write(e.getValue());
+        writer.write('\n');
+    }
+
     @Override
     public void close() throws IOException {
         if (bucket.size() > 0) {
@@ -123,19 +211,20 @@ public class SortingWriter implements Closeable {
         loggingCounter.close();
         LoggingCounter mergeCounter = LoggingCounter.counter(LOG, "merge buckets into "  + output, " lines", 100000);
         List<LineIterable> lineIterables = new ArrayList<>();
+        int chunkChars = readAheadChars(Math.min(maxBucketBytes, MAX_READ_AHEAD_BYTES), bucketFiles.size());
         try {
             // important, ensure you have enough filehandles available for the number of buckets. In Linux, you may need to configure this. See README.
             for (String file : bucketFiles) {
-                lineIterables.add(LineIterable.openGzipFile(file));
+                lineIterables.add(new LineIterable(ResourceUtil.readAheadGzipReader(file, chunkChars)));
             }
-            LOG.info("merging " + lineIterables.size() + " buckets");
+            LOG.info("merging " + lineIterables.size() + " buckets, reading ahead " + chunkChars + " chars per bucket");
 
             // merge the buckets
             MergingEntryIterable merged = new MergingEntryIterable(lineIterables);
 
             try (BufferedWriter bw = ResourceUtil.gzipFileWriter(output)) {
                 for (Entry<String, String> entry : merged) {
-                    bw.write(entry.toString() + '\n');
+                    writeLine(bw, entry);
                     mergeCounter.inc();
                 }
             }
@@ -148,7 +237,9 @@ public class SortingWriter implements Closeable {
                 }
             }
             mergeCounter.close();
-            FileUtils.deleteDirectory(new File(tempDir));
+            for (String tempDir : tempDirs) {
+                FileUtils.deleteDirectory(new File(tempDir));
+            }
         }
     }
 }
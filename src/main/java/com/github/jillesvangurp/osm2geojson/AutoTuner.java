@@ -0,0 +1,198 @@
+package com.github.jillesvangurp.osm2geojson;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Derives thread counts, block sizes, queue sizes, and bucket memory from the number of cores, the max heap, and the
+ * record sizes measured while running.
+ *
+ * Block sizes are expressed as a target number of characters per block so that stages with small records (xml blobs of
+ * untagged nodes) get big blocks and stages with huge records (joined relations) get small ones. The target itself is
+ * fixed: the runs of a stage within one process are different joins with different records, so comparing their
+ * throughput says nothing about the block size.
+ */
+public class AutoTuner {
+    private static final Logger LOG = LoggerFactory.getLogger(AutoTuner.class);
+
+    private static final long TARGET_BLOCK_CHARS = 128 * 1024;
+
+    public enum Stage {
+        SPLIT(300), JOIN(1000), POSTPROCESS(1000);
+
+        // initial guess until we have measured something
+        private final int expectedRecordChars;
+
+        private Stage(int expectedRecordChars) {
+            this.expectedRecordChars = expectedRecordChars;
+        }
+    }
+
+    private final String name;
+    private final int cores;
+    private final long maxHeap;
+    private final StageStats[] stats = new StageStats[Stage.values().length];
+    private final ConcurrentHashMap<String, AutoTuner> named = new ConcurrentHashMap<>();
+
+    public AutoTuner() {
+        this(Runtime.getRuntime().availableProcessors(), Runtime.getRuntime().maxMemory());
+    }
+
+    AutoTuner(int cores, long maxHeap) {
+        this.name = null;
+        this.cores = cores;
+        this.maxHeap = maxHeap;
+        for (Stage stage : Stage.values()) {
+            stats[stage.ordinal()] = new StageStats(stage.expectedRecordChars, null);
+        }
+    }
+
+    private AutoTuner(String name, AutoTuner parent) {
+        this.name = name;
+        this.cores = parent.cores;
+        this.maxHeap = parent.maxHeap;
+        for (Stage stage : Stage.values()) {
+            StageStats parentStats = parent.stats[stage.ordinal()];
+            stats[stage.ordinal()] = new StageStats(parentStats.averageRecordChars(), parentStats);
+        }
+    }
+
+    /**
+     * @param name
+     *            name of a stage that may run at the same time as other stages of the same kind
+     * @return tuner with the same cores and heap but its own measurements, so overlapping stages don't mix their
+     *         record sizes. Until it has measured something itself it uses what this tuner measured so far, and its
+     *         measurements are added to those of this tuner, so a stage that starts later begins with the record
+     *         sizes of the stages of the same kind that ran before it.
+     */
+    public AutoTuner forStage(String name) {
+        AutoTuner tuner = named.get(name);
+        if (tuner == null) {
+            AutoTuner created = new AutoTuner(name, this);
+            tuner = named.putIfAbsent(name, created);
+            if (tuner == null) {
+                tuner = created;
+            }
+        }
+        return tuner;
+    }
+
+    public int threads() {
+        return Math.max(2, cores);
+    }
+
+    public int blockSize(Stage stage) {
+        StageStats s = stats[stage.ordinal()];
+        return (int) clamp(TARGET_BLOCK_CHARS / s.averageRecordChars(), 1, 10000);
+    }
+
+    /**
+     * @return number of blocks that may be queued; bounded so that the queued blocks use at most 10% of the heap
+     */
+    public int queueSize(Stage stage) {
+        StageStats s = stats[stage.ordinal()];
+        long blockBytes = Math.max(1, blockSize(stage) * s.averageRecordChars() * 2);
+        return (int) clamp(maxHeap / 10 / blockBytes, threads() * 2, 10000);
+    }
+
+    /**
+     * @param concurrentWriters
+     *            number of sorting writers that are open at the same time
+     * @param heapFraction
+     *            fraction of the heap to use for buckets
+     * @return max number of bytes the in memory bucket of a sorting writer should use
+     */
+    public long maxBucketBytes(int concurrentWriters, double heapFraction) {
+        return heapBytes(heapFraction) / Math.max(1, concurrentWriters);
+    }
+
+    public long heapBytes(double heapFraction) {
+        return (long) (maxHeap * heapFraction);
+    }
+
+    /**
+     * Wraps the input of a stage to measure the record sizes and throughput. Call {@link #completed(Stage)} when the
+     * stage is done.
+     */
+    public Iterable<String> measure(Stage stage, Iterable<String> input) {
+        return measure(stage, input, true);
+    }
+
+    /**
+     * Like {@link #measure(Stage, Iterable)} but only counts the characters, for an input whose records end up in the
+     * records of another input, like the right side of a join.
+     */
+    public Iterable<String> measureChars(Stage stage, Iterable<String> input) {
+        return measure(stage, input, false);
+    }
+
+    private Iterable<String> measure(final Stage stage, final Iterable<String> input, final boolean countRecords) {
+        final StageStats s = stats[stage.ordinal()];
+        return new Iterable<String>() {
+
+            @Override
+            public Iterator<String> iterator() {
+                final Iterator<String> it = input.iterator();
+                return new Iterator<String>() {
+
+                    @Override
+                    public boolean hasNext() {
+                        return it.hasNext();
+                    }
+
+                    @Override
+                    public String next() {
+                        String next = it.next();
+                        s.add(countRecords ? 1 : 0, next.length());
+                        return next;
+                    }
+
+                    @Override
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+        };
+    }
+
+    public void completed(Stage stage) {
+        StageStats s = stats[stage.ordinal()];
+        LOG.info((name != null ? name + " " : "") + stage + ": avg record " + s.averageRecordChars() + " chars, block size " + blockSize(stage) + ", queue size " + queueSize(stage));
+    }
+
+    private static long clamp(long value, long min, long max) {
+        return Math.max(min, Math.min(max, value));
+    }
+
+    private static class StageStats {
+        final AtomicLong records = new AtomicLong();
+        final AtomicLong chars = new AtomicLong();
+        private final long expectedRecordChars;
+        private final StageStats parent;
+
+        StageStats(long expectedRecordChars, StageStats parent) {
+            this.expectedRecordChars = expectedRecordChars;
+            this.parent = parent;
+        }
+
+        void add(long recordCount, long charCount) {
+            if (recordCount > 0) {
+                records.addAndGet(recordCount);
+            }
+            chars.addAndGet(charCount);
+            if (parent != null) {
+                parent.add(recordCount, charCount);
+            }
+        }
+
+        long averageRecordChars() {
+            long r = records.get();
+            return r == 0 ? expectedRecordChars : Math.max(1, chars.get() / r);
+        }
+    }
+}
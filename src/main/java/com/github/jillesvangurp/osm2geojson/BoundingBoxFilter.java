@@ -0,0 +1,49 @@
+package com.github.jillesvangurp.osm2geojson;
+
+/**
+ * Region filter for a simple bounding box.
+ */
+public class BoundingBoxFilter implements RegionFilter {
+    private final double minLat;
+    private final double minLon;
+    private final double maxLat;
+    private final double maxLon;
+
+    public BoundingBoxFilter(double minLon, double minLat, double maxLon, double maxLat) {
+        if (minLat > maxLat || minLon > maxLon) {
+            throw new IllegalArgumentException("min should be smaller than max " + minLon + "," + minLat + "," + maxLon + "," + maxLat);
+        }
+        this.minLat = minLat;
+        this.minLon = minLon;
+        this.maxLat = maxLat;
+        this.maxLon = maxLon;
+    }
+
+    /**
+     * @param bbox
+     *            minLon,minLat,maxLon,maxLat (same order as used by geojson and most osm tools)
+     * @return the filter
+     */
+    public static BoundingBoxFilter parse(String bbox) {
+        String[] parts = bbox.split(",");
+        if (parts.length != 4) {
+            throw new IllegalArgumentException("expected minLon,minLat,maxLon,maxLat but was " + bbox);
+        }
+        try {
+            return new BoundingBoxFilter(Double.valueOf(parts[0].trim()), Double.valueOf(parts[1].trim()), Double.valueOf(parts[2].trim()),
+                    Double.valueOf(parts[3].trim()));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("expected minLon,minLat,maxLon,maxLat but was " + bbox, e);
+        }
+    }
+
+    @Override
+    public boolean contains(double latitude, double longitude) {
+        return latitude >= minLat && latitude <= maxLat && longitude >= minLon && longitude <= maxLon;
+    }
+
+    @Override
+    public String toString() {
+        return "bbox " + minLon + "," + minLat + "," + maxLon + "," + maxLat;
+    }
+}
@@ -9,6 +9,8 @@ import java.util.NoSuchElementException;
 
 import org.apache.commons.lang.StringUtils;
 
+import com.github.jillesvangurp.common.ResourceUtil;
+import com.github.jillesvangurp.osm2geojson.AutoTuner.Stage;
 import com.github.jillesvangurp.osm2geojson.EntryJoiningIterable.JoinedEntries;
 import com.jillesvangurp.iterables.LineIterable;
 import com.jillesvangurp.iterables.PeekableIterator;
@@ -17,18 +19,45 @@ import com.jillesvangurp.iterables.Processor;
 public class EntryJoiningIterable implements Iterable<JoinedEntries> {
     private final PeekableIterator<Entry<String,String>> left;
     private final PeekableIterator<Entry<String,String>> right;
+    private final boolean leftOuter;
 
     EntryJoiningIterable(Iterable<String> l, Iterable<String> r) {
+        this(l, r, false);
+    }
+
+    /**
+     * @param l left
+     * @param r right
+     * @param leftOuter if true, left entries without matching right entries are included with an empty right list
+     */
+    EntryJoiningIterable(Iterable<String> l, Iterable<String> r, boolean leftOuter) {
         left=OsmJoin.peekableEntryIterable(l);
         right=OsmJoin.peekableEntryIterable(r);
+        this.leftOuter = leftOuter;
     }
 
     public static void join(String leftMapFile, String rightMapFile, Processor<JoinedEntries, Boolean> processor) {
+        join(leftMapFile, rightMapFile, new RunConfig(), processor);
+    }
+
+    public static void join(String leftMapFile, String rightMapFile, RunConfig config, Processor<JoinedEntries, Boolean> processor) {
+        join(leftMapFile, rightMapFile, config, processor, false);
+    }
+
+    /**
+     * Like join but also processes left entries that have no matching right entries.
+     */
+    public static void leftJoin(String leftMapFile, String rightMapFile, RunConfig config, Processor<JoinedEntries, Boolean> processor) {
+        join(leftMapFile, rightMapFile, config, processor, true);
+    }
+
+    private static void join(String leftMapFile, String rightMapFile, RunConfig config, Processor<JoinedEntries, Boolean> processor, boolean leftOuter) {
         try {
-            try(LineIterable l= LineIterable.openGzipFile(leftMapFile)) {
-                try(LineIterable r= LineIterable.openGzipFile(rightMapFile)) {
-                    EntryJoiningIterable iterable = new EntryJoiningIterable(l, r);
-                    OsmJoin.processIt(iterable, processor, 100, 9, 1000);
+            try(LineIterable l= ResourceUtil.gzipLineIterable(leftMapFile)) {
+                try(LineIterable r= ResourceUtil.gzipLineIterable(rightMapFile)) {
+                    EntryJoiningIterable iterable = new EntryJoiningIterable(config.tuner().measure(Stage.JOIN, l), config.tuner().measureChars(Stage.JOIN, r), leftOuter);
+                    OsmJoin.processIt(iterable, processor, config, Stage.JOIN);
+                    config.tuner().completed(Stage.JOIN);
                 }
             }
         } catch (IOException e) {
@@ -45,7 +74,7 @@ public class EntryJoiningIterable implements Iterable<JoinedEntries> {
                 if(next != null) {
                     return true;
                 } else {
-                    while(left.hasNext() && right.hasNext()) {
+                    while(left.hasNext() && (leftOuter || right.hasNext())) {
                         next=new JoinedEntries();
                         Entry<String, String> leftEntry = left.next();
                         String leftKey = leftEntry.getKey();
@@ -57,7 +86,7 @@ public class EntryJoiningIterable implements Iterable<JoinedEntries> {
                         while(right.hasNext() && leftKey.equals(right.peek().getKey())) {
                             next.right.add(right.next());
                         }
-                        if(next.right.size() > 0) {
+                        if(next.right.size() > 0 || leftOuter) {
                             next.left.add(leftEntry);
                             // add any left entries with same id
                             while(left.hasNext() && leftKey.equals(left.peek().getKey())) {
@@ -0,0 +1,247 @@
+package com.github.jillesvangurp.osm2geojson;
+
+import static com.github.jsonj.tools.JsonBuilder.array;
+import static com.github.jsonj.tools.JsonBuilder.primitive;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.github.jsonj.JsonArray;
+import com.github.jsonj.JsonElement;
+import com.github.jsonj.JsonObject;
+
+/**
+ * Simplifies geojson geometries with Douglas-Peucker and rounds coordinates to a fixed number of decimals. Both are
+ * off by default.
+ *
+ * The tolerance (in degrees) is configured per category with simplify.&lt;category&gt;, e.g.
+ * simplify.natural:coastline=0.0005. A key without value such as simplify.highway applies to all categories of that
+ * key and simplify.default applies to everything else. If an object has multiple categories with a tolerance, the
+ * smallest one wins. Coordinates are rounded with coordinatePrecision=&lt;decimals&gt;.
+ *
+ * Thread safe, so it can be used from the concurrent processors.
+ */
+public class GeometrySimplifier {
+    private static final Logger LOG = LoggerFactory.getLogger(GeometrySimplifier.class);
+
+    private final RunConfig config;
+    private final double defaultTolerance;
+    private final int precision;
+    private final double factor;
+    // category -> tolerance, so we only look at the config once per category
+    private final ConcurrentMap<String, Double> tolerances = new ConcurrentHashMap<>();
+    private final AtomicLong vertices = new AtomicLong();
+    private final AtomicLong removed = new AtomicLong();
+
+    public GeometrySimplifier(RunConfig config) {
+        this.config = config;
+        defaultTolerance = config.getDouble("simplify.default", 0);
+        precision = config.getInt("coordinatePrecision", -1);
+        factor = Math.pow(10, Math.max(0, precision));
+    }
+
+    /**
+     * Simplifies the geometry of the geojson in place, using the tolerance for its categories.
+     *
+     * @param geoJson
+     *            geojson object with a geometry and categories
+     * @return the geojson
+     */
+    public JsonObject apply(JsonObject geoJson) {
+        if (geoJson == null) {
+            return null;
+        }
+        double tolerance = tolerance(geoJson.getObject("categories"));
+        if (tolerance <= 0 && precision < 0) {
+            return geoJson;
+        }
+        JsonObject geometry = geoJson.getObject("geometry");
+        String type = geometry.getString("type");
+        JsonArray coordinates = geometry.getArray("coordinates");
+        switch (type) {
+        case "Point":
+            geometry.put("coordinates", point(coordinates.get(0).asDouble(), coordinates.get(1).asDouble()));
+            break;
+        case "LineString":
+            geometry.put("coordinates", line(coordinates, tolerance, false));
+            break;
+        case "Polygon":
+            geometry.put("coordinates", rings(coordinates, tolerance));
+            break;
+        case "MultiPolygon":
+            JsonArray polygons = array();
+            for (JsonElement polygon : coordinates) {
+                polygons.add(rings(polygon.asArray(), tolerance));
+            }
+            geometry.put("coordinates", polygons);
+            break;
+        default:
+            break;
+        }
+        return geoJson;
+    }
+
+    private double tolerance(JsonObject categories) {
+        if (categories == null || categories.getArray("osm") == null) {
+            return defaultTolerance;
+        }
+        double min = Double.MAX_VALUE;
+        for (JsonElement category : categories.getArray("osm")) {
+            double tolerance = tolerance(category.asString());
+            if (tolerance >= 0) {
+                min = Math.min(min, tolerance);
+            }
+        }
+        return min == Double.MAX_VALUE ? defaultTolerance : min;
+    }
+
+    /**
+     * @return the configured tolerance for the category or -1 if there is none
+     */
+    private double tolerance(String category) {
+        Double tolerance = tolerances.get(category);
+        if (tolerance == null) {
+            double value = config.getDouble("simplify." + category, -1);
+            int idx = category.indexOf(':');
+            if (value < 0 && idx > 0) {
+                value = config.getDouble("simplify." + category.substring(0, idx), -1);
+            }
+            tolerance = value;
+            tolerances.put(category, tolerance);
+        }
+        return tolerance;
+    }
+
+    private JsonArray rings(JsonArray rings, double tolerance) {
+        JsonArray result = array();
+        for (JsonElement ring : rings) {
+            result.add(line(ring.asArray(), tolerance, true));
+        }
+        return result;
+    }
+
+    private JsonArray line(JsonArray points, double tolerance, boolean ring) {
+        double[] lonLats = new double[points.size() * 2];
+        int i = 0;
+        for (JsonElement p : points) {
+            JsonArray point = p.asArray();
+            lonLats[i++] = point.get(0).asDouble();
+            lonLats[i++] = point.get(1).asDouble();
+        }
+        double[] simplified = tolerance > 0 ? simplify(lonLats, tolerance, ring ? 4 : 2) : lonLats;
+        vertices.addAndGet(points.size());
+        removed.addAndGet(points.size() - simplified.length / 2);
+        JsonArray result = array();
+        for (int j = 0; j < simplified.length; j += 2) {
+            result.add(point(simplified[j], simplified[j + 1]));
+        }
+        return result;
+    }
+
+    private JsonArray point(double lon, double lat) {
+        JsonArray point = array();
+        point.add(primitive(round(lon)));
+        point.add(primitive(round(lat)));
+        return point;
+    }
+
+    private double round(double value) {
+        return precision < 0 ? value : Math.round(value * factor) / factor;
+    }
+
+    /**
+     * Douglas-Peucker without recursion, so long coast lines don't blow the stack.
+     *
+     * @param lonLats
+     *            lon,lat pairs
+     * @param tolerance
+     *            max distance in degrees of a removed point to the simplified line
+     * @param minPoints
+     *            minimum number of points to keep, e.g. 4 for rings; if the result would have less, the input is
+     *            returned
+     * @return simplified lon,lat pairs, the first and last point are always kept
+     */
+    static double[] simplify(double[] lonLats, double tolerance, int minPoints) {
+        int n = lonLats.length / 2;
+        if (n <= minPoints) {
+            return lonLats;
+        }
+        boolean[] keep = new boolean[n];
+        keep[0] = true;
+        keep[n - 1] = true;
+        ArrayDeque<int[]> stack = new ArrayDeque<>();
+        stack.push(new int[] { 0, n - 1 });
+        double toleranceSquared = tolerance * tolerance;
+        while (!stack.isEmpty()) {
+            int[] range = stack.pop();
+            int first = range[0];
+            int last = range[1];
+            double maxDistance = -1;
+            int index = -1;
+            for (int i = first + 1; i < last; i++) {
+                double d = distanceSquared(lonLats, i, first, last);
+                if (d > maxDistance) {
+                    maxDistance = d;
+                    index = i;
+                }
+            }
+            if (index > 0 && maxDistance > toleranceSquared) {
+                keep[index] = true;
+                stack.push(new int[] { first, index });
+                stack.push(new int[] { index, last });
+            }
+        }
+        int kept = 0;
+        for (boolean k : keep) {
+            if (k) {
+                kept++;
+            }
+        }
+        if (kept < minPoints) {
+            return lonLats;
+        }
+        double[] result = new double[kept * 2];
+        int j = 0;
+        for (int i = 0; i < n; i++) {
+            if (keep[i]) {
+                result[j++] = lonLats[i * 2];
+                result[j++] = lonLats[i * 2 + 1];
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return squared distance of point i to the segment between first and last
+     */
+    private static double distanceSquared(double[] lonLats, int i, int first, int last) {
+        double x = lonLats[i * 2], y = lonLats[i * 2 + 1];
+        double x1 = lonLats[first * 2], y1 = lonLats[first * 2 + 1];
+        double x2 = lonLats[last * 2], y2 = lonLats[last * 2 + 1];
+        double dx = x2 - x1, dy = y2 - y1;
+        double lengthSquared = dx * dx + dy * dy;
+        if (lengthSquared == 0) {
+            // closed ring, first and last are the same point
+            return (x - x1) * (x - x1) + (y - y1) * (y - y1);
+        }
+        double t = Math.max(0, Math.min(1, ((x - x1) * dx + (y - y1) * dy) / lengthSquared));
+        double px = x1 + t * dx - x, py = y1 + t * dy - y;
+        return px * px + py * py;
+    }
+
+    public long removedVertices() {
+        return removed.get();
+    }
+
+    public void logStats() {
+        long total = vertices.get();
+        if (total > 0) {
+            LOG.info(String.format("simplification removed %d of %d vertices (%.1f%%)", removed.get(), total, removed.get() * 100.0 / total));
+        }
+    }
+}
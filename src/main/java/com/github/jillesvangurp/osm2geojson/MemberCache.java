@@ -0,0 +1,103 @@
+package com.github.jillesvangurp.osm2geojson;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.github.jillesvangurp.common.RawJson;
+import com.github.jsonj.JsonObject;
+import com.github.jsonj.tools.JsonParser;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.Weigher;
+
+/**
+ * Bounded cache of parsed relation members (nodes or ways) keyed by their id. Popular members, e.g. the ways that make
+ * up shared boundary segments, are part of thousands of relations and would otherwise be parsed again for each of
+ * them.
+ *
+ * Entries are weighed by the length of their json so that a few huge ways cannot push out everything else. The cached
+ * objects are shared between relations, so they must not be modified after they are added to a relation. Use one cache
+ * per member type since node and way ids overlap.
+ */
+public class MemberCache {
+    private static final Logger LOG = LoggerFactory.getLogger(MemberCache.class);
+
+    // rough memory used by a parsed object per character of json
+    private static final int BYTES_PER_CHAR = 8;
+
+    private final String name;
+    private final JsonParser parser;
+    private final Cache<Long, Member> cache;
+
+    /**
+     * @param name
+     *            used for logging
+     * @param parser
+     *            parser
+     * @param maxBytes
+     *            approximate max memory used by the cached objects
+     * @param concurrencyLevel
+     *            number of threads using the cache
+     */
+    public MemberCache(String name, JsonParser parser, long maxBytes, int concurrencyLevel) {
+        this.name = name;
+        this.parser = parser;
+        cache = CacheBuilder.newBuilder()
+                .maximumWeight(Math.max(1, maxBytes))
+                .weigher(new Weigher<Long, Member>() {
+                    @Override
+                    public int weigh(Long key, Member value) {
+                        return value.weight;
+                    }
+                })
+                .concurrencyLevel(Math.max(1, concurrencyLevel))
+                .recordStats()
+                .build();
+    }
+
+    /**
+     * @param json
+     *            json of a node or way as produced by OsmJoin; the id is always the first field
+     * @return the parsed object, from the cache if it was parsed before
+     */
+    public JsonObject get(final String json) {
+        long id = RawJson.id(json);
+        if (id < 0) {
+            // not something we can key on
+            return parser.parse(json).asObject();
+        }
+        try {
+            return cache.get(id, new Callable<Member>() {
+                @Override
+                public Member call() throws Exception {
+                    return new Member(parser.parse(json).asObject(), (int) Math.min(Integer.MAX_VALUE, (long) json.length() * BYTES_PER_CHAR));
+                }
+            }).object;
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("cannot parse " + json, e.getCause());
+        }
+    }
+
+    public CacheStats stats() {
+        return cache.stats();
+    }
+
+    public void logStats() {
+        CacheStats stats = cache.stats();
+        LOG.info(String.format("%s cache: %d requests, hit rate %.3f, %d evictions, %d entries", name, stats.requestCount(), stats.hitRate(), stats.evictionCount(), cache.size()));
+    }
+
+    private static class Member {
+        final JsonObject object;
+        final int weight;
+
+        Member(JsonObject object, int weight) {
+            this.object = object;
+            this.weight = weight;
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package com.github.jillesvangurp.osm2geojson;
+
+import java.util.NoSuchElementException;
+
+/**
+ * Compact encoding of the node ids of a way, like the delta coded refs in the osm pbf format. The nodes of a way are
+ * mostly close together, so each id is stored as the zigzag encoded difference with the previous one, as a varint.
+ * The varint uses five bits per character and a character set that needs no escaping in json, so the encoded refs are
+ * a plain json string: a way with ten nodes takes a dozen or so characters instead of well over a hundred.
+ */
+public class NodeRefs {
+    // the first half ends a number, the second half means more characters follow
+    private static final String DIGITS = "0123456789abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ-_";
+    private static final int[] VALUES = new int[128];
+    static {
+        for (int i = 0; i < VALUES.length; i++) {
+            VALUES[i] = -1;
+        }
+        for (int i = 0; i < DIGITS.length(); i++) {
+            VALUES[DIGITS.charAt(i)] = i;
+        }
+    }
+
+    /**
+     * @param ids
+     *            node ids
+     * @param count
+     *            number of ids to encode
+     * @return the encoded ids
+     */
+    public static String encode(long[] ids, int count) {
+        StringBuilder buf = new StringBuilder(count * 2 + 8);
+        long previous = 0;
+        for (int i = 0; i < count; i++) {
+            long delta = ids[i] - previous;
+            previous = ids[i];
+            long zigzag = (delta << 1) ^ (delta >> 63);
+            while ((zigzag & ~31l) != 0) {
+                buf.append(DIGITS.charAt(32 + (int) (zigzag & 31)));
+                zigzag >>>= 5;
+            }
+            buf.append(DIGITS.charAt((int) zigzag));
+        }
+        return buf.toString();
+    }
+
+    /**
+     * @return iterator over the ids encoded in the whole string
+     */
+    public static Iterator iterator(CharSequence encoded) {
+        return new Iterator(encoded, 0, encoded.length());
+    }
+
+    /**
+     * @return iterator over the ids encoded in a range of chars, e.g. the value of the field in the way json without
+     *         the quotes
+     */
+    public static Iterator iterator(CharSequence chars, int start, int end) {
+        return new Iterator(chars, start, end);
+    }
+
+    /**
+     * Decodes the ids one at a time, without boxing them or creating an array.
+     */
+    public static final class Iterator {
+        private final CharSequence chars;
+        private final int end;
+        private int pos;
+        private long previous = 0;
+
+        private Iterator(CharSequence chars, int start, int end) {
+            this.chars = chars;
+            this.pos = start;
+            this.end = end;
+        }
+
+        public boolean hasNext() {
+            return pos < end;
+        }
+
+        /**
+         * @return the next id
+         * @throws NoSuchElementException
+         *             if there are no more ids
+         * @throws IllegalArgumentException
+         *             if the refs are not encoded correctly
+         */
+        public long next() {
+            if (pos >= end) {
+                throw new NoSuchElementException();
+            }
+            long zigzag = 0;
+            int shift = 0;
+            while (true) {
+                if (pos >= end) {
+                    throw new IllegalArgumentException("truncated node refs");
+                }
+                char c = chars.charAt(pos++);
+                int value = c < VALUES.length ? VALUES[c] : -1;
+                if (value < 0) {
+                    throw new IllegalArgumentException("unexpected character in node refs: " + c);
+                }
+                if (value < 32) {
+                    zigzag |= (long) value << shift;
+                    break;
+                }
+                zigzag |= (long) (value - 32) << shift;
+                shift += 5;
+            }
+            previous += (zigzag >>> 1) ^ -(zigzag & 1);
+            return previous;
+        }
+    }
+}
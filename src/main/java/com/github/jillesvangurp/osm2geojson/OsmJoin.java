@@ -1,17 +1,28 @@
 package com.github.jillesvangurp.osm2geojson;
 
+import static com.github.jillesvangurp.osm2geojson.StageScheduler.files;
 import static com.github.jsonj.tools.JsonBuilder.array;
 import static com.github.jsonj.tools.JsonBuilder.object;
 import static com.github.jsonj.tools.JsonBuilder.primitive;
-import static com.jillesvangurp.iterables.Iterables.consume;
 import static com.jillesvangurp.iterables.Iterables.map;
-import static com.jillesvangurp.iterables.Iterables.processConcurrently;
 
 import java.io.BufferedWriter;
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -22,15 +33,29 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.xml.sax.SAXException;
 
+import com.github.jillesvangurp.common.FixedPoint;
+import com.github.jillesvangurp.common.GzipIndex;
+import com.github.jillesvangurp.common.IdBitmap;
+import com.github.jillesvangurp.common.JsonStreamWriter;
+import com.github.jillesvangurp.common.RawJson;
 import com.github.jillesvangurp.common.ResourceUtil;
+import com.github.jillesvangurp.common.StringPool;
+import com.github.jillesvangurp.common.Threads;
+import com.github.jillesvangurp.common.WorkDirectories;
+import com.github.jillesvangurp.flow.Pipe;
+import com.github.jillesvangurp.flow.Pipe.BatchSize;
 import com.github.jillesvangurp.mergesort.EntryParsingProcessor;
+import com.github.jillesvangurp.mergesort.EntryWriter;
 import com.github.jillesvangurp.mergesort.SortingWriter;
+import com.github.jillesvangurp.metrics.LoggingCounter;
 import com.github.jillesvangurp.metrics.StopWatch;
+import com.github.jillesvangurp.osm2geojson.AutoTuner.Stage;
 import com.github.jillesvangurp.osm2geojson.EntryJoiningIterable.JoinedEntries;
+import com.github.jillesvangurp.osm2geojson.Partitioning.Kind;
 import com.github.jsonj.JsonArray;
+import com.github.jsonj.JsonElement;
 import com.github.jsonj.JsonObject;
 import com.github.jsonj.tools.JsonParser;
-import com.jillesvangurp.iterables.ConcurrentProcessingIterable;
 import com.jillesvangurp.iterables.LineIterable;
 import com.jillesvangurp.iterables.PeekableIterator;
 import com.jillesvangurp.iterables.Processor;
@@ -40,6 +65,8 @@ public class OsmJoin {
     private static final Logger LOG = LoggerFactory.getLogger(OsmJoin.class);
 
     public static final String NODE_ID_NODEJSON_MAP = "nodeid2rawnodejson.gz";
+    // only the tagged nodes, written when pruning nodes
+    public static final String NODE_ID_POI_JSON_MAP = "nodeid2poijson.gz";
     private static final String REL_ID_RELJSON_MAP = "relid2rawreljson.gz";
     private static final String WAY_ID_WAYJSON_MAP = "wayid2rawwayjson.gz";
     private static final String NODE_ID_WAY_ID_MAP = "nodeid2wayid.gz";
@@ -55,10 +82,27 @@ public class OsmJoin {
 
     private static final String REL_ID_WAY_JSON_MAP = "relid2wayjson.gz";
     public static final String REL_ID_COMPLETE_JSON = "relid2completejson.gz";
+    private static final String REL_ID_FLAT_COMPLETE_JSON = "relid2flatcompletejson.gz";
+    private static final String REL_ID_DESCENDANT_JSON_MAP = "relid2descendantjson.gz";
+    // read by the post processing, so these always go to the current directory
+    private static final Set<String> FINAL_OUTPUTS = new HashSet<>(Arrays.asList(NODE_ID_NODEJSON_MAP, NODE_ID_POI_JSON_MAP, WAY_ID_COMPLETE_JSON, REL_ID_COMPLETE_JSON));
+    // when running partitioned, these are keyed on ids owned by other partitions, see Partitioning
+    private static final Map<String, Kind> EXCHANGED = new HashMap<>();
+    static {
+        EXCHANGED.put(NODE_ID_WAY_ID_MAP, Kind.NODE);
+        EXCHANGED.put(NODE_ID_REL_ID_MAP, Kind.NODE);
+        EXCHANGED.put(WAY_ID_REL_ID_MAP, Kind.WAY);
+        EXCHANGED.put(WAY_ID_NODE_JSON_MAP, Kind.WAY);
+        EXCHANGED.put(REL_ID_NODE_JSON_MAP, Kind.RELATION);
+        EXCHANGED.put(REL_ID_WAY_JSON_MAP, Kind.RELATION);
+        EXCHANGED.put(REL_ID_DESCENDANT_JSON_MAP, Kind.RELATION);
+    }
 
 
     // choose a bucket size that will fit in memory. Larger means less bucket files and more ram are used.
     private static final int BUCKET_SIZE = 500000;
+    // number of sorting writers open while splitting
+    private static final int SPLIT_WRITERS = 6;
 
     static final Pattern idPattern = Pattern.compile("id=\"([0-9]+)");
     static final Pattern latPattern = Pattern.compile("lat=\"(-?[0-9]+(\\.[0-9]+)?)");
@@ -69,44 +113,309 @@ public class OsmJoin {
 
 //    private static final String OSM_XML = "/Users/jilles/data/brandenburg.osm.bz2";
 
-    private final String workDirectory;
+    private final WorkDirectories workDirectories;
+    // where the intermediate files ended up, by name
+    private final Map<String, String> files = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Object> gatherLocks = new ConcurrentHashMap<>();
 
     private final JsonParser parser;
 
+    private final RunConfig config;
+
+    private RegionFilter regionFilter;
+    private boolean pruneNodes = false;
+    private int maxRelationDepth = 2;
+    private boolean splice = true;
+    private int concurrentStages = 2;
+    private boolean keepIntermediates = false;
+    private Partitioning partitioning;
+    private boolean lookupStores = false;
+    private TagDictionary tagDictionary;
+    // tag keys, values, and roles repeat a lot; pooling them saves allocating a substring for each
+    private final StringPool tagPool;
+    private final RelationGraph relationGraph = new RelationGraph();
+    private final IdBitmap nodesInRegion = new IdBitmap();
+    private final IdBitmap waysInRegion = new IdBitmap();
+    // nodes referenced by ways and relations (in the region), these may be outside the region
+    private final IdBitmap referencedNodes = new IdBitmap();
+
     public OsmJoin(String workDirectory, JsonParser parser) {
-        this.workDirectory = workDirectory;
+        this(workDirectory, parser, new RunConfig());
+    }
+
+    /**
+     * @param workDirectory
+     *            directory for the bucket files, or a comma separated list of directories on different disks. With
+     *            multiple directories, the intermediate files go there as well and each stage writes to other disks
+     *            than it reads from where possible.
+     * @param parser
+     *            parser
+     * @param config
+     *            run configuration
+     */
+    public OsmJoin(String workDirectory, JsonParser parser, RunConfig config) {
+        workDirectories = WorkDirectories.parse(workDirectory);
         this.parser = parser;
-        try {
-            FileUtils.forceMkdir(new File(workDirectory));
-        } catch (IOException e) {
-            throw new IllegalStateException("cannot create dir " + workDirectory);
+        this.config = config;
+        tagPool = tagPool(config);
+    }
+
+    /**
+     * @param config
+     *            supports tagPool.size and tagPool.maxLength
+     * @return pool for tag keys and values
+     */
+    static StringPool tagPool(RunConfig config) {
+        return new StringPool(config.getInt("tagPool.size", 65536), config.getInt("tagPool.maxLength", 32));
+    }
+
+    /**
+     * Only keep nodes inside the region and the ways and relations that have members inside the region. Nodes outside
+     * the region that are referenced by those ways and relations are added in a second pass over the nodes in the osm
+     * file. Relation members of the kept relations that are ways outside the region are not included.
+     *
+     * @param regionFilter
+     *            filter, e.g. a {@link BoundingBoxFilter} or {@link PolygonFilter}
+     * @return the OsmJoin
+     */
+    public OsmJoin setRegionFilter(RegionFilter regionFilter) {
+        this.regionFilter = regionFilter;
+        return this;
+    }
+
+    /**
+     * Most nodes are untagged and only exist as part of the geometry of a way. When enabled, the ids of nodes referenced
+     * by ways and relations are tracked while parsing and a pass over the sorted nodes after splitting drops untagged
+     * nodes that are not referenced. Additionally, the tagged nodes are written to {@link #NODE_ID_POI_JSON_MAP} so the
+     * post processing does not have to wade through the untagged ones. Note. this needs a bit over a GB of heap for the
+     * full planet.
+     *
+     * @param pruneNodes
+     *            true to enable
+     * @return the OsmJoin
+     */
+    public OsmJoin setPruneNodes(boolean pruneNodes) {
+        this.pruneNodes = pruneNodes;
+        return this;
+    }
+
+    /**
+     * @param maxRelationDepth
+     *            how many levels of child relations to embed in relations. Beware that e.g. the subarea members of admin
+     *            boundaries can make the relations of countries quite big with higher values. Default is 2.
+     * @return the OsmJoin
+     */
+    public OsmJoin setMaxRelationDepth(int maxRelationDepth) {
+        if (maxRelationDepth < 0) {
+            throw new IllegalArgumentException("depth should not be negative");
         }
+        this.maxRelationDepth = maxRelationDepth;
+        return this;
     }
 
-    private String bucketDir(String file) {
-        return workDirectory + File.separatorChar + file + ".buckets";
+    /**
+     * When enabled (the default), the joins that embed nodes and ways in ways and relations splice the member json into
+     * the stored json text instead of parsing everything and serializing it again. Disable to go through the jsonj
+     * objects instead, e.g. to compare the output; relation members are then parsed once per member through a
+     * {@link MemberCache}.
+     *
+     * @param splice
+     *            true to enable
+     * @return the OsmJoin
+     */
+    public OsmJoin setSplice(boolean splice) {
+        this.splice = splice;
+        return this;
     }
 
-    private SortingWriter sortingWriter(String file, int bucketSize) {
-        try {
-            return new SortingWriter(bucketDir(file), file, bucketSize);
-        } catch (IOException e) {
-            throw new IllegalStateException("cannot create sorting writer " + file);
+    /**
+     * @param concurrentStages
+     *            max number of join stages that run at the same time when their inputs are ready. They share the threads
+     *            and memory, so this does not increase memory use. Default is 2, use 1 to run them one after the other.
+     * @return the OsmJoin
+     */
+    public OsmJoin setConcurrentStages(int concurrentStages) {
+        if (concurrentStages < 1) {
+            throw new IllegalArgumentException("at least one stage should run");
+        }
+        this.concurrentStages = concurrentStages;
+        return this;
+    }
+
+    /**
+     * By default intermediate files are deleted as soon as the last stage that reads them is done, which keeps the disk
+     * usage down. Enable to keep them, e.g. for debugging.
+     *
+     * @param keepIntermediates
+     *            true to enable
+     * @return the OsmJoin
+     */
+    public OsmJoin setKeepIntermediates(boolean keepIntermediates) {
+        this.keepIntermediates = keepIntermediates;
+        return this;
+    }
+
+    /**
+     * When enabled, a {@link com.github.jillesvangurp.mergesort.BlockStore} is written next to each of the final outputs,
+     * so that {@link OsmLookup} can fetch single nodes, ways, and relations by id.
+     *
+     * @param lookupStores
+     *            true to enable
+     * @return the OsmJoin
+     */
+    public OsmJoin setLookupStores(boolean lookupStores) {
+        this.lookupStores = lookupStores;
+        return this;
+    }
+
+    /**
+     * Writes the frequent tag keys, tag values, and roles as short codes, which makes the intermediate files and the
+     * outputs a lot smaller. The dictionary is written to {@link TagDictionary#FILE} next to the outputs; readers of the
+     * outputs have to expand the codes, as {@link OsmPostProcessor} and {@link OsmLookup} do. Not supported when running
+     * partitioned, since each partition would build a different dictionary.
+     *
+     * @param tagDictionary
+     *            an empty dictionary, or null to disable (the default)
+     * @return the OsmJoin
+     */
+    public OsmJoin setTagDictionary(TagDictionary tagDictionary) {
+        this.tagDictionary = tagDictionary;
+        return this;
+    }
+
+    /**
+     * Only process the ids in the ranges of one partition and exchange the entries for other partitions through the
+     * shared directory, see {@link PartitionedOsmJoin}. The current directory should be the directory of the partition.
+     * Region filters and pruning are not supported in this mode since they need the ids of all nodes and ways in memory.
+     *
+     * @param partitioning
+     *            the partitioning
+     * @return the OsmJoin
+     */
+    public OsmJoin setPartitioning(Partitioning partitioning) {
+        this.partitioning = partitioning;
+        return this;
+    }
+
+    private boolean trackReferencedNodes() {
+        return regionFilter != null || pruneNodes;
+    }
+
+    /**
+     * @param name
+     *            name of an intermediate file
+     * @return the path of the file
+     */
+    String file(String name) {
+        String file = files.get(name);
+        return file != null ? file : name;
+    }
+
+    /**
+     * Picks the location of an output file: on a work directory on another device than the inputs if there are multiple
+     * work directories. Files that the post processing reads always go to the current directory.
+     */
+    private String place(String name, String... inputs) {
+        if (workDirectories.size() < 2 || FINAL_OUTPUTS.contains(name)) {
+            return name;
+        }
+        List<File> dirs = workDirectories.avoiding(inputs);
+        String file = new File(WorkDirectories.mostFreeSpace(dirs.isEmpty() ? workDirectories.dirs() : dirs), name).getPath();
+        files.put(name, file);
+        return file;
+    }
+
+    /**
+     * @return bucket directories for the output, preferably on other devices than both the inputs and the output, or
+     *         else than the inputs, which are read while the buckets are written
+     */
+    private List<String> bucketDirs(String name, String output, String... inputs) {
+        String[] inputsAndOutput = Arrays.copyOf(inputs, inputs.length + 1);
+        inputsAndOutput[inputs.length] = output;
+        List<File> dirs = workDirectories.avoiding(inputsAndOutput);
+        if (dirs.isEmpty()) {
+            dirs = workDirectories.avoiding(inputs);
         }
+        if (dirs.isEmpty()) {
+            dirs = workDirectories.dirs();
+        }
+        List<String> bucketDirs = new ArrayList<>();
+        for (File dir : dirs) {
+            bucketDirs.add(dir.getPath() + File.separatorChar + name + ".buckets");
+        }
+        return bucketDirs;
+    }
+
+    private EntryWriter sortingWriter(RunConfig stageConfig, String name, int bucketSize, String... inputs) {
+        return sortingWriter(stageConfig, name, bucketSize, 1, inputs);
+    }
+
+    /**
+     * @param stageConfig config of the stage that writes
+     * @param name name of the output file, see {@link #file(String)} for where it ends up
+     * @param bucketSize default max entries per bucket, can be overridden in the run config
+     * @param concurrentWriters number of sorting writers that are open at the same time; they share the bucket memory
+     * @param inputs the files that are read while writing
+     * @return writer for a sorted file, or for sorted exchange files when running partitioned and the file is keyed on
+     *         ids of other partitions
+     */
+    private EntryWriter sortingWriter(RunConfig stageConfig, String name, int bucketSize, int concurrentWriters, String... inputs) {
+        Kind kind = partitioning != null ? EXCHANGED.get(name) : null;
+        if (kind == null) {
+            String output = place(name, inputs);
+            try {
+                return new SortingWriter(bucketDirs(name, output, inputs), output, stageConfig.bucketSize(name, bucketSize), stageConfig.maxBucketBytes(concurrentWriters));
+            } catch (IOException e) {
+                throw new IllegalStateException("cannot create sorting writer " + output);
+            }
+        }
+        List<SortingWriter> writers = new ArrayList<>();
+        for (int target = 0; target < partitioning.partitions(); target++) {
+            String output = partitioning.exchangeFile(name, target);
+            try {
+                writers.add(new SortingWriter(bucketDirs(name + "." + target, output, inputs), output, stageConfig.bucketSize(name, bucketSize),
+                        stageConfig.maxBucketBytes(concurrentWriters * partitioning.partitions())));
+            } catch (IOException e) {
+                throw new IllegalStateException("cannot create sorting writer " + output);
+            }
+        }
+        return partitioning.writer(name, kind, writers);
+    }
+
+    /**
+     * @param name
+     *            name of an intermediate file that a stage reads
+     * @return the path of the file; when running partitioned, files that other partitions write to as well are merged
+     *         first, after waiting for the other partitions
+     */
+    private String input(String name) {
+        if (partitioning == null || !EXCHANGED.containsKey(name)) {
+            return file(name);
+        }
+        Object lock = new Object();
+        Object existing = gatherLocks.putIfAbsent(name, lock);
+        synchronized (existing != null ? existing : lock) {
+            if (!files.containsKey(name)) {
+                String output = place(name);
+                partitioning.gather(name, output);
+                files.put(name, output);
+            }
+        }
+        return file(name);
     }
 
     public void splitAndEmit(String osmFile) {
 
         // create various sorted maps that need to be joined in the next steps
 
-        try (SortingWriter nodesWriter = sortingWriter(NODE_ID_NODEJSON_MAP, BUCKET_SIZE)) {
-            try (SortingWriter nodeid2WayidWriter = sortingWriter(NODE_ID_WAY_ID_MAP, BUCKET_SIZE)) {
-                try (SortingWriter waysWriter = sortingWriter(WAY_ID_WAYJSON_MAP, BUCKET_SIZE)) {
-                    try (SortingWriter relationsWriter = sortingWriter(REL_ID_RELJSON_MAP, BUCKET_SIZE)) {
-                        try (SortingWriter nodeId2RelIdWriter = sortingWriter(NODE_ID_REL_ID_MAP, BUCKET_SIZE)) {
-                            try (SortingWriter wayId2RelIdWriter = sortingWriter(WAY_ID_REL_ID_MAP, BUCKET_SIZE)) {
+        try (EntryWriter nodesWriter = sortingWriter(config, NODE_ID_NODEJSON_MAP, BUCKET_SIZE, SPLIT_WRITERS, osmFile)) {
+            try (EntryWriter nodeid2WayidWriter = sortingWriter(config, NODE_ID_WAY_ID_MAP, BUCKET_SIZE, SPLIT_WRITERS, osmFile)) {
+                try (EntryWriter waysWriter = sortingWriter(config, WAY_ID_WAYJSON_MAP, BUCKET_SIZE, SPLIT_WRITERS, osmFile)) {
+                    try (EntryWriter relationsWriter = sortingWriter(config, REL_ID_RELJSON_MAP, BUCKET_SIZE, SPLIT_WRITERS, osmFile)) {
+                        try (EntryWriter nodeId2RelIdWriter = sortingWriter(config, NODE_ID_REL_ID_MAP, BUCKET_SIZE, SPLIT_WRITERS, osmFile)) {
+                            try (EntryWriter wayId2RelIdWriter = sortingWriter(config, WAY_ID_REL_ID_MAP, BUCKET_SIZE, SPLIT_WRITERS, osmFile)) {
                                 try (LineIterable lineIterable = new LineIterable(ResourceUtil.bzip2Reader(osmFile))) {
-                                    OsmBlobIterable osmIterable = new OsmBlobIterable(lineIterable);
+                                    Iterable<String> osmIterable = config.tuner().measure(Stage.SPLIT, new OsmBlobIterable(lineIterable));
 
                                     try (BufferedWriter problemNodes = ResourceUtil.gzipFileWriter("problemNodes.gz")) {
                                         try (BufferedWriter problemWays = ResourceUtil.gzipFileWriter("problemWays.gz")) {
@@ -117,9 +426,13 @@ public class OsmJoin {
                                                     public Boolean process(String blob) {
                                                         try {
                                                             if (blob.trim().startsWith("<node")) {
-                                                                parseNode(nodesWriter,problemNodes, blob);
+                                                                if (owns(Kind.NODE, blob)) {
+                                                                    parseNode(nodesWriter,problemNodes, blob);
+                                                                }
                                                             } else if (blob.trim().startsWith("<way")) {
-                                                                parseWay(waysWriter,problemWays, nodeid2WayidWriter, blob);
+                                                                if (owns(Kind.WAY, blob)) {
+                                                                    parseWay(waysWriter,problemWays, nodeid2WayidWriter, blob);
+                                                                }
                                                             } else if (blob.trim().startsWith("<relation")) {
                                                                 parseRelation(relationsWriter,problemRelations, nodeId2RelIdWriter, wayId2RelIdWriter, blob);
                                                             } else {
@@ -134,14 +447,23 @@ public class OsmJoin {
 
                                                     }
                                                 };
-                                                try (ConcurrentProcessingIterable<String, Boolean> it = processConcurrently(osmIterable, processor, 1000,    9,
-                                                        10000)) {
-                                                    consume(it);
+                                                if (regionFilter == null) {
+                                                    processIt(osmIterable, processor, config, Stage.SPLIT);
+                                                } else {
+                                                    // ways can only be filtered after all nodes are processed and relations only after all ways are processed
+                                                    PeekableIterator<String> blobs = new PeekableIterator<String>(osmIterable);
+                                                    processIt(blobsStartingWith(blobs, "<node"), processor, config, Stage.SPLIT);
+                                                    processIt(blobsStartingWith(blobs, "<way"), processor, config, Stage.SPLIT);
+                                                    processIt(blobsStartingWith(blobs, null), processor, config, Stage.SPLIT);
                                                 }
+                                                config.tuner().completed(Stage.SPLIT);
                                             }
                                         }
                                     }
                                 }
+                                if (regionFilter != null) {
+                                    addReferencedNodes(osmFile, nodesWriter);
+                                }
                             }
                         }
                     }
@@ -150,40 +472,160 @@ public class OsmJoin {
         } catch (Exception e) {
             throw new IllegalStateException(e);
         }
+        writeTagDictionary();
+        LOG.info("tag pool: " + tagPool.stats());
+        relationGraph.build();
+        LOG.info("relation graph has " + relationGraph.size() + " relation memberships and " + relationGraph.cycles() + " cycles");
+    }
+
+    private void writeTagDictionary() {
+        // like the outputs it belongs to, this goes to the current directory
+        File file = new File(TagDictionary.FILE);
+        if (tagDictionary == null) {
+            // don't let the post processing expand codes that are not there
+            FileUtils.deleteQuietly(file);
+            return;
+        }
+        try {
+            tagDictionary.write(file);
+        } catch (IOException e) {
+            throw new IllegalStateException("cannot write " + file, e);
+        }
+        LOG.info("tag dictionary has " + tagDictionary.size() + " strings");
     }
 
-    private void parseNode(SortingWriter nodeWriter, BufferedWriter problemNodes, String input) throws XPathExpressionException, SAXException, IOException {
+    /**
+     * @return true unless running partitioned and the id of the blob belongs to another partition
+     */
+    private boolean owns(Kind kind, String blob) {
+        if (partitioning == null) {
+            return true;
+        }
+        Matcher idm = idPattern.matcher(blob);
+        // blobs without an id end up in the problem files of the first partition
+        return idm.find() ? partitioning.owns(kind, Long.valueOf(idm.group(1))) : partitioning.partition() == 0;
+    }
+
+    private void parseNode(EntryWriter nodeWriter, BufferedWriter problemNodes, String input) throws XPathExpressionException, SAXException, IOException {
         Matcher idm = idPattern.matcher(input);
         Matcher latm = latPattern.matcher(input);
         Matcher lonm = lonPattern.matcher(input);
-        Matcher kvm = kvPattern.matcher(input);
         if (idm.find()) {
             long id = Long.valueOf(idm.group(1));
             if (latm.find() && lonm.find()) {
-                double latitude = Double.valueOf(latm.group(1));
-                double longitude = Double.valueOf(lonm.group(1));
-                // using a more compact notation for points here than the geojson point type. OSM has a billion+ nodes.
-                JsonObject node = object().put("id", id).put("l", array(longitude, latitude)).get();
-                JsonObject tags=new JsonObject();
-                while (kvm.find()) {
-                    String name = kvm.group(1);
-                    tags.put(name, StringEscapeUtils.unescapeXml(kvm.group(2)));
-                }
-                if(tags.size()>0) {
-                    node.put("tags", tags);
+                long latitude = FixedPoint.parse(input, latm.start(1), latm.end(1));
+                long longitude = FixedPoint.parse(input, lonm.start(1), lonm.end(1));
+                if (regionFilter != null) {
+                    if (!regionFilter.contains(FixedPoint.toDouble(latitude), FixedPoint.toDouble(longitude))) {
+                        // nodes outside the region are added later if a way or relation in the region needs them
+                        return;
+                    }
+                    nodesInRegion.set(id);
                 }
-                nodeWriter.put("" + id, node.toString());
+                nodeWriter.put("" + id, JsonStreamWriter.serialize(nodeJson(id, latitude, longitude, input)));
             } else {
                 // ignore nodes without coordinates (apparently they exist), don't flood the logs
-                problemNodes.write(input+'\n');
+                problemNodes.write(input + '\n');
             }
 
         } else {
-            problemNodes.write(input+'\n');
+            problemNodes.write(input + '\n');
+        }
+    }
+
+    private JsonObject nodeJson(long id, long latitude, long longitude, String input) {
+        Matcher kvm = kvPattern.matcher(input);
+        // using a more compact notation for points here than the geojson point type. OSM has a billion+ nodes.
+        // The coordinates are in units of 1e-7 degrees, see FixedPoint, so they are never formatted or parsed as doubles.
+        JsonObject node = object().put("id", id).put("l", array(primitive(longitude), primitive(latitude))).get();
+        JsonObject tags=new JsonObject();
+        while (kvm.find()) {
+            String name = tagPool.intern(input, kvm.start(1), kvm.end(1));
+            String value;
+            int entity = input.indexOf('&', kvm.start(2));
+            if (entity >= 0 && entity < kvm.end(2)) {
+                value = tagPool.intern(StringEscapeUtils.unescapeXml(kvm.group(2)));
+            } else {
+                value = tagPool.intern(input, kvm.start(2), kvm.end(2));
+            }
+            tags.put(encode(name), encode(value));
+        }
+        if(tags.size()>0) {
+            node.put("tags", tags);
+        }
+        return node;
+    }
+
+    private String encode(String s) {
+        return tagDictionary != null ? tagDictionary.encode(s) : s;
+    }
+
+    /**
+     * Second pass over the nodes in the osm file that adds the nodes outside the region that are referenced by ways or
+     * relations inside the region. Stops reading as soon as the ways start.
+     */
+    private void addReferencedNodes(String osmFile, final EntryWriter nodesWriter) throws IOException {
+        final AtomicLong added = new AtomicLong();
+        try (LineIterable lineIterable = new LineIterable(ResourceUtil.bzip2Reader(osmFile))) {
+            PeekableIterator<String> blobs = new PeekableIterator<String>(new OsmBlobIterable(lineIterable));
+            processIt(blobsStartingWith(blobs, "<node"), new Processor<String, Boolean>() {
+
+                @Override
+                public Boolean process(String blob) {
+                    Matcher idm = idPattern.matcher(blob);
+                    if (idm.find()) {
+                        long id = Long.valueOf(idm.group(1));
+                        if (referencedNodes.get(id) && !nodesInRegion.get(id)) {
+                            Matcher latm = latPattern.matcher(blob);
+                            Matcher lonm = lonPattern.matcher(blob);
+                            if (latm.find() && lonm.find()) {
+                                nodesWriter.put("" + id, JsonStreamWriter.serialize(nodeJson(id, FixedPoint.parse(blob, latm.start(1), latm.end(1)), FixedPoint.parse(blob, lonm.start(1), lonm.end(1)), blob)));
+                                added.incrementAndGet();
+                            }
+                        }
+                    }
+                    return true;
+                }
+            }, config, Stage.SPLIT);
         }
+        LOG.info("region " + regionFilter + ": " + nodesInRegion.cardinality() + " nodes, " + waysInRegion.cardinality() + " ways; added "
+                + added.get() + " referenced nodes outside the region");
     }
-    
-    private void parseWay(SortingWriter waysWriter, BufferedWriter problemWays, SortingWriter nodeid2WayidWriter, String input) throws XPathExpressionException, SAXException, IOException {
+
+    /**
+     * @return iterable that yields blobs until it encounters one that does not start with the prefix. Yields all remaining blobs if the prefix is null.
+     */
+    static Iterable<String> blobsStartingWith(final PeekableIterator<String> blobs, final String prefix) {
+        return new Iterable<String>() {
+
+            @Override
+            public Iterator<String> iterator() {
+                return new Iterator<String>() {
+
+                    @Override
+                    public boolean hasNext() {
+                        return blobs.hasNext() && (prefix == null || blobs.peek().startsWith(prefix));
+                    }
+
+                    @Override
+                    public String next() {
+                        if (hasNext()) {
+                            return blobs.next();
+                        } else {
+                            throw new NoSuchElementException();
+                        }
+                    }
+
+                    @Override
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+        };
+    }
+
+    private void parseWay(EntryWriter waysWriter, BufferedWriter problemWays, EntryWriter nodeid2WayidWriter, String input) throws XPathExpressionException, SAXException, IOException {
 
         Matcher idm = idPattern.matcher(input);
         Matcher kvm = kvPattern.matcher(input);
@@ -194,27 +636,44 @@ public class OsmJoin {
             JsonObject way = object().put("id", wayId).get();
             JsonObject tags=new JsonObject();
             while (kvm.find()) {
-                String name = kvm.group(1);
-                tags.put(name, kvm.group(2));
+                tags.put(encode(tagPool.intern(input, kvm.start(1), kvm.end(1))), encode(tagPool.intern(input, kvm.start(2), kvm.end(2))));
             }
             if(tags.size()>0) {
                 way.put("tags", tags);
             }
-            JsonArray nodeRefs=array();
+            long[] nodeRefs = new long[16];
+            int count = 0;
+            boolean inRegion = regionFilter == null;
             while (ndm.find()) {
-                Long nodeId = Long.valueOf(ndm.group(1));
+                long nodeId = Long.parseLong(ndm.group(1));
+                if (count == nodeRefs.length) {
+                    nodeRefs = Arrays.copyOf(nodeRefs, count * 2);
+                }
+                nodeRefs[count++] = nodeId;
+                inRegion = inRegion || nodesInRegion.get(nodeId);
+            }
+            if (!inRegion) {
+                return;
+            }
+            if (regionFilter != null) {
+                waysInRegion.set(wayId);
+            }
+            for (int i = 0; i < count; i++) {
+                long nodeId = nodeRefs[i];
+                if (trackReferencedNodes()) {
+                    referencedNodes.set(nodeId);
+                }
                 nodeid2WayidWriter.put("" + nodeId, "" + wayId);
-                nodeRefs.add(primitive(nodeId));
             }
-            way.put("ns", nodeRefs);
-            waysWriter.put("" + wayId, way.toString());
+            way.put("ns", NodeRefs.encode(nodeRefs, count));
+            waysWriter.put("" + wayId, JsonStreamWriter.serialize(way));
         } else {
-            problemWays.write(input+'\n');
+            problemWays.write(input + '\n');
 
         }
     }
 
-    private void parseRelation(SortingWriter relationsWriter, BufferedWriter problemRelations, SortingWriter nodeId2RelIdWriter, SortingWriter wayId2RelIdWriter, String input) throws XPathExpressionException, SAXException, IOException {
+    private void parseRelation(EntryWriter relationsWriter, BufferedWriter problemRelations, EntryWriter nodeId2RelIdWriter, EntryWriter wayId2RelIdWriter, String input) throws XPathExpressionException, SAXException, IOException {
         Matcher idm = idPattern.matcher(input);
         Matcher kvm = kvPattern.matcher(input);
         Matcher mm = memberPattern.matcher(input);
@@ -224,52 +683,139 @@ public class OsmJoin {
             JsonObject relation = object().put("id", relationId).get();
             JsonObject tags=new JsonObject();
             while (kvm.find()) {
-                String name = kvm.group(1);
-                tags.put(name, kvm.group(2));
+                tags.put(encode(tagPool.intern(input, kvm.start(1), kvm.end(1))), encode(tagPool.intern(input, kvm.start(2), kvm.end(2))));
             }
             if(tags.size()>0) {
                 relation.put("tags", tags);
             }
 
             JsonArray members = array();
+            boolean inRegion = regionFilter == null;
             while (mm.find()) {
                 String type = mm.group(1);
                 Long ref = Long.valueOf(mm.group(2));
-                String role = mm.group(3);
+                String role = encode(tagPool.intern(input, mm.start(3), mm.end(3)));
                 if ("way".equalsIgnoreCase(type)) {
                     members.add(object().put("id",ref).put("type", type).put("role", role).get());
-                    wayId2RelIdWriter.put(""+ref, ""+relationId);
+                    inRegion = inRegion || waysInRegion.get(ref);
                 } else if ("node".equalsIgnoreCase(type)) {
                     members.add(object().put("id",ref).put("type", type).put("role", role).get());
-                    nodeId2RelIdWriter.put(""+ref, ""+relationId);
+                    inRegion = inRegion || nodesInRegion.get(ref);
                 } else  if ("relation".equalsIgnoreCase(type)) {
-                    // FIXME support relation members as well
+                    // embedded later on using the relation graph
+                    members.add(object().put("id",ref).put("type", type).put("role", role).get());
                 } else {
                     LOG.warn("unknown member type " + type);
                 }
             }
+            if (!inRegion) {
+                return;
+            }
+            for (JsonObject member : members.objects()) {
+                if ("relation".equalsIgnoreCase(member.getString("type"))) {
+                    relationGraph.addEdge(relationId, member.getLong("id"));
+                }
+            }
+            if (partitioning != null && !partitioning.owns(Kind.RELATION, relationId)) {
+                // all partitions parse all relations because they need the complete relation graph
+                return;
+            }
+            for (JsonObject member : members.objects()) {
+                long ref = member.getLong("id");
+                String type = member.getString("type");
+                if ("way".equalsIgnoreCase(type)) {
+                    wayId2RelIdWriter.put(""+ref, ""+relationId);
+                } else if ("node".equalsIgnoreCase(type)) {
+                    if (trackReferencedNodes()) {
+                        referencedNodes.set(ref);
+                    }
+                    nodeId2RelIdWriter.put(""+ref, ""+relationId);
+                }
+            }
             relation.put("members", members);
-            relationsWriter.put(""+relationId, relation.toString());
+            relationsWriter.put(""+relationId, JsonStreamWriter.serialize(relation));
         } else {
             problemRelations.write(input + '\n');
         }
     }
 
-    public static <In, Out> void processIt(Iterable<In> iterable, Processor<In, Out> processor, int blockSize, int threads, int queueSize) {
-        try (ConcurrentProcessingIterable<In, Out> concIt = processConcurrently(iterable, processor, blockSize, threads, queueSize)) {
-            consume(concIt);
+    /**
+     * Semi join of the sorted nodes with the referenced node ids: keeps tagged nodes and nodes that are referenced by a
+     * way or relation and writes the tagged nodes to a separate file as well.
+     */
+    void pruneNodes(String nodeIdNodeJsonFile, String poiOutputFile) {
+        File prunedFile = new File(nodeIdNodeJsonFile + ".pruned");
+        long dropped = 0;
+        try (LoggingCounter counter = LoggingCounter.counter(LOG, "prune nodes " + nodeIdNodeJsonFile, "nodes", 1000000)) {
+            try (LineIterable lines = ResourceUtil.gzipLineIterable(nodeIdNodeJsonFile)) {
+                try (BufferedWriter nodesOut = ResourceUtil.gzipFileWriter(prunedFile)) {
+                    try (BufferedWriter poisOut = ResourceUtil.gzipFileWriter(poiOutputFile)) {
+                        for (String line : lines) {
+                            counter.inc();
+                            int idx = line.indexOf(';');
+                            // cheaper than parsing, the node json only has a tags field if there are tags
+                            boolean tagged = line.indexOf("\"tags\":", idx) > 0;
+                            if (tagged) {
+                                poisOut.write(line);
+                                poisOut.write('\n');
+                            }
+                            if (tagged || referencedNodes.get(Long.valueOf(line.substring(0, idx)))) {
+                                nodesOut.write(line);
+                                nodesOut.write('\n');
+                            } else {
+                                dropped++;
+                            }
+                        }
+                    }
+                }
+            }
+            FileUtils.forceDelete(new File(nodeIdNodeJsonFile));
+            FileUtils.deleteQuietly(GzipIndex.indexFile(nodeIdNodeJsonFile));
+            FileUtils.moveFile(prunedFile, new File(nodeIdNodeJsonFile));
+            // the gzip writer wrote an index for the pruned file, it belongs to the moved file now
+            File prunedIndex = GzipIndex.indexFile(prunedFile.getPath());
+            if (prunedIndex.exists()) {
+                FileUtils.moveFile(prunedIndex, GzipIndex.indexFile(nodeIdNodeJsonFile));
+            }
         } catch (IOException e) {
-            throw new IllegalStateException(e);
+            throw new IllegalStateException("cannot prune " + nodeIdNodeJsonFile, e);
         }
+        LOG.info("dropped " + dropped + " untagged and unreferenced nodes");
+    }
+
+    /**
+     * Runs the processor over the items on the shared executor of the config, see {@link RunConfig#executor()}. Two
+     * blocks per thread of the stage are in flight (or queueSize blocks if that is less), so a stage that shares the
+     * executor with other stages only gets its share of it. The results are ignored.
+     */
+    public static <In, Out> void processIt(Iterable<In> iterable, Processor<In, Out> processor, RunConfig config, Stage stage) {
+        processIt(iterable, processor, config.blockSizes(stage), Math.max(1, Math.min(config.queueSize(stage), 2 * config.threads())), config.executor());
+    }
+
+    /**
+     * Runs the processor over the items in blocks, asking blockSizes for the size of each block. The items are read on
+     * the calling thread and the blocks are processed on the executor in any order, so a slow block does not hold up
+     * the others.
+     */
+    public static <In, Out> void processIt(Iterable<In> iterable, final Processor<In, Out> processor, BatchSize blockSizes, int parallelism, Executor executor) {
+        Pipe.from(iterable).batch(blockSizes).parallelDrain(new Processor<List<In>, Void>() {
+            @Override
+            public Void process(List<In> block) {
+                for (In item : block) {
+                    processor.process(item);
+                }
+                return null;
+            }
+        }, executor, parallelism);
     }
 
     static PeekableIterator<Entry<String,String>> peekableEntryIterable(Iterable<String> it) {
         return new PeekableIterator<Entry<String,String>>(map(it, new EntryParsingProcessor()));
     }
 
-    void createWayId2NodeJsonMap(String nodeId2wayIdFile, String nodeId2nodeJsonFile, String outputFile) {
-        try (SortingWriter out = sortingWriter(outputFile, BUCKET_SIZE)) {
-            EntryJoiningIterable.join(nodeId2nodeJsonFile,nodeId2wayIdFile, new Processor<JoinedEntries, Boolean>() {
+    void createWayId2NodeJsonMap(RunConfig stageConfig, String nodeId2wayIdFile, String nodeId2nodeJsonFile, String outputFile) {
+        try (EntryWriter out = sortingWriter(stageConfig, outputFile, BUCKET_SIZE, nodeId2nodeJsonFile, nodeId2wayIdFile)) {
+            EntryJoiningIterable.join(nodeId2nodeJsonFile, nodeId2wayIdFile, stageConfig, new Processor<JoinedEntries, Boolean>() {
 
                 @Override
                 public Boolean process(JoinedEntries joined) {
@@ -287,13 +833,18 @@ public class OsmJoin {
         }
     }
 
-    private void createWayId2CompleteJsonMap(String wayIdWayjsonMap, String wayIdNodeJsonMap, String outputFile) {
+    private void createWayId2CompleteJsonMap(RunConfig stageConfig, String wayIdWayjsonMap, String wayIdNodeJsonMap, String outputFile) {
         // json blobs are quite big, so reducing bucket size
-        try (SortingWriter out = sortingWriter(outputFile, 50000)) {
-            EntryJoiningIterable.join(wayIdWayjsonMap,wayIdNodeJsonMap, new Processor<JoinedEntries, Boolean>() {
+        try (EntryWriter out = sortingWriter(stageConfig, outputFile, 50000, wayIdWayjsonMap, wayIdNodeJsonMap)) {
+            EntryJoiningIterable.join(wayIdWayjsonMap, wayIdNodeJsonMap, stageConfig, new Processor<JoinedEntries, Boolean>() {
 
                 @Override
                 public Boolean process(JoinedEntries joined) {
+                    if(splice) {
+                        Entry<String, String> wayEntry = joined.left.get(0);
+                        out.put(wayEntry.getKey(), spliceWayNodes(wayEntry.getValue(), joined.right));
+                        return true;
+                    }
                     HashMap<String, JsonObject> nodes = new HashMap<String, JsonObject>();
                     for(Entry<String, String> e: joined.right) {
                         JsonObject node = parser.parse(e.getValue()).asObject();
@@ -302,7 +853,9 @@ public class OsmJoin {
                     Entry<String, String> wayEntry = joined.left.get(0);
                     JsonObject way=parser.parse(wayEntry.getValue()).asObject();
                     JsonArray nodeObjects = array();
-                    for(long nodeId: way.getArray("ns").longs()) {
+                    NodeRefs.Iterator ns = NodeRefs.iterator(way.getString("ns"));
+                    while (ns.hasNext()) {
+                        long nodeId = ns.next();
                         JsonObject node=nodes.get(""+nodeId);
                         if(node != null) {
                             nodeObjects.add(node);
@@ -312,7 +865,7 @@ public class OsmJoin {
                     }
                     way.put("nodes", nodeObjects);
                     way.remove("ns");
-                    out.put(wayEntry.getKey(), way.toString());
+                    out.put(wayEntry.getKey(), JsonStreamWriter.serialize(way));
                     return true;
                 }
             });
@@ -322,9 +875,61 @@ public class OsmJoin {
         }
     }
 
-    private void createRelid2NodeJsonMap(String nodeIdRelIdMap, String nodeIdNodejsonMap, String outputFile) {
-        try (SortingWriter out = sortingWriter(outputFile, 10000)) {
-            EntryJoiningIterable.join(nodeIdRelIdMap,nodeIdNodejsonMap, new Processor<JoinedEntries, Boolean>() {
+    /**
+     * Same as the jsonj based code in createWayId2CompleteJsonMap but without parsing: replaces the ns field of the way
+     * with a nodes array of the node json in the order of the ns field. The ns field has the ids encoded with
+     * {@link NodeRefs}.
+     */
+    static String spliceWayNodes(String wayJson, List<Entry<String, String>> nodeEntries) {
+        Map<Long, String> nodes = new HashMap<>();
+        int length = wayJson.length();
+        for (Entry<String, String> e : nodeEntries) {
+            String nodeJson = e.getValue();
+            nodes.put(RawJson.id(nodeJson), nodeJson);
+            length += nodeJson.length() + 1;
+        }
+        int[] nsField = RawJson.field(wayJson, "ns");
+        // without the quotes
+        NodeRefs.Iterator ns = nsField == null ? NodeRefs.iterator("") : NodeRefs.iterator(wayJson, nsField[1] + 1, nsField[2] - 1);
+        List<String> nodeObjects = new ArrayList<>(nodeEntries.size());
+        List<String> missing = new ArrayList<>();
+        while (ns.hasNext()) {
+            long nodeId = ns.next();
+            String node = nodes.get(nodeId);
+            if (node != null) {
+                nodeObjects.add(node);
+            } else {
+                missing.add("" + nodeId);
+            }
+        }
+        StringBuilder buf = new StringBuilder(length + 32);
+        RawJson.appendOpen(buf, wayJson, nsField);
+        if (!missing.isEmpty()) {
+            RawJson.appendArrayField(buf, "missingNodeRefs", missing);
+        }
+        RawJson.appendArrayField(buf, "nodes", nodeObjects);
+        return buf.append('}').toString();
+    }
+
+    /**
+     * Adds a field with the member json to the relation json without parsing either.
+     */
+    static String spliceMembers(String relJson, String field, List<Entry<String, String>> memberEntries) {
+        List<String> members = new ArrayList<>(memberEntries.size());
+        int length = relJson.length() + field.length() + 8;
+        for (Entry<String, String> e : memberEntries) {
+            members.add(e.getValue());
+            length += e.getValue().length() + 1;
+        }
+        StringBuilder buf = new StringBuilder(length);
+        RawJson.appendOpen(buf, relJson, null);
+        RawJson.appendArrayField(buf, field, members);
+        return buf.append('}').toString();
+    }
+
+    private void createRelid2NodeJsonMap(RunConfig stageConfig, String nodeIdRelIdMap, String nodeIdNodejsonMap, String outputFile) {
+        try (EntryWriter out = sortingWriter(stageConfig, outputFile, 10000, nodeIdRelIdMap, nodeIdNodejsonMap)) {
+            EntryJoiningIterable.join(nodeIdRelIdMap, nodeIdNodejsonMap, stageConfig, new Processor<JoinedEntries, Boolean>() {
 
                 @Override
                 public Boolean process(JoinedEntries joined) {
@@ -344,21 +949,41 @@ public class OsmJoin {
 
     }
 
-    private void createRelid2JsonWithNodes(String relIdReljsonMap, String relIdNodeJsonMap, String outputFile) {
-        try (SortingWriter out = sortingWriter(outputFile, 100000)) {
-            EntryJoiningIterable.join(relIdReljsonMap,relIdNodeJsonMap, new Processor<JoinedEntries, Boolean>() {
+    /**
+     * @return cache for the members that are parsed when not splicing, or null when splicing since nothing is parsed
+     */
+    private MemberCache memberCache(RunConfig stageConfig, String name) {
+        return splice ? null : new MemberCache(name, parser, stageConfig.memberCacheBytes(), stageConfig.threads());
+    }
+
+    private void createRelid2JsonWithNodes(RunConfig stageConfig, String relIdReljsonMap, String relIdNodeJsonMap, String outputFile) {
+        final MemberCache nodeCache = memberCache(stageConfig, "node");
+        try (EntryWriter out = sortingWriter(stageConfig, outputFile, 100000, relIdReljsonMap, relIdNodeJsonMap)) {
+            // left join, relations without node members (e.g. most multipolygons) should not be dropped
+            EntryJoiningIterable.leftJoin(relIdReljsonMap, relIdNodeJsonMap, stageConfig, new Processor<JoinedEntries, Boolean>() {
 
                 @Override
                 public Boolean process(JoinedEntries joined) {
+                    if(joined.right.isEmpty()) {
+                        for(Entry<String, String> e: joined.left) {
+                            out.put(e.getKey(), e.getValue());
+                        }
+                        return true;
+                    }
+                    if(splice) {
+                        for(Entry<String, String> e: joined.left) {
+                            out.put(e.getKey(), spliceMembers(e.getValue(), "nodes", joined.right));
+                        }
+                        return true;
+                    }
                     JsonArray nodes = array();
                     for(Entry<String, String> e: joined.right) {
-                        JsonObject nodeJson = parser.parse(e.getValue()).asObject();
-                        nodes.add(nodeJson);
+                        nodes.add(nodeCache.get(e.getValue()));
                     }
                     for(Entry<String, String> e: joined.left) {
                         JsonObject relJson = parser.parse(e.getValue()).asObject();
                         relJson.put("nodes", nodes);
-                        out.put(e.getKey(), relJson.toString());
+                        out.put(e.getKey(), JsonStreamWriter.serialize(relJson));
                     }
 
                     return true;
@@ -369,11 +994,14 @@ public class OsmJoin {
         } catch (IOException e) {
             throw new IllegalStateException("exception while closing sorted writer " + outputFile ,e);
         }
+        if(nodeCache != null) {
+            nodeCache.logStats();
+        }
     }
 
-    private void createRelId2WayJsonMap(String wayIdRelIdMap, String wayIdWayjsonMap, String outputFile) {
-        try (SortingWriter out = sortingWriter(outputFile, 100000)) {
-            EntryJoiningIterable.join(wayIdRelIdMap,wayIdWayjsonMap, new Processor<JoinedEntries, Boolean>() {
+    private void createRelId2WayJsonMap(RunConfig stageConfig, String wayIdRelIdMap, String wayIdWayjsonMap, String outputFile) {
+        try (EntryWriter out = sortingWriter(stageConfig, outputFile, 100000, wayIdRelIdMap, wayIdWayjsonMap)) {
+            EntryJoiningIterable.join(wayIdRelIdMap, wayIdWayjsonMap, stageConfig, new Processor<JoinedEntries, Boolean>() {
 
                 @Override
                 public Boolean process(JoinedEntries joined) {
@@ -393,22 +1021,37 @@ public class OsmJoin {
     }
 
 
-    private void createRelId2CompleteJson(String relIdJsonWithNodes, String relIdWayJsonMap, String outputFile) {
+    private void createRelId2CompleteJson(RunConfig stageConfig, String relIdJsonWithNodes, String relIdWayJsonMap, String outputFile) {
+        // child relations are embedded in an extra pass, see embedChildRelations
+        String joinedFile = relationGraph.isEmpty() ? outputFile : REL_ID_FLAT_COMPLETE_JSON;
+        final MemberCache wayCache = memberCache(stageConfig, "way");
         // relations can be extremely large, so reduce bucket size even further
-        try (SortingWriter out = sortingWriter(outputFile, 10000)) {
-            EntryJoiningIterable.join(relIdJsonWithNodes,relIdWayJsonMap, new Processor<JoinedEntries, Boolean>() {
+        try (EntryWriter out = sortingWriter(stageConfig, joinedFile, 10000, relIdJsonWithNodes, relIdWayJsonMap)) {
+            // left join, relations without way members should not be dropped
+            EntryJoiningIterable.leftJoin(relIdJsonWithNodes, relIdWayJsonMap, stageConfig, new Processor<JoinedEntries, Boolean>() {
 
                 @Override
                 public Boolean process(JoinedEntries joined) {
+                    if(joined.right.isEmpty()) {
+                        for(Entry<String, String> e: joined.left) {
+                            out.put(e.getKey(), e.getValue());
+                        }
+                        return true;
+                    }
+                    if(splice) {
+                        for(Entry<String, String> e: joined.left) {
+                            out.put(e.getKey(), spliceMembers(e.getValue(), "ways", joined.right));
+                        }
+                        return true;
+                    }
                     JsonArray ways = array();
                     for(Entry<String, String> e: joined.right) {
-                        JsonObject wayJson = parser.parse(e.getValue()).asObject();
-                        ways.add(wayJson);
+                        ways.add(wayCache.get(e.getValue()));
                     }
                     for(Entry<String, String> e: joined.left) {
                         JsonObject relJson = parser.parse(e.getValue()).asObject();
                         relJson.put("ways", ways);
-                        out.put(e.getKey(), relJson.toString());
+                        out.put(e.getKey(), JsonStreamWriter.serialize(relJson));
                     }
                     return true;
                 }
@@ -416,7 +1059,99 @@ public class OsmJoin {
             });
 
         } catch (IOException e) {
-            throw new IllegalStateException("exception while closing sorted writer " + outputFile ,e);
+            throw new IllegalStateException("exception while closing sorted writer " + joinedFile ,e);
+        }
+        if(wayCache != null) {
+            wayCache.logStats();
+        }
+        if(!relationGraph.isEmpty()) {
+            embedChildRelations(stageConfig, file(joinedFile), outputFile);
+        }
+    }
+
+    /**
+     * Relations can have other relations as members (e.g. route masters and super routes). Using the in memory relation
+     * graph, a single streaming pass over the joined relations emits each relation for all of its ancestors (up to
+     * maxRelationDepth levels). A left join of the relations with that then has all the descendants of each relation at
+     * hand to embed them as a tree of "relations" arrays.
+     */
+    private void embedChildRelations(RunConfig stageConfig, String relIdCompleteJson, String outputFile) {
+        try (EntryWriter ancestorsOut = sortingWriter(stageConfig, REL_ID_DESCENDANT_JSON_MAP, 10000, relIdCompleteJson)) {
+            try (LineIterable lines = ResourceUtil.gzipLineIterable(relIdCompleteJson)) {
+                processIt(stageConfig.tuner().measure(Stage.JOIN, lines), new Processor<String, Boolean>() {
+
+                    @Override
+                    public Boolean process(String line) {
+                        int idx = line.indexOf(';');
+                        long relId = Long.valueOf(line.substring(0, idx));
+                        for (long ancestor : relationGraph.ancestors(relId, maxRelationDepth)) {
+                            ancestorsOut.put("" + ancestor, line.substring(idx + 1));
+                        }
+                        return true;
+                    }
+                }, stageConfig, Stage.JOIN);
+            }
+            stageConfig.tuner().completed(Stage.JOIN);
+        } catch (IOException e) {
+            throw new IllegalStateException("exception while closing sorted writer " + REL_ID_DESCENDANT_JSON_MAP, e);
+        }
+
+        String descendants = input(REL_ID_DESCENDANT_JSON_MAP);
+        try (EntryWriter out = sortingWriter(stageConfig, outputFile, 10000, relIdCompleteJson, descendants)) {
+            EntryJoiningIterable.leftJoin(relIdCompleteJson, descendants, stageConfig, new Processor<JoinedEntries, Boolean>() {
+
+                @Override
+                public Boolean process(JoinedEntries joined) {
+                    if (joined.right.isEmpty()) {
+                        for (Entry<String, String> e : joined.left) {
+                            out.put(e.getKey(), e.getValue());
+                        }
+                        return true;
+                    }
+                    Map<Long, JsonObject> descendants = new HashMap<>();
+                    for (Entry<String, String> e : joined.right) {
+                        JsonObject relJson = parser.parse(e.getValue()).asObject();
+                        descendants.put(relJson.getLong("id"), relJson);
+                    }
+                    for (Entry<String, String> e : joined.left) {
+                        JsonObject relJson = parser.parse(e.getValue()).asObject();
+                        long relId = Long.valueOf(e.getKey());
+                        Set<Long> path = new HashSet<>();
+                        path.add(relId);
+                        addChildRelations(relJson, relId, descendants, 1, path);
+                        out.put(e.getKey(), JsonStreamWriter.serialize(relJson));
+                    }
+                    return true;
+                }
+            });
+        } catch (IOException e) {
+            throw new IllegalStateException("exception while closing sorted writer " + outputFile, e);
+        }
+        deleteIntermediate(REL_ID_FLAT_COMPLETE_JSON);
+        deleteIntermediate(REL_ID_DESCENDANT_JSON_MAP);
+    }
+
+    private void addChildRelations(JsonObject relJson, long relId, Map<Long, JsonObject> descendants, int depth, Set<Long> path) {
+        JsonArray relations = array();
+        for (long childId : relationGraph.children(relId)) {
+            JsonObject child = descendants.get(childId);
+            // the path guards against cycles
+            if (child != null && !path.contains(childId)) {
+                // copy because the same child may end up in multiple places in the tree
+                JsonObject copy = new JsonObject();
+                for (Entry<String, JsonElement> field : child.entrySet()) {
+                    copy.put(field.getKey(), field.getValue());
+                }
+                if (depth < maxRelationDepth) {
+                    path.add(childId);
+                    addChildRelations(copy, childId, descendants, depth + 1, path);
+                    path.remove(childId);
+                }
+                relations.add(copy);
+            }
+        }
+        if (relations.size() > 0) {
+            relJson.put("relations", relations);
         }
     }
 
@@ -426,6 +1161,12 @@ public class OsmJoin {
         // the main idea behind this approach is to not try to fit everything in ram at once and process efficiently by working with sorted files
         // the output should be a big gzip file with all the nodes, ways, and relations as json blobs on each line. Each blob should have all the stuff it refers embedded.
 
+        if (partitioning != null && trackReferencedNodes()) {
+            throw new IllegalStateException("region filters and pruning nodes are not supported when running partitioned");
+        }
+        if (partitioning != null && tagDictionary != null) {
+            throw new IllegalStateException("the tag dictionary is not supported when running partitioned");
+        }
         StopWatch processTimer = StopWatch.time(LOG, "process " + osmxml);
 
         StopWatch timer;
@@ -433,36 +1174,127 @@ public class OsmJoin {
         splitAndEmit(osmxml);
         timer.stop();
 
-        timer=StopWatch.time(LOG, "create "+WAY_ID_NODE_JSON_MAP);
-        createWayId2NodeJsonMap(NODE_ID_WAY_ID_MAP, NODE_ID_NODEJSON_MAP, WAY_ID_NODE_JSON_MAP);
-        timer.stop();
-
-        timer=StopWatch.time(LOG, "create "+WAY_ID_NODE_JSON_MAP);
-        createWayId2CompleteJsonMap(WAY_ID_WAYJSON_MAP, WAY_ID_NODE_JSON_MAP, WAY_ID_COMPLETE_JSON);
-        timer.stop();
-
-        timer = StopWatch.time(LOG, "create " + REL_ID_NODE_JSON_MAP);
-        createRelid2NodeJsonMap(NODE_ID_REL_ID_MAP, NODE_ID_NODEJSON_MAP, REL_ID_NODE_JSON_MAP);
-        timer.stop();
-
-        timer = StopWatch.time(LOG, "create " + REL_ID_JSON_WITH_NODES);
-        createRelid2JsonWithNodes(REL_ID_RELJSON_MAP, REL_ID_NODE_JSON_MAP, REL_ID_JSON_WITH_NODES);
-        timer.stop();
-
-        timer = StopWatch.time(LOG, "create " + REL_ID_WAY_JSON_MAP);
-        createRelId2WayJsonMap(WAY_ID_REL_ID_MAP, WAY_ID_COMPLETE_JSON, REL_ID_WAY_JSON_MAP);
-        timer.stop();
+        if (pruneNodes) {
+            timer = StopWatch.time(LOG, "prune " + NODE_ID_NODEJSON_MAP);
+            pruneNodes(NODE_ID_NODEJSON_MAP, NODE_ID_POI_JSON_MAP);
+            timer.stop();
+        } else {
+            // the post processing reads the pois from this file if it exists, so don't leave one from an earlier run
+            FileUtils.deleteQuietly(new File(NODE_ID_POI_JSON_MAP));
+            FileUtils.deleteQuietly(GzipIndex.indexFile(NODE_ID_POI_JSON_MAP));
+        }
 
-        timer = StopWatch.time(LOG, "create " + REL_ID_COMPLETE_JSON);
-        createRelId2CompleteJson(REL_ID_JSON_WITH_NODES, REL_ID_WAY_JSON_MAP, REL_ID_COMPLETE_JSON);
-        timer.stop();
+        // the way chain and the first half of the relation chain only need the split output, so they can run side by side
+        StageScheduler scheduler = new StageScheduler(config, concurrentStages, new StageScheduler.Cleanup() {
+            @Override
+            public void consumed(String name) {
+                deleteIntermediate(name);
+            }
+        });
+        scheduler.add("create " + WAY_ID_NODE_JSON_MAP, files(NODE_ID_WAY_ID_MAP, NODE_ID_NODEJSON_MAP), files(WAY_ID_NODE_JSON_MAP), new StageScheduler.Task() {
+            @Override
+            public void run(RunConfig stageConfig) {
+                createWayId2NodeJsonMap(stageConfig, input(NODE_ID_WAY_ID_MAP), NODE_ID_NODEJSON_MAP, WAY_ID_NODE_JSON_MAP);
+            }
+        });
+        scheduler.add("create " + WAY_ID_COMPLETE_JSON, files(WAY_ID_WAYJSON_MAP, WAY_ID_NODE_JSON_MAP), files(WAY_ID_COMPLETE_JSON), new StageScheduler.Task() {
+            @Override
+            public void run(RunConfig stageConfig) {
+                createWayId2CompleteJsonMap(stageConfig, input(WAY_ID_WAYJSON_MAP), input(WAY_ID_NODE_JSON_MAP), WAY_ID_COMPLETE_JSON);
+            }
+        });
+        scheduler.add("create " + REL_ID_NODE_JSON_MAP, files(NODE_ID_REL_ID_MAP, NODE_ID_NODEJSON_MAP), files(REL_ID_NODE_JSON_MAP), new StageScheduler.Task() {
+            @Override
+            public void run(RunConfig stageConfig) {
+                createRelid2NodeJsonMap(stageConfig, input(NODE_ID_REL_ID_MAP), NODE_ID_NODEJSON_MAP, REL_ID_NODE_JSON_MAP);
+            }
+        });
+        scheduler.add("create " + REL_ID_JSON_WITH_NODES, files(REL_ID_RELJSON_MAP, REL_ID_NODE_JSON_MAP), files(REL_ID_JSON_WITH_NODES), new StageScheduler.Task() {
+            @Override
+            public void run(RunConfig stageConfig) {
+                createRelid2JsonWithNodes(stageConfig, input(REL_ID_RELJSON_MAP), input(REL_ID_NODE_JSON_MAP), REL_ID_JSON_WITH_NODES);
+            }
+        });
+        scheduler.add("create " + REL_ID_WAY_JSON_MAP, files(WAY_ID_REL_ID_MAP, WAY_ID_COMPLETE_JSON), files(REL_ID_WAY_JSON_MAP), new StageScheduler.Task() {
+            @Override
+            public void run(RunConfig stageConfig) {
+                createRelId2WayJsonMap(stageConfig, input(WAY_ID_REL_ID_MAP), WAY_ID_COMPLETE_JSON, REL_ID_WAY_JSON_MAP);
+            }
+        });
+        scheduler.add("create " + REL_ID_COMPLETE_JSON, files(REL_ID_JSON_WITH_NODES, REL_ID_WAY_JSON_MAP), files(REL_ID_COMPLETE_JSON), new StageScheduler.Task() {
+            @Override
+            public void run(RunConfig stageConfig) {
+                createRelId2CompleteJson(stageConfig, input(REL_ID_JSON_WITH_NODES), input(REL_ID_WAY_JSON_MAP), REL_ID_COMPLETE_JSON);
+            }
+        });
+        if (lookupStores && partitioning == null) {
+            // a partitioned run writes the stores after concatenating the partitions
+            for (final String output : Arrays.asList(NODE_ID_NODEJSON_MAP, WAY_ID_COMPLETE_JSON, REL_ID_COMPLETE_JSON)) {
+                scheduler.add("lookup store " + output, files(output), Collections.<String> emptyList(), new StageScheduler.Task() {
+                    @Override
+                    public void run(RunConfig stageConfig) {
+                        OsmLookup.writeStore(output, Arrays.asList(output), stageConfig);
+                    }
+                });
+            }
+        }
+        scheduler.run();
 
         processTimer.stop();
     }
 
+    /**
+     * Deletes an intermediate file that no stage needs anymore, unless it is one of the final outputs or intermediates
+     * are kept.
+     */
+    private void deleteIntermediate(String name) {
+        if (keepIntermediates || FINAL_OUTPUTS.contains(name)) {
+            return;
+        }
+        String file = file(name);
+        LOG.info("deleting " + file);
+        FileUtils.deleteQuietly(new File(file));
+        FileUtils.deleteQuietly(GzipIndex.indexFile(file));
+    }
+
     public static void main(String[] args) {
-        OsmJoin osmJoin = new OsmJoin("./temp", new JsonParser());
-        String osmxml = args[0];
+        RunConfig config = RunConfig.fromArgs(args);
+        Threads.setVirtual(config.getBoolean("virtualThreads", false));
+        if (config.getPositional().isEmpty()) {
+            throw new IllegalArgumentException("usage: OsmJoin [--config=file] [--key=value ...] planet.osm.bz2 [region]");
+        }
+        OsmJoin osmJoin = new OsmJoin(config.get("workDirectory") != null ? config.get("workDirectory") : "./temp", new JsonParser(), config);
+        String osmxml = config.getPositional().get(0);
+        String region = config.getPositional().size() > 1 ? config.getPositional().get(1) : config.get("region");
+        if (region != null) {
+            osmJoin.setRegionFilter(regionFilter(region));
+        }
+        osmJoin.setPruneNodes(config.getBoolean("pruneNodes", false));
+        osmJoin.setSplice(config.getBoolean("splice", true));
+        osmJoin.setMaxRelationDepth(config.getInt("maxRelationDepth", 2));
+        osmJoin.setConcurrentStages(config.getInt("concurrentStages", 2));
+        osmJoin.setKeepIntermediates(config.getBoolean("keepIntermediates", false));
+        osmJoin.setLookupStores(config.getBoolean("lookupStores", false));
+        if (config.getBoolean("tagDictionary", false)) {
+            osmJoin.setTagDictionary(TagDictionary.fromConfig(config));
+        }
         osmJoin.processAll(osmxml);
     }
+
+    /**
+     * @param spec
+     *            either a file in the osmosis .poly format or a minLon,minLat,maxLon,maxLat bounding box
+     * @return the region filter
+     */
+    static RegionFilter regionFilter(String spec) {
+        if (new File(spec).exists()) {
+            try {
+                return PolygonFilter.read(spec);
+            } catch (IOException e) {
+                throw new IllegalStateException("cannot read polygon file " + spec, e);
+            }
+        } else {
+            return BoundingBoxFilter.parse(spec);
+        }
+    }
 }
@@ -0,0 +1,136 @@
+package com.github.jillesvangurp.osm2geojson;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.github.jillesvangurp.common.FixedPoint;
+import com.github.jillesvangurp.mergesort.BlockStore;
+import com.github.jillesvangurp.metrics.StopWatch;
+
+/**
+ * Looks up the joined json of nodes, ways, and relations by id, using the {@link BlockStore}s that {@link OsmJoin} writes
+ * next to its outputs when lookupStores is enabled. Only the block with the id is read, so this is fast enough to fetch
+ * single objects from the full planet. Codes of a {@link TagDictionary} are expanded and coordinates are
+ * formatted as decimal degrees. Safe to use from multiple threads.
+ */
+public class OsmLookup implements Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(OsmLookup.class);
+
+    // there are too many nodes for a Bloom filter of a sensible size
+    private static final double NODE_BLOOM_FPP = 0;
+
+    private final BlockStore nodes;
+    private final BlockStore ways;
+    private final BlockStore relations;
+    private final TagDictionary dictionary;
+
+    /**
+     * @param directory
+     *            directory with the outputs of {@link OsmJoin}
+     */
+    public OsmLookup(String directory) throws IOException {
+        nodes = open(directory, OsmJoin.NODE_ID_NODEJSON_MAP);
+        ways = open(directory, OsmJoin.WAY_ID_COMPLETE_JSON);
+        relations = open(directory, OsmJoin.REL_ID_COMPLETE_JSON);
+        dictionary = TagDictionary.read(directory);
+    }
+
+    private static BlockStore open(String directory, String output) throws IOException {
+        String store = BlockStore.storeName(new File(directory, output).getPath());
+        return new File(store + BlockStore.INDEX_SUFFIX).exists() ? BlockStore.open(store) : null;
+    }
+
+    /**
+     * @return the node json or null if there is no such node
+     */
+    public String node(long id) {
+        return get(nodes, OsmJoin.NODE_ID_NODEJSON_MAP, id);
+    }
+
+    /**
+     * @return the way json with the nodes embedded or null if there is no such way
+     */
+    public String way(long id) {
+        return get(ways, OsmJoin.WAY_ID_COMPLETE_JSON, id);
+    }
+
+    /**
+     * @return the relation json with the members embedded or null if there is no such relation
+     */
+    public String relation(long id) {
+        return get(relations, OsmJoin.REL_ID_COMPLETE_JSON, id);
+    }
+
+    private String get(BlockStore store, String output, long id) {
+        if (store == null) {
+            throw new IllegalStateException("there is no lookup store for " + output + ", run OsmJoin with --lookupStores");
+        }
+        String json = store.get(id);
+        if (json == null) {
+            return null;
+        }
+        json = FixedPoint.decodeJson(json);
+        return dictionary != null ? dictionary.decodeJson(json) : json;
+    }
+
+    @Override
+    public void close() {
+        for (BlockStore store : new BlockStore[] { nodes, ways, relations }) {
+            if (store != null) {
+                store.close();
+            }
+        }
+    }
+
+    /**
+     * Writes the lookup store for one of the outputs of {@link OsmJoin}.
+     *
+     * @param output
+     *            the output file, the store is written next to it
+     * @param sortedFiles
+     *            the sorted files with the entries; the output itself or, for a partitioned run, the outputs of the
+     *            partitions
+     * @param config
+     *            supports lookupStore.blockSize and lookupStore.bloomFpp
+     */
+    static void writeStore(String output, List<String> sortedFiles, RunConfig config) {
+        StopWatch timer = StopWatch.time(LOG, "write lookup store for " + output);
+        int blockSize = config.getInt("lookupStore.blockSize", BlockStore.DEFAULT_BLOCK_SIZE);
+        double bloomFpp = output.endsWith(OsmJoin.NODE_ID_NODEJSON_MAP) ? NODE_BLOOM_FPP : config.getDouble("lookupStore.bloomFpp", 0.01);
+        try {
+            BlockStore.build(sortedFiles, BlockStore.storeName(output), blockSize, bloomFpp);
+        } catch (IOException e) {
+            throw new IllegalStateException("cannot write lookup store for " + output, e);
+        }
+        timer.stop();
+    }
+
+    public static void main(String[] args) throws IOException {
+        RunConfig config = RunConfig.fromArgs(args);
+        List<String> positional = config.getPositional();
+        if (positional.size() < 2) {
+            throw new IllegalArgumentException("usage: OsmLookup [--directory=dir] node|way|relation id ...");
+        }
+        try (OsmLookup lookup = new OsmLookup(config.get("directory") != null ? config.get("directory") : ".")) {
+            String type = positional.get(0);
+            for (String id : positional.subList(1, positional.size())) {
+                String json;
+                if ("node".equals(type)) {
+                    json = lookup.node(Long.valueOf(id));
+                } else if ("way".equals(type)) {
+                    json = lookup.way(Long.valueOf(id));
+                } else if ("relation".equals(type)) {
+                    json = lookup.relation(Long.valueOf(id));
+                } else {
+                    throw new IllegalArgumentException("unknown type " + type);
+                }
+                System.out.println(json != null ? json : "no " + type + " " + id);
+            }
+        }
+    }
+}
@@ -3,29 +3,43 @@ package com.github.jillesvangurp.osm2geojson;
 import static com.github.jsonj.tools.JsonBuilder.array;
 import static com.github.jsonj.tools.JsonBuilder.field;
 import static com.github.jsonj.tools.JsonBuilder.object;
+import static com.github.jsonj.tools.JsonBuilder.primitive;
 import static com.github.jsonj.tools.JsonBuilder.set;
 import static com.jillesvangurp.iterables.Iterables.compose;
-import static com.jillesvangurp.iterables.Iterables.processConcurrently;
 
 import java.io.BufferedWriter;
 import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map.Entry;
+import java.util.Set;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.github.jillesvangurp.common.FixedPoint;
+import com.github.jillesvangurp.common.JsonStreamWriter;
+import com.github.jillesvangurp.common.RawJson;
 import com.github.jillesvangurp.common.ResourceUtil;
+import com.github.jillesvangurp.common.StringPool;
+import com.github.jillesvangurp.common.Threads;
+import com.github.jillesvangurp.flow.Pipe;
+import com.github.jillesvangurp.flow.Sink;
 import com.github.jillesvangurp.mergesort.EntryParsingProcessor;
 import com.github.jillesvangurp.metrics.LoggingCounter;
 import com.github.jillesvangurp.metrics.StopWatch;
+import com.github.jillesvangurp.osm2geojson.AutoTuner.Stage;
 import com.github.jsonj.JsonArray;
 import com.github.jsonj.JsonElement;
 import com.github.jsonj.JsonObject;
 import com.github.jsonj.JsonSet;
 import com.github.jsonj.tools.JsonParser;
-import com.jillesvangurp.iterables.ConcurrentProcessingIterable;
 import com.jillesvangurp.iterables.LineIterable;
 import com.jillesvangurp.iterables.Processor;
 
@@ -39,14 +53,28 @@ public class OsmPostProcessor {
     private static final String OSM_POIS_GZ = "osm-pois.gz";
     private static final String OSM_WAYS_GZ = "osm-ways.gz";
     private static final String OSM_RELATIONS_GZ = "osm-relations.gz";
+    private static final String[] NAME = new String[] { "name" };
+    private static final long POLL_MILLIS = 100;
     private final EntryParsingProcessor entryParsingProcessor = new EntryParsingProcessor();
     private final JsonParser parser;
-    private final Processor<Entry<String,String>,JsonObject> jsonParsingProcessor;
+    private final RunConfig config;
+    private final TagClassifier classifier;
+    private final GeometrySimplifier simplifier;
+    private final NodeJsonParsingProcessor jsonParsingProcessor;
+    private final StringPool tagPool;
     private String dir = "./";
 
     public OsmPostProcessor(JsonParser jsonParser) {
+        this(jsonParser, new RunConfig());
+    }
+
+    public OsmPostProcessor(JsonParser jsonParser, RunConfig config) {
         this.parser = jsonParser;
-        jsonParsingProcessor = new NodeJsonParsingProcessor(parser);
+        this.config = config;
+        classifier = config.get("tagRules") != null ? TagClassifier.fromFile(config.get("tagRules")) : TagClassifier.defaultRules();
+        simplifier = new GeometrySimplifier(config);
+        jsonParsingProcessor = new NodeJsonParsingProcessor(parser, classifier);
+        tagPool = OsmJoin.tagPool(config);
     }
 
     public OsmPostProcessor setDirectory(String dir) {
@@ -95,6 +123,7 @@ public class OsmPostProcessor {
 
         return new JsonWriter() {
             BufferedWriter out;
+            JsonStreamWriter jsonWriter = new JsonStreamWriter();
 
             {
                 out = ResourceUtil.gzipFileWriter(location);
@@ -102,7 +131,7 @@ public class OsmPostProcessor {
 
             @Override
             public void add(JsonObject json) throws IOException {
-                out.append(json.toString() + '\n');
+                jsonWriter.writeLine(out, json);
             }
 
             @Override
@@ -112,89 +141,227 @@ public class OsmPostProcessor {
         };
     }
 
+    /**
+     * Processes the nodes, ways, and relations at the same time, each in its own pipe. The pipes share the executor of
+     * the config, see {@link RunConfig#executor()}, so an input that is slow to read doesn't leave the threads idle.
+     */
+    public void processAll() {
+        readTagDictionary();
+        try (LoggingCounter nodeCounter = LoggingCounter.counter(LOG, "process nodes", "nodes", 100000);
+                LoggingCounter wayCounter = LoggingCounter.counter(LOG, "process ways", "ways", 100000);
+                LoggingCounter relationCounter = LoggingCounter.counter(LOG, "process relations", "relations", 10000);
+                LineIterable nodes = ResourceUtil.gzipLineIterable(nodesFile());
+                LineIterable ways = ResourceUtil.gzipLineIterable(dir + OsmJoin.WAY_ID_COMPLETE_JSON);
+                LineIterable relations = ResourceUtil.gzipLineIterable(dir + OsmJoin.REL_ID_COMPLETE_JSON);
+                JsonWriter poiWriter = createJsonWriter(OsmType.POI);
+                JsonWriter wayWriter = createJsonWriter(OsmType.WAY);
+                JsonWriter relationWriter = createJsonWriter(OsmType.RELATION)) {
+            List<Sink<List<JsonObject>>> sinks = new ArrayList<>();
+            try {
+                // separate measurements, the inputs are read at the same time and have very different record sizes
+                sinks.add(start(config.stage("nodes"), nodes, nodeProcessor(nodeCounter), poiWriter));
+                sinks.add(start(config.stage("ways"), ways, wayProcessor(wayCounter), wayWriter));
+                sinks.add(start(config.stage("relations"), relations, relationProcessor(relationCounter), relationWriter));
+            } catch (RuntimeException e) {
+                cancel(sinks);
+                throw e;
+            }
+            awaitAll(sinks);
+            for (String input : Arrays.asList("nodes", "ways", "relations")) {
+                config.stage(input).tuner().completed(Stage.POSTPROCESS);
+            }
+            logStats();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
     public void processNodes() {
         try (LoggingCounter counter = LoggingCounter.counter(LOG, "process nodes", "nodes", 100000)) {
-            LineIterable lineIterable = LineIterable.openGzipFile(dir + OsmJoin.NODE_ID_NODEJSON_MAP);
-            try (JsonWriter writer = createJsonWriter(OsmType.POI)) {
-                Processor<String, JsonObject> p = compose(entryParsingProcessor, jsonParsingProcessor, new Processor<JsonObject, JsonObject>() {
+            process(nodesFile(), OsmType.POI, nodeProcessor(counter));
+        }
+    }
+
+    public void processWays() {
+        try(LoggingCounter counter = LoggingCounter.counter(LOG, "process ways", "ways", 100000)) {
+            process(dir + OsmJoin.WAY_ID_COMPLETE_JSON, OsmType.WAY, wayProcessor(counter));
+        }
+    }
+
+    public void processRelations() {
+        try (LoggingCounter counter = LoggingCounter.counter(LOG, "process relations", "relations", 10000)) {
+            process(dir + OsmJoin.REL_ID_COMPLETE_JSON, OsmType.RELATION, relationProcessor(counter));
+        }
+    }
+
+    private void process(String file, OsmType type, Processor<String, JsonObject> p) {
+        readTagDictionary();
+        try (LineIterable lineIterable = ResourceUtil.gzipLineIterable(file)) {
+            try (final JsonWriter writer = createJsonWriter(type)) {
+                start(config, lineIterable, p, writer).await();
+                config.tuner().completed(Stage.POSTPROCESS);
+            }
+            logStats();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Starts a pipe that processes the lines in blocks on the executor and writes the results in the order of the lines.
+     */
+    private Sink<List<JsonObject>> start(RunConfig stageConfig, Iterable<String> lines, Processor<String, JsonObject> p, final JsonWriter writer) {
+        return Pipe.from(stageConfig.tuner().measure(Stage.POSTPROCESS, lines))
+                .batch(stageConfig.blockSizes(Stage.POSTPROCESS))
+                .parallelMap(Pipe.perItem(p), stageConfig.executor(), Math.max(stageConfig.threads(), stageConfig.queueSize(Stage.POSTPROCESS)))
+                .to(new Processor<List<JsonObject>, Void>() {
                     @Override
-                    public JsonObject process(JsonObject input) {
-                        if(input != null) {
-                            String id = input.getString("id");
-                            String name = input.getString("tags","name");
-                            if(name == null) {
-                                return null;
+                    public Void process(List<JsonObject> block) {
+                        try {
+                            for (JsonObject o : block) {
+                                writer.add(o);
                             }
-                            JsonObject geometry=object(field("type","Point"),field("coordinates",input.getArray("l")));
-                            JsonObject geoJson = object(
-                                    field("id", "osmnode/"+id),
-                                    field("title",name),
-                                    field("geometry",geometry)
-                            );
-                            geoJson = interpretTags(input, geoJson);
-                            counter.inc();
-                            return geoJson;
+                        } catch (IOException e) {
+                            throw new IllegalStateException(e);
                         }
                         return null;
                     }
                 });
-                try (ConcurrentProcessingIterable<String, JsonObject> concIt = processConcurrently(lineIterable, p, 10, 9, 100)) {
-                    for (JsonObject o : concIt) {
-                        if (o != null) {
-                            writer.add(o);
-                        }
+    }
+
+    /**
+     * Waits for all sinks; if one fails, the others are cancelled so we don't wait for them to finish first.
+     */
+    private static void awaitAll(List<Sink<List<JsonObject>>> sinks) {
+        List<Sink<List<JsonObject>>> running = new ArrayList<>(sinks);
+        try {
+            while (!running.isEmpty()) {
+                Iterator<Sink<List<JsonObject>>> it = running.iterator();
+                while (it.hasNext()) {
+                    Sink<List<JsonObject>> sink = it.next();
+                    if (sink.isDone()) {
+                        it.remove();
+                        // throws if it failed
+                        sink.await();
                     }
-                } catch (IOException e) {
-                    throw new IllegalStateException(e);
+                }
+                if (!running.isEmpty()) {
+                    Thread.sleep(POLL_MILLIS);
                 }
             }
-        } catch (IOException e) {
-            throw new IllegalStateException(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            cancel(running);
+            throw new IllegalStateException("interrupted while waiting for the post processing", e);
+        } catch (RuntimeException e) {
+            cancel(running);
+            throw e;
         }
     }
 
-    public void processWays() {
-        try(LoggingCounter counter = LoggingCounter.counter(LOG, "process ways", "ways", 100000)) {
-            LineIterable lineIterable = LineIterable.openGzipFile(dir + OsmJoin.WAY_ID_COMPLETE_JSON);
-            try (JsonWriter writer = createJsonWriter(OsmType.WAY)) {
-                Processor<String, JsonObject> p = compose(entryParsingProcessor, jsonParsingProcessor, new Processor<JsonObject, JsonObject>() {
-                    @Override
-                    public JsonObject process(JsonObject input) {
-                        String id = input.getString("id");
-                        String name = input.getString("tags","name");
-                        if(name == null) {
-                            return null;
-                        }
-                        JsonObject geometry = getWayGeometry(input);
-                        JsonObject geoJson = object(
-                                field("id", "osmway/"+id),
-                                field("title",name),
-                                field("geometry",geometry)
-                        );
-                        geoJson = interpretTags(input, geoJson);
-                        counter.inc();
-                        return geoJson;
-                    }
-                });
-                try (ConcurrentProcessingIterable<String, JsonObject> concIt = processConcurrently(lineIterable, p, 10, 9, 100)) {
-                    for (JsonObject o : concIt) {
-                        if (o != null) {
-                            writer.add(o);
-                        }
+    private static void cancel(List<Sink<List<JsonObject>>> sinks) {
+        for (Sink<List<JsonObject>> sink : sinks) {
+            sink.cancel();
+        }
+    }
+
+    private Processor<String, JsonObject> nodeProcessor(final LoggingCounter counter) {
+        return compose(entryParsingProcessor, jsonParsingProcessor, new Processor<JsonObject, JsonObject>() {
+            @Override
+            public JsonObject process(JsonObject input) {
+                if(input != null) {
+                    String id = input.getString("id");
+                    String name = input.getString("tags","name");
+                    if(name == null) {
+                        return null;
                     }
-                } catch (IOException e) {
-                    throw new IllegalStateException(e);
+                    JsonObject geometry=object(field("type","Point"),field("coordinates",lonLat(input.getArray("l"))));
+                    JsonObject geoJson = object(
+                            field("id", "osmnode/"+id),
+                            field("title",name),
+                            field("geometry",geometry)
+                    );
+                    geoJson = simplifier.apply(interpretTags(input, geoJson));
+                    counter.inc();
+                    return geoJson;
+                }
+                return null;
+            }
+        });
+    }
+
+    private Processor<String, JsonObject> wayProcessor(final LoggingCounter counter) {
+        return compose(entryParsingProcessor, jsonParsingProcessor, new Processor<JsonObject, JsonObject>() {
+            @Override
+            public JsonObject process(JsonObject input) {
+                if(input == null) {
+                    return null;
                 }
+                String id = input.getString("id");
+                String name = input.getString("tags","name");
+                if(name == null) {
+                    return null;
+                }
+                JsonObject geometry = getWayGeometry(input);
+                JsonObject geoJson = object(
+                        field("id", "osmway/"+id),
+                        field("title",name),
+                        field("geometry",geometry)
+                );
+                geoJson = simplifier.apply(interpretTags(input, geoJson));
+                counter.inc();
+                return geoJson;
             }
+        });
+    }
+
+    private void logStats() {
+        simplifier.logStats();
+        LOG.info("tag pool: " + tagPool.stats());
+        LOG.info("category pool: " + classifier.poolStats());
+    }
+
+    private void readTagDictionary() {
+        try {
+            jsonParsingProcessor.dictionary = TagDictionary.read(dir);
         } catch (IOException e) {
-            throw new IllegalStateException(e);
+            throw new IllegalStateException("cannot read the tag dictionary in " + dir, e);
         }
     }
 
+    private String nodesFile() {
+        // only the tagged nodes are of interest, if OsmJoin pruned the nodes they are in a separate file
+        File poiFile = new File(dir + OsmJoin.NODE_ID_POI_JSON_MAP);
+        if (poiFile.exists()) {
+            return poiFile.getPath();
+        } else {
+            return dir + OsmJoin.NODE_ID_NODEJSON_MAP;
+        }
+    }
+
+    /**
+     * @return the coordinate in degrees; OsmJoin writes them in units of 1e-7 degrees, see {@link FixedPoint}
+     */
+    static double coordinate(JsonElement element) {
+        Object value = element.asPrimitive().value();
+        if (value instanceof Double || value instanceof Float) {
+            // written before coordinates were fixed point
+            return ((Number) value).doubleValue();
+        }
+        return FixedPoint.toDouble(element.asLong());
+    }
+
+    static JsonArray lonLat(JsonArray l) {
+        JsonArray point = new JsonArray();
+        point.add(primitive(coordinate(l.get(0))));
+        point.add(primitive(coordinate(l.get(1))));
+        return point;
+    }
+
     private JsonObject getWayGeometry(JsonObject input) {
         JsonArray coordinates=array();
         for(JsonObject n: input.getArray("nodes").objects()) {
-            coordinates.add(n.getArray("l"));
+            coordinates.add(lonLat(n.getArray("l")));
         }
         String type="LineString";
         if(coordinates.get(0).equals(coordinates.get(coordinates.size()-1))) {
@@ -207,37 +374,100 @@ public class OsmPostProcessor {
         return geometry;
     }
 
-    public void processRelations() {
-        try {
-            LineIterable lineIterable = LineIterable.openGzipFile(dir + OsmJoin.REL_ID_COMPLETE_JSON);
-            try (JsonWriter writer = createJsonWriter(OsmType.RELATION)) {
-                Processor<String, JsonObject> p = compose(entryParsingProcessor, jsonParsingProcessor, new Processor<JsonObject, JsonObject>() {
-                    @Override
-                    public JsonObject process(JsonObject input) {
-                        // FIXME see if we can extract some useful things from relations
-                        // process 350K relations
-                        // extract admin_levels (60K) multi_polygons
-                        // extract public transport routes (62K)
-                        // associated street (30K)
-                        // TMC ??? some traffic meta data (17K)
-                        // restriction on traffic (153K)
-                        // rest 34K (mix of all kinds of uncategorized metadata)
+    private Processor<String, JsonObject> relationProcessor(final LoggingCounter counter) {
+        return compose(entryParsingProcessor, jsonParsingProcessor, new Processor<JsonObject, JsonObject>() {
+            @Override
+            public JsonObject process(JsonObject input) {
+                // other relations (routes, associated streets, restrictions, etc.) don't have a geometry of their own
+                if(input == null) {
+                    return null;
+                }
+                String type = input.getString("tags", "type");
+                if(!"multipolygon".equals(type) && !"boundary".equals(type)) {
+                    return null;
+                }
+                String id = input.getString("id");
+                String name = input.getString("tags","name");
+                if(name == null) {
+                    return null;
+                }
+                JsonObject geometry = getRelationGeometry(input);
+                if(geometry == null) {
+                    return null;
+                }
+                JsonObject geoJson = object(
+                        field("id", "osmrelation/"+id),
+                        field("title",name),
+                        field("geometry",geometry)
+                );
+                geoJson = simplifier.apply(interpretTags(input, geoJson));
+                if(geoJson != null) {
+                    counter.inc();
+                }
+                return geoJson;
+            }
+        });
+    }
 
-                        return null;
-                    }
-                });
-                try (ConcurrentProcessingIterable<String, JsonObject> concIt = processConcurrently(lineIterable, p, 10, 9, 100)) {
-                    for (JsonObject o : concIt) {
-                        if (o != null) {
-                            writer.add(o);
-                        }
-                    }
-                } catch (IOException e) {
-                    throw new IllegalStateException(e);
+    /**
+     * @return Polygon or MultiPolygon geometry assembled from the member ways, or null if there are no closed outer
+     *         rings
+     */
+    JsonObject getRelationGeometry(JsonObject input) {
+        JsonArray ways = input.getArray("ways");
+        if(ways == null) {
+            return null;
+        }
+        Set<String> innerWays = new HashSet<>();
+        JsonArray members = input.getArray("members");
+        if(members != null) {
+            for(JsonObject member: members.objects()) {
+                if("way".equals(member.getString("type")) && "inner".equals(member.getString("role"))) {
+                    innerWays.add(member.getString("id"));
                 }
             }
-        } catch (IOException e) {
-            throw new IllegalStateException(e);
+        }
+        RingAssembler assembler = new RingAssembler();
+        for(JsonObject way: ways.objects()) {
+            JsonArray nodes = way.getArray("nodes");
+            if(nodes == null) {
+                continue;
+            }
+            double[] lonLats = new double[nodes.size() * 2];
+            int i = 0;
+            for(JsonObject node: nodes.objects()) {
+                JsonArray l = node.getArray("l");
+                lonLats[i++] = coordinate(l.get(0));
+                lonLats[i++] = coordinate(l.get(1));
+            }
+            assembler.add(lonLats, innerWays.contains(way.getString("id")));
+        }
+        List<List<double[]>> polygons = assembler.assemble();
+        if(assembler.unusedWays() > 0 || assembler.unassignedInnerRings() > 0) {
+            LOG.debug("relation " + input.getString("id") + ": " + assembler.unusedWays() + " ways not part of a closed ring, " + assembler.unassignedInnerRings() + " inner rings outside outer rings");
+        }
+        if(polygons.isEmpty()) {
+            return null;
+        }
+        JsonArray coordinates = array();
+        for(List<double[]> polygon: polygons) {
+            JsonArray rings = array();
+            for(double[] ring: polygon) {
+                JsonArray points = array();
+                for(int i = 0; i < ring.length; i += 2) {
+                    JsonArray point = array();
+                    point.add(primitive(ring[i]));
+                    point.add(primitive(ring[i + 1]));
+                    points.add(point);
+                }
+                rings.add(points);
+            }
+            coordinates.add(rings);
+        }
+        if(coordinates.size() == 1) {
+            return object(field("type","Polygon"),field("coordinates",coordinates.get(0)));
+        } else {
+            return object(field("type","MultiPolygon"),field("coordinates",coordinates));
         }
     }
 
@@ -250,83 +480,14 @@ public class OsmPostProcessor {
             String tagName = entry.getKey();
             String value = entry.getValue().asString();
             if(tagName.startsWith("addr:")) {
-                address.put(entry.getKey().substring(5), value);
+                address.put(tagPool.intern(tagName, 5, tagName.length()), value);
             } else if(tagName.startsWith("name:")) {
-                String language = tagName.substring(5);
+                String language = tagPool.intern(tagName, 5, tagName.length());
                 name.getOrCreateArray(language).add(value);
-            } else {
-                switch (tagName) {
-                    case "highway":
-                        osmCategories.add("street");
-                    osmCategories.add(tagName +":"+value);
-                        break;
-                    case "leisure":
-                    osmCategories.add(tagName +":"+value);
-                        break;
-                    case "amenity":
-                    osmCategories.add(tagName +":"+value);
-                        break;
-                    case "natural":
-                    osmCategories.add(tagName +":"+value);
-                        break;
-                    case "historic":
-                    osmCategories.add(tagName +":"+value);
-                        break;
-                    case "cuisine":
-                    osmCategories.add(tagName +":"+value);
-                        break;
-                    case "tourism":
-                    osmCategories.add(tagName +":"+value);
-                        break;
-                    case "shop":
-                    osmCategories.add(tagName +":"+value);
-                        break;
-                    case "building":
-                    osmCategories.add(tagName +":"+value);
-                        break;
-                    case "admin-level":
-                    osmCategories.add(tagName +":"+value);
-                        break;
-
-                    default:
-                        break;
-                }
-            }
-        }
-
-        if(hasPair(tags, "building", "yes")) {
-            if(hasPair(tags,"amenity", "public_building")) {
-                osmCategories.add("public-building");
-            } else {
-                osmCategories.add("building");
             }
         }
-
-        if (hasPair(tags, "railway", "tram_stop")) {
-            osmCategories.add("tram-stop");
-        }
-
-        if (hasPair(tags, "railway", "station")) {
-            osmCategories.add("train-station");
-        }
-
-        if (hasPair(tags, "railway", "halt")) {
-            // may be some rail way crossings included
-            osmCategories.add("train-station");
-        }
-
-        if (hasPair(tags, "station", "light_rail")) {
-            osmCategories.add("light-rail-station");
-        }
-
-        if (hasPair(tags, "public_transport", "stop_position")) {
-            if (hasPair(tags, "light_rail", "yes")) {
-                osmCategories.add("light-rail-station");
-            } else if(hasPair(tags, "bus", "yes")) {
-                osmCategories.add("bus-stop");
-            } else if(hasPair(tags, "railway", "halt")) {
-                osmCategories.add("train-station");
-            }
+        for (String category : classifier.classify(tags)) {
+            osmCategories.add(category);
         }
 
         if(osmCategories.size() > 0) {
@@ -344,38 +505,106 @@ public class OsmPostProcessor {
         return geoJson;
     }
 
-    protected static boolean hasPair(JsonObject object, String key, String value) {
-        String objectValue = object.getString(key);
-        if(objectValue != null) {
-            return value.equalsIgnoreCase(objectValue);
-        } else {
-            return false;
-        }
-    }
-
     public static void main(String[] args) {
         StopWatch stopWatch = StopWatch.time(LOG, "post process osm");
-        OsmPostProcessor processor = new OsmPostProcessor(new JsonParser());
-        processor.processNodes();
-        processor.processWays();
+        RunConfig config = RunConfig.fromArgs(args);
+        Threads.setVirtual(config.getBoolean("virtualThreads", false));
+        OsmPostProcessor processor = new OsmPostProcessor(new JsonParser(), config);
+        if (config.get("directory") != null) {
+            processor.setDirectory(config.get("directory"));
+        }
+        processor.processAll();
         stopWatch.stop();
     }
 
+    /**
+     * Most records have no name or no tags that interpretTags turns into a category, so they are never emitted. This
+     * checks for that on the raw json so we only parse the records that may be emitted.
+     *
+     * @param json
+     *            json of a node, way, or relation
+     * @param classifier
+     *            classifier used by interpretTags
+     * @return true if the record has a name tag and at least one of the tags the classifier has rules for
+     */
+    static boolean isCandidate(String json, TagClassifier classifier) {
+        return isCandidate(json, NAME, classifier.keys());
+    }
+
+    private static boolean isCandidate(String json, String[] names, String[] keys) {
+        int[] tags = RawJson.field(json, "tags");
+        if (tags == null || json.charAt(tags[1]) != '{') {
+            return false;
+        }
+        return RawJson.hasAnyField(json, tags[1], names) && RawJson.hasAnyField(json, tags[1], keys);
+    }
+
     private static final class NodeJsonParsingProcessor implements Processor<Entry<String, String>, JsonObject> {
         private final JsonParser parser;
+        private final TagClassifier classifier;
+        // set when OsmJoin wrote the outputs with a tag dictionary
+        volatile TagDictionary dictionary;
+        private volatile EncodedKeys encodedKeys;
 
-        public NodeJsonParsingProcessor(JsonParser parser) {
+        public NodeJsonParsingProcessor(JsonParser parser, TagClassifier classifier) {
             this.parser = parser;
+            this.classifier = classifier;
         }
 
         @Override
         public JsonObject process(Entry<String, String> input) {
-            if(input.getValue().length() > 50) {
-                return parser.parse(input.getValue()).asObject();
-            } else {
-                // node without usable metadata, don't waste time parsing it
+            TagDictionary dictionary = this.dictionary;
+            if (dictionary == null) {
+                if (isCandidate(input.getValue(), classifier)) {
+                    return parser.parse(input.getValue()).asObject();
+                }
+                // would be filtered out anyway, don't waste time parsing it
                 return null;
             }
+            // most records are not candidates, so check the encoded json and only decode the ones that are
+            EncodedKeys encoded = encodedKeys(dictionary);
+            if (isCandidate(input.getValue(), encoded.names, encoded.keys)) {
+                return parser.parse(dictionary.decodeJson(input.getValue())).asObject();
+            }
+            return null;
+        }
+
+        private EncodedKeys encodedKeys(TagDictionary dictionary) {
+            String[] keys = classifier.keys();
+            EncodedKeys encoded = encodedKeys;
+            // the keys change when the rules are reloaded
+            if (encoded == null || encoded.dictionary != dictionary || encoded.classifierKeys != keys) {
+                encoded = new EncodedKeys(dictionary, keys);
+                encodedKeys = encoded;
+            }
+            return encoded;
+        }
+    }
+
+    /**
+     * The tag keys that {@link #isCandidate(String, TagClassifier)} looks for, both as they are and as they are written
+     * with the dictionary.
+     */
+    private static final class EncodedKeys {
+        final TagDictionary dictionary;
+        final String[] classifierKeys;
+        final String[] names;
+        final String[] keys;
+
+        EncodedKeys(TagDictionary dictionary, String[] classifierKeys) {
+            this.dictionary = dictionary;
+            this.classifierKeys = classifierKeys;
+            names = withEncoded(dictionary, NAME);
+            keys = withEncoded(dictionary, classifierKeys);
+        }
+
+        private static String[] withEncoded(TagDictionary dictionary, String[] strings) {
+            Set<String> result = new LinkedHashSet<>();
+            for (String s : strings) {
+                result.add(s);
+                result.add(dictionary.encoded(s));
+            }
+            return result.toArray(new String[result.size()]);
         }
     }
 }
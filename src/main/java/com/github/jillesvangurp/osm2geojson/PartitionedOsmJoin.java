@@ -0,0 +1,258 @@
+package com.github.jillesvangurp.osm2geojson;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.github.jillesvangurp.common.GzipIndex;
+import com.github.jillesvangurp.common.Threads;
+import com.github.jillesvangurp.metrics.StopWatch;
+import com.github.jsonj.tools.JsonParser;
+
+/**
+ * Runs {@link OsmJoin} in several worker processes that each own a range of the node, way, and relation ids, see
+ * {@link Partitioning}. The workers exchange the entries that belong to other partitions as sorted files in a shared
+ * directory, so each worker only needs the heap for its own range. When all workers are done, the final outputs of the
+ * partitions are concatenated.
+ *
+ * By default the workers are started as local processes. To use other machines, pass a workerCommand that starts the
+ * java command on another machine, e.g. --workerCommand="ssh box{partition} cd {directory} &&". The shared directory
+ * then has to be on a file system that all machines can access, under the same path. All workers read the whole osm
+ * file, but only parse the nodes and ways in their range.
+ */
+public class PartitionedOsmJoin {
+    private static final Logger LOG = LoggerFactory.getLogger(PartitionedOsmJoin.class);
+
+    // a bit over the current max ids in the planet, so the ranges are about equal in size
+    static final long DEFAULT_MAX_NODE_ID = 13000000000l;
+    static final long DEFAULT_MAX_WAY_ID = 1500000000l;
+    static final long DEFAULT_MAX_RELATION_ID = 20000000l;
+
+    private static final List<String> OUTPUTS = Arrays.asList(OsmJoin.NODE_ID_NODEJSON_MAP, OsmJoin.WAY_ID_COMPLETE_JSON, OsmJoin.REL_ID_COMPLETE_JSON,
+            "problemNodes.gz", "problemWays.gz", "problemRelations.gz");
+
+    private static final long POLL_MILLIS = 1000;
+
+    private final RunConfig config;
+    private final String[] args;
+    private final int partitions;
+    private final File sharedDirectory;
+    private final File outputDirectory;
+
+    /**
+     * @param args
+     *            the arguments, passed on to the workers
+     */
+    public PartitionedOsmJoin(String... args) {
+        this.args = args;
+        config = RunConfig.fromArgs(args);
+        partitions = config.getInt("partitions", 2);
+        if (partitions < 1) {
+            throw new IllegalArgumentException("partitions should be at least 1 but was " + partitions);
+        }
+        if (config.getBoolean("tagDictionary", false)) {
+            // each partition would assign its own codes
+            throw new IllegalArgumentException("the tag dictionary is not supported when running partitioned");
+        }
+        if (config.getPositional().size() > 1 || config.get("region") != null || config.getBoolean("pruneNodes", false)) {
+            // the workers would each need all nodes of the ways and relations they keep
+            throw new IllegalArgumentException("region filters and pruning nodes are not supported when running partitioned");
+        }
+        outputDirectory = new File(config.get("directory") != null ? config.get("directory") : ".").getAbsoluteFile().toPath().normalize().toFile();
+        sharedDirectory = new File(config.get("sharedDirectory") != null ? config.get("sharedDirectory") : new File(outputDirectory, "partitions").getPath())
+                .getAbsoluteFile().toPath().normalize().toFile();
+    }
+
+    static Partitioning partitioning(RunConfig config, int partition) {
+        return new Partitioning(config.get("sharedDirectory"), config.getInt("partitions", 2), partition, config.getLong("maxNodeId", DEFAULT_MAX_NODE_ID),
+                config.getLong("maxWayId", DEFAULT_MAX_WAY_ID), config.getLong("maxRelationId", DEFAULT_MAX_RELATION_ID));
+    }
+
+    /**
+     * Starts the workers, waits for them, and concatenates their outputs in the output directory.
+     *
+     * @throws IllegalStateException
+     *             if a worker fails, the other workers are stopped
+     */
+    public void run() {
+        if (config.getPositional().isEmpty()) {
+            throw new IllegalArgumentException("usage: PartitionedOsmJoin [--partitions=n] [--key=value ...] planet.osm.bz2");
+        }
+        StopWatch timer = StopWatch.time(LOG, "partitioned join with " + partitions + " partitions");
+        try {
+            // the shared directory may be passed in, so only remove what a previous run left behind
+            deletePartitionDirectories();
+            FileUtils.forceMkdir(outputDirectory);
+        } catch (IOException e) {
+            throw new IllegalStateException("cannot prepare " + sharedDirectory, e);
+        }
+        List<Process> workers = new ArrayList<>();
+        try {
+            for (int p = 0; p < partitions; p++) {
+                workers.add(start(p));
+            }
+            awaitAll(workers);
+        } finally {
+            for (Process worker : workers) {
+                worker.destroy();
+            }
+        }
+        concatenate();
+        if (config.getBoolean("lookupStores", false)) {
+            for (String output : Arrays.asList(OsmJoin.NODE_ID_NODEJSON_MAP, OsmJoin.WAY_ID_COMPLETE_JSON, OsmJoin.REL_ID_COMPLETE_JSON)) {
+                // the concatenated output is only sorted per partition, so merge the partitions instead
+                OsmLookup.writeStore(new File(outputDirectory, output).getPath(), partitionFiles(output), config);
+            }
+        }
+        if (!config.getBoolean("keepIntermediates", false)) {
+            try {
+                deletePartitionDirectories();
+            } catch (IOException e) {
+                LOG.warn("cannot delete the partitions in " + sharedDirectory, e);
+            }
+            // only succeeds if nothing else is in there
+            sharedDirectory.delete();
+        }
+        timer.stop();
+    }
+
+    private void deletePartitionDirectories() throws IOException {
+        for (int p = 0; p < partitions; p++) {
+            FileUtils.deleteDirectory(new File(sharedDirectory, "part-" + p));
+        }
+    }
+
+    private Process start(int partition) {
+        File directory = new File(sharedDirectory, "part-" + partition);
+        List<String> command = new ArrayList<>();
+        String workerCommand = config.get("workerCommand");
+        if (StringUtils.isNotBlank(workerCommand)) {
+            for (String part : workerCommand.trim().split("\\s+")) {
+                command.add(part.replace("{partition}", "" + partition).replace("{directory}", directory.getPath()));
+            }
+        }
+        command.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getPath());
+        String jvmArgs = config.get("workerJvmArgs");
+        if (StringUtils.isNotBlank(jvmArgs)) {
+            command.addAll(Arrays.asList(jvmArgs.trim().split("\\s+")));
+        }
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(PartitionedOsmJoin.class.getName());
+        for (String arg : args) {
+            // the worker runs in its own directory
+            if (!arg.startsWith("--")) {
+                command.add(new File(arg).getAbsoluteFile().toPath().normalize().toString());
+            } else if (arg.startsWith("--config=")) {
+                command.add("--config=" + new File(arg.substring("--config=".length())).getAbsolutePath());
+            } else if (!arg.startsWith("--sharedDirectory=") && !arg.startsWith("--directory=")) {
+                command.add(arg);
+            }
+        }
+        command.add("--sharedDirectory=" + sharedDirectory.getPath());
+        command.add("--worker=" + partition);
+        try {
+            FileUtils.forceMkdir(directory);
+            LOG.info("starting worker " + partition + ": " + StringUtils.join(command, ' '));
+            ProcessBuilder builder = new ProcessBuilder(command).directory(directory).redirectErrorStream(true);
+            builder.redirectOutput(new File(directory, "worker.log"));
+            return builder.start();
+        } catch (IOException e) {
+            throw new IllegalStateException("cannot start worker " + partition, e);
+        }
+    }
+
+    private void awaitAll(List<Process> workers) {
+        int running = workers.size();
+        boolean[] done = new boolean[workers.size()];
+        while (running > 0) {
+            for (int p = 0; p < workers.size(); p++) {
+                if (!done[p]) {
+                    try {
+                        int exitValue = workers.get(p).exitValue();
+                        if (exitValue != 0) {
+                            throw new IllegalStateException("worker " + p + " failed with exit code " + exitValue + ", see "
+                                    + new File(new File(sharedDirectory, "part-" + p), "worker.log"));
+                        }
+                        LOG.info("worker " + p + " is done");
+                        done[p] = true;
+                        running--;
+                    } catch (IllegalThreadStateException e) {
+                        // still running
+                    }
+                }
+            }
+            try {
+                Thread.sleep(POLL_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("interrupted while waiting for the workers", e);
+            }
+        }
+    }
+
+    private List<String> partitionFiles(String output) {
+        List<String> parts = new ArrayList<>();
+        for (int p = 0; p < partitions; p++) {
+            File part = new File(new File(sharedDirectory, "part-" + p), output);
+            if (part.exists()) {
+                parts.add(part.getPath());
+            }
+        }
+        return parts;
+    }
+
+    private void concatenate() {
+        for (String output : OUTPUTS) {
+            List<String> parts = partitionFiles(output);
+            if (!parts.isEmpty()) {
+                String file = new File(outputDirectory, output).getPath();
+                LOG.info("concatenating " + parts.size() + " partitions of " + output);
+                try {
+                    GzipIndex.concat(parts, file);
+                } catch (IOException e) {
+                    throw new IllegalStateException("cannot concatenate " + parts + " into " + file, e);
+                }
+            }
+        }
+    }
+
+    private static void work(RunConfig config, int partition) {
+        Partitioning partitioning = partitioning(config, partition);
+        try {
+            OsmJoin osmJoin = new OsmJoin(config.get("workDirectory") != null ? config.get("workDirectory") : "./temp", new JsonParser(), config);
+            osmJoin.setPartitioning(partitioning);
+            osmJoin.setSplice(config.getBoolean("splice", true));
+            osmJoin.setMaxRelationDepth(config.getInt("maxRelationDepth", 2));
+            osmJoin.setConcurrentStages(config.getInt("concurrentStages", 2));
+            osmJoin.setKeepIntermediates(config.getBoolean("keepIntermediates", false));
+            osmJoin.processAll(config.getPositional().get(0));
+        } catch (RuntimeException | Error e) {
+            partitioning.markFailed();
+            throw e;
+        }
+    }
+
+    public static void main(String[] args) {
+        RunConfig config = RunConfig.fromArgs(args);
+        Threads.setVirtual(config.getBoolean("virtualThreads", false));
+        if (config.get("worker") != null) {
+            try {
+                work(config, config.getInt("worker", 0));
+            } catch (RuntimeException | Error e) {
+                LOG.error("worker failed", e);
+                // the coordinator goes by the exit code
+                System.exit(1);
+            }
+        } else {
+            new PartitionedOsmJoin(args).run();
+        }
+    }
+}
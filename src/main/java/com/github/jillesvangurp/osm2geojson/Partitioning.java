@@ -0,0 +1,238 @@
+package com.github.jillesvangurp.osm2geojson;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map.Entry;
+
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.github.jillesvangurp.common.GzipIndex;
+import com.github.jillesvangurp.common.ResourceUtil;
+import com.github.jillesvangurp.mergesort.EntryWriter;
+import com.github.jillesvangurp.mergesort.MergingEntryIterable;
+import com.jillesvangurp.iterables.LineIterable;
+
+/**
+ * Splits the node, way, and relation ids into ranges so that {@link OsmJoin} can run in several processes, see
+ * {@link PartitionedOsmJoin}. Each process owns a range of each kind of id and works in its own directory under a
+ * shared directory.
+ *
+ * Entries with a key that belongs to another partition, e.g. the node id to way id entries for the nodes of a way, are
+ * written to a sorted exchange file per partition. Once a partition is done writing a file, it leaves a marker and the
+ * other partitions merge the exchange files for their range when they need them.
+ */
+public class Partitioning {
+    private static final Logger LOG = LoggerFactory.getLogger(Partitioning.class);
+
+    public enum Kind {
+        NODE, WAY, RELATION
+    }
+
+    private static final String EXCHANGE_DIR = "exchange";
+    private static final String DONE_SUFFIX = ".done";
+    private static final String FAILED = "failed";
+    private static final long POLL_MILLIS = 500;
+
+    private final File sharedDirectory;
+    private final int partitions;
+    private final int partition;
+    private final long[] rangeSizes = new long[Kind.values().length];
+
+    /**
+     * @param sharedDirectory
+     *            directory with a directory per partition, on a file system that all partitions can access
+     * @param partitions
+     *            number of partitions
+     * @param partition
+     *            the partition of this process
+     * @param maxNodeId
+     *            the node ids up to this are split in equal ranges, bigger ids go to the last partition
+     * @param maxWayId
+     *            same for the way ids
+     * @param maxRelationId
+     *            same for the relation ids
+     */
+    public Partitioning(String sharedDirectory, int partitions, int partition, long maxNodeId, long maxWayId, long maxRelationId) {
+        if (partitions < 1 || partition < 0 || partition >= partitions) {
+            throw new IllegalArgumentException("invalid partition " + partition + " of " + partitions);
+        }
+        if (maxNodeId < 1 || maxWayId < 1 || maxRelationId < 1) {
+            throw new IllegalArgumentException("max ids should be positive");
+        }
+        this.sharedDirectory = new File(sharedDirectory).getAbsoluteFile();
+        this.partitions = partitions;
+        this.partition = partition;
+        rangeSizes[Kind.NODE.ordinal()] = maxNodeId / partitions + 1;
+        rangeSizes[Kind.WAY.ordinal()] = maxWayId / partitions + 1;
+        rangeSizes[Kind.RELATION.ordinal()] = maxRelationId / partitions + 1;
+    }
+
+    public int partitions() {
+        return partitions;
+    }
+
+    public int partition() {
+        return partition;
+    }
+
+    /**
+     * @return the partition that owns the id
+     */
+    public int partition(Kind kind, long id) {
+        if (id < 0) {
+            return 0;
+        }
+        return (int) Math.min(partitions - 1, id / rangeSizes[kind.ordinal()]);
+    }
+
+    public boolean owns(Kind kind, long id) {
+        return partition(kind, id) == partition;
+    }
+
+    /**
+     * @return the working directory of the partition
+     */
+    public File directory(int partition) {
+        return new File(sharedDirectory, "part-" + partition);
+    }
+
+    /**
+     * @return file with the entries for the target partition that this partition writes
+     */
+    public String exchangeFile(String name, int target) {
+        File dir = new File(new File(directory(partition), EXCHANGE_DIR), "" + target);
+        try {
+            FileUtils.forceMkdir(dir);
+        } catch (IOException e) {
+            throw new IllegalStateException("cannot create dir " + dir, e);
+        }
+        return new File(dir, name).getPath();
+    }
+
+    private File doneMarker(int partition, String name) {
+        return new File(new File(directory(partition), EXCHANGE_DIR), name + DONE_SUFFIX);
+    }
+
+    /**
+     * @param name
+     *            name of the exchanged file
+     * @param kind
+     *            kind of id in the keys
+     * @param writers
+     *            a writer for the exchange file of each partition, see {@link #exchangeFile(String, int)}
+     * @return writer that sends each entry to the partition of its key and marks the file as done when closed
+     */
+    public EntryWriter writer(final String name, final Kind kind, final List<? extends EntryWriter> writers) {
+        if (writers.size() != partitions) {
+            throw new IllegalArgumentException("expected a writer for each of the " + partitions + " partitions");
+        }
+        return new EntryWriter() {
+            @Override
+            public void put(String key, String value) {
+                writers.get(partition(kind, Long.valueOf(key))).put(key, value);
+            }
+
+            @Override
+            public void close() throws IOException {
+                IOException failure = null;
+                for (EntryWriter writer : writers) {
+                    try {
+                        writer.close();
+                    } catch (IOException e) {
+                        failure = e;
+                    }
+                }
+                if (failure != null) {
+                    throw failure;
+                }
+                FileUtils.touch(doneMarker(partition, name));
+            }
+        };
+    }
+
+    /**
+     * Waits until all partitions are done writing the exchanged file and merges the entries for this partition into a
+     * single sorted file. The exchange files are deleted afterwards.
+     *
+     * @param name
+     *            name of the exchanged file
+     * @param output
+     *            sorted output
+     * @throws IllegalStateException
+     *             if another partition failed
+     */
+    public void gather(String name, String output) {
+        List<String> files = new ArrayList<>();
+        for (int p = 0; p < partitions; p++) {
+            awaitDone(p, name);
+            files.add(new File(new File(new File(directory(p), EXCHANGE_DIR), "" + partition), name).getPath());
+        }
+        LOG.info("merging " + partitions + " partitions of " + name);
+        List<LineIterable> iterables = new ArrayList<>();
+        try {
+            for (String file : files) {
+                iterables.add(ResourceUtil.gzipLineIterable(file));
+            }
+            try (BufferedWriter out = ResourceUtil.gzipFileWriter(output)) {
+                for (Entry<String, String> entry : new MergingEntryIterable(iterables)) {
+                    out.write(entry.getKey());
+                    out.write(';');
+                    out.write(entry.getValue());
+                    out.write('\n');
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("cannot merge " + files + " into " + output, e);
+        } finally {
+            for (LineIterable iterable : iterables) {
+                try {
+                    iterable.close();
+                } catch (IOException e) {
+                    LOG.warn("cannot close " + iterable, e);
+                }
+            }
+        }
+        for (String file : files) {
+            FileUtils.deleteQuietly(new File(file));
+            FileUtils.deleteQuietly(GzipIndex.indexFile(file));
+        }
+    }
+
+    private void awaitDone(int p, String name) {
+        File marker = doneMarker(p, name);
+        boolean logged = false;
+        while (!marker.exists()) {
+            for (int other = 0; other < partitions; other++) {
+                if (new File(directory(other), FAILED).exists()) {
+                    throw new IllegalStateException("partition " + other + " failed while waiting for " + name);
+                }
+            }
+            if (!logged) {
+                LOG.info("waiting for partition " + p + " to write " + name);
+                logged = true;
+            }
+            try {
+                Thread.sleep(POLL_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("interrupted while waiting for " + marker, e);
+            }
+        }
+    }
+
+    /**
+     * Leaves a marker so the other partitions stop waiting for this one.
+     */
+    public void markFailed() {
+        try {
+            FileUtils.touch(new File(directory(partition), FAILED));
+        } catch (IOException e) {
+            LOG.error("cannot mark partition " + partition + " as failed", e);
+        }
+    }
+}
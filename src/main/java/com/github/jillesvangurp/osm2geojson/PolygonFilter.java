@@ -0,0 +1,152 @@
+package com.github.jillesvangurp.osm2geojson;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.github.jillesvangurp.common.ResourceUtil;
+
+/**
+ * Region filter for polygons with holes, read from the osmosis .poly format that is also used by e.g. geofabrik for
+ * their extracts.
+ *
+ * Country polygons have tens of thousands of vertices and we need to test billions of nodes. So instead of testing every
+ * edge, edges are indexed in horizontal latitude bands and a point is only tested against the edges in its band
+ * (even-odd rule, so holes are handled without needing to know which ring is inner or outer).
+ */
+public class PolygonFilter implements RegionFilter {
+    private final double minLat;
+    private final double maxLat;
+    private final double minLon;
+    private final double maxLon;
+    private final double bandHeight;
+    // per band, the edges as x1,y1,x2,y2 quadruples
+    private final double[][] bands;
+
+    /**
+     * @param rings
+     *            list of rings, each ring as an array of lon,lat pairs
+     */
+    public PolygonFilter(List<double[][]> rings) {
+        if (rings.isEmpty()) {
+            throw new IllegalArgumentException("need at least one ring");
+        }
+        double minLat = Double.MAX_VALUE, maxLat = -Double.MAX_VALUE, minLon = Double.MAX_VALUE, maxLon = -Double.MAX_VALUE;
+        int edges = 0;
+        for (double[][] ring : rings) {
+            if (ring.length < 3) {
+                throw new IllegalArgumentException("ring needs at least three points");
+            }
+            for (double[] p : ring) {
+                minLon = Math.min(minLon, p[0]);
+                maxLon = Math.max(maxLon, p[0]);
+                minLat = Math.min(minLat, p[1]);
+                maxLat = Math.max(maxLat, p[1]);
+            }
+            edges += ring.length;
+        }
+        this.minLat = minLat;
+        this.maxLat = maxLat;
+        this.minLon = minLon;
+        this.maxLon = maxLon;
+
+        int bandCount = Math.max(1, Math.min(4096, edges / 4));
+        bandHeight = Math.max((maxLat - minLat) / bandCount, Double.MIN_VALUE);
+        List<List<double[]>> bandEdges = new ArrayList<>(bandCount);
+        for (int i = 0; i < bandCount; i++) {
+            bandEdges.add(new ArrayList<double[]>());
+        }
+        for (double[][] ring : rings) {
+            for (int i = 0; i < ring.length; i++) {
+                double[] p1 = ring[i];
+                // implicitly close the ring
+                double[] p2 = ring[(i + 1) % ring.length];
+                int first = band(Math.min(p1[1], p2[1]), bandCount);
+                int last = band(Math.max(p1[1], p2[1]), bandCount);
+                for (int b = first; b <= last; b++) {
+                    bandEdges.get(b).add(new double[] { p1[0], p1[1], p2[0], p2[1] });
+                }
+            }
+        }
+        bands = new double[bandCount][];
+        for (int b = 0; b < bandCount; b++) {
+            List<double[]> es = bandEdges.get(b);
+            double[] flat = new double[es.size() * 4];
+            for (int i = 0; i < es.size(); i++) {
+                System.arraycopy(es.get(i), 0, flat, i * 4, 4);
+            }
+            bands[b] = flat;
+        }
+    }
+
+    private int band(double latitude, int bandCount) {
+        int b = (int) ((latitude - minLat) / bandHeight);
+        return Math.max(0, Math.min(bandCount - 1, b));
+    }
+
+    /**
+     * @param polyFile
+     *            file in the osmosis polygon format
+     * @return the filter
+     * @throws IOException
+     *             if the file cannot be read
+     */
+    public static PolygonFilter read(String polyFile) throws IOException {
+        try (BufferedReader reader = ResourceUtil.fileReader(polyFile)) {
+            return parse(reader);
+        }
+    }
+
+    static PolygonFilter parse(BufferedReader reader) throws IOException {
+        List<double[][]> rings = new ArrayList<>();
+        // first line is the name of the polygon
+        String line = reader.readLine();
+        if (line == null) {
+            throw new IllegalArgumentException("empty polygon file");
+        }
+        while ((line = reader.readLine()) != null) {
+            line = line.trim();
+            if (line.length() == 0) {
+                continue;
+            }
+            if ("END".equals(line)) {
+                // end of file
+                break;
+            }
+            // start of a ring section, the ring name is not needed; holes (prefixed with !) are handled by the even-odd rule
+            List<double[]> points = new ArrayList<>();
+            while ((line = reader.readLine()) != null && !"END".equals(line.trim())) {
+                String[] parts = line.trim().split("\\s+");
+                if (parts.length >= 2) {
+                    points.add(new double[] { Double.valueOf(parts[0]), Double.valueOf(parts[1]) });
+                }
+            }
+            if (points.size() > 2) {
+                rings.add(points.toArray(new double[points.size()][]));
+            }
+        }
+        return new PolygonFilter(rings);
+    }
+
+    @Override
+    public boolean contains(double latitude, double longitude) {
+        if (latitude < minLat || latitude > maxLat || longitude < minLon || longitude > maxLon) {
+            return false;
+        }
+        double[] edges = bands[band(latitude, bands.length)];
+        boolean inside = false;
+        for (int i = 0; i < edges.length; i += 4) {
+            double x1 = edges[i], y1 = edges[i + 1], x2 = edges[i + 2], y2 = edges[i + 3];
+            if ((y1 > latitude) != (y2 > latitude) && longitude < (x2 - x1) * (latitude - y1) / (y2 - y1) + x1) {
+                inside = !inside;
+            }
+        }
+        return inside;
+    }
+
+    @Override
+    public String toString() {
+        return "polygon " + minLon + "," + minLat + "," + maxLon + "," + maxLat;
+    }
+}
@@ -0,0 +1,10 @@
+package com.github.jillesvangurp.osm2geojson;
+
+/**
+ * Decides whether a coordinate is part of the region that should be extracted. Implementations must be thread safe
+ * since nodes are parsed concurrently.
+ */
+public interface RegionFilter {
+
+    boolean contains(double latitude, double longitude);
+}
@@ -0,0 +1,181 @@
+package com.github.jillesvangurp.osm2geojson;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Compact in memory graph of relations that have other relations as members. There are only a few million relations
+ * and relation to relation memberships are a fraction of that, so unlike nodes and ways this easily fits in memory as a
+ * few sorted long arrays. Edges are added concurrently while parsing; call {@link #build()} before querying.
+ */
+public class RelationGraph {
+    private long[] edgeParents = new long[1024];
+    private long[] edgeChildren = new long[1024];
+    private int edgeCount = 0;
+
+    // sorted by parent and child respectively after build
+    private long[] parentIds = new long[0];
+    private long[] childrenByParent = new long[0];
+    private long[] childIds = new long[0];
+    private long[] parentsByChild = new long[0];
+
+    private int cycles = 0;
+
+    public synchronized void addEdge(long parent, long child) {
+        if (edgeCount == edgeParents.length) {
+            edgeParents = Arrays.copyOf(edgeParents, edgeCount * 2);
+            edgeChildren = Arrays.copyOf(edgeChildren, edgeCount * 2);
+        }
+        edgeParents[edgeCount] = parent;
+        edgeChildren[edgeCount] = child;
+        edgeCount++;
+    }
+
+    /**
+     * Sorts the edges so the graph can be queried and counts the cycles.
+     */
+    public synchronized void build() {
+        long[][] byParent = sortedPairs(edgeParents, edgeChildren, edgeCount);
+        parentIds = byParent[0];
+        childrenByParent = byParent[1];
+        long[][] byChild = sortedPairs(edgeChildren, edgeParents, edgeCount);
+        childIds = byChild[0];
+        parentsByChild = byChild[1];
+        cycles = countCycles();
+    }
+
+    private static long[][] sortedPairs(long[] keys, long[] values, int count) {
+        // sort the indices of the pairs by key, then value
+        Integer[] order = new Integer[count];
+        for (int i = 0; i < count; i++) {
+            order[i] = i;
+        }
+        final long[] k = keys;
+        final long[] v = values;
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer o1, Integer o2) {
+                int c = Long.compare(k[o1], k[o2]);
+                return c != 0 ? c : Long.compare(v[o1], v[o2]);
+            }
+        });
+        long[] sortedKeys = new long[count];
+        long[] sortedValues = new long[count];
+        for (int i = 0; i < count; i++) {
+            sortedKeys[i] = keys[order[i]];
+            sortedValues[i] = values[order[i]];
+        }
+        return new long[][] { sortedKeys, sortedValues };
+    }
+
+    public synchronized boolean isEmpty() {
+        return edgeCount == 0;
+    }
+
+    public synchronized int size() {
+        return edgeCount;
+    }
+
+    /**
+     * @return number of cycles found during {@link #build()}. Osm has a few of these, e.g. relations that are each
+     *         other's member.
+     */
+    public int cycles() {
+        return cycles;
+    }
+
+    public long[] children(long parent) {
+        return lookup(parentIds, childrenByParent, parent);
+    }
+
+    public long[] parents(long child) {
+        return lookup(childIds, parentsByChild, child);
+    }
+
+    private static long[] lookup(long[] keys, long[] values, long key) {
+        int idx = Arrays.binarySearch(keys, key);
+        if (idx < 0) {
+            return new long[0];
+        }
+        int first = idx;
+        while (first > 0 && keys[first - 1] == key) {
+            first--;
+        }
+        int last = idx;
+        while (last < keys.length - 1 && keys[last + 1] == key) {
+            last++;
+        }
+        return Arrays.copyOfRange(values, first, last + 1);
+    }
+
+    /**
+     * @param id
+     *            relation id
+     * @param maxDepth
+     *            how many levels to go up
+     * @return the distinct ancestors of the relation up to maxDepth levels up, never includes the relation itself even if
+     *         it is part of a cycle
+     */
+    public long[] ancestors(long id, int maxDepth) {
+        Set<Long> seen = new HashSet<>();
+        seen.add(id);
+        ArrayDeque<long[]> queue = new ArrayDeque<>();
+        queue.add(new long[] { id, 0 });
+        while (!queue.isEmpty()) {
+            long[] current = queue.poll();
+            if (current[1] < maxDepth) {
+                for (long parent : parents(current[0])) {
+                    if (seen.add(parent)) {
+                        queue.add(new long[] { parent, current[1] + 1 });
+                    }
+                }
+            }
+        }
+        seen.remove(id);
+        long[] result = new long[seen.size()];
+        int i = 0;
+        for (Long ancestor : seen) {
+            result[i++] = ancestor;
+        }
+        Arrays.sort(result);
+        return result;
+    }
+
+    private int countCycles() {
+        // iterative depth first search with the usual white/grey/black coloring; an edge to a grey node closes a cycle
+        Set<Long> done = new HashSet<>();
+        Set<Long> onPath = new HashSet<>();
+        int found = 0;
+        for (int i = 0; i < parentIds.length; i++) {
+            long start = parentIds[i];
+            if (done.contains(start)) {
+                continue;
+            }
+            ArrayDeque<long[]> stack = new ArrayDeque<>();
+            // id, index of the next child to visit
+            stack.push(new long[] { start, 0 });
+            onPath.add(start);
+            while (!stack.isEmpty()) {
+                long[] frame = stack.peek();
+                long[] children = children(frame[0]);
+                if (frame[1] < children.length) {
+                    long child = children[(int) frame[1]++];
+                    if (onPath.contains(child)) {
+                        found++;
+                    } else if (!done.contains(child)) {
+                        onPath.add(child);
+                        stack.push(new long[] { child, 0 });
+                    }
+                } else {
+                    stack.pop();
+                    onPath.remove(frame[0]);
+                    done.add(frame[0]);
+                }
+            }
+        }
+        return found;
+    }
+}
@@ -0,0 +1,310 @@
+package com.github.jillesvangurp.osm2geojson;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Assembles the rings of multipolygon and boundary relations from their member ways.
+ *
+ * Member ways are just segments of the rings, in no particular order or direction. Segments are joined by looking up
+ * their endpoints in a hash index, so this is linear in the number of ways rather than quadratic. Inner rings are
+ * assigned to the smallest outer ring that contains them, using a grid over the bounding boxes of the outer rings to
+ * find candidates.
+ *
+ * Rings are flat arrays of lon,lat pairs where the first and last point are the same. Outer rings are counter
+ * clockwise and inner rings clockwise, as per the geojson spec.
+ */
+public class RingAssembler {
+    private final List<double[]> outerWays = new ArrayList<>();
+    private final List<double[]> innerWays = new ArrayList<>();
+    private int unusedWays = 0;
+    private int unassignedInnerRings = 0;
+
+    /**
+     * @param lonLats
+     *            coordinates of the way as lon,lat pairs
+     * @param inner
+     *            true if the way has the inner role
+     */
+    public void add(double[] lonLats, boolean inner) {
+        if (lonLats.length < 4) {
+            // not even a segment
+            unusedWays++;
+            return;
+        }
+        if (inner) {
+            innerWays.add(lonLats);
+        } else {
+            outerWays.add(lonLats);
+        }
+    }
+
+    /**
+     * @return the polygons, each polygon as a list with the outer ring followed by its inner rings
+     */
+    public List<List<double[]>> assemble() {
+        List<double[]> outers = rings(outerWays);
+        List<double[]> inners = rings(innerWays);
+        List<List<double[]>> polygons = new ArrayList<>(outers.size());
+        for (double[] outer : outers) {
+            List<double[]> polygon = new ArrayList<>();
+            polygon.add(orient(outer, true));
+            polygons.add(polygon);
+        }
+        if (!inners.isEmpty() && !outers.isEmpty()) {
+            OuterIndex index = new OuterIndex(outers);
+            for (double[] inner : inners) {
+                int outer = index.smallestContaining(inner[0], inner[1]);
+                if (outer >= 0) {
+                    polygons.get(outer).add(orient(inner, false));
+                } else {
+                    unassignedInnerRings++;
+                }
+            }
+        } else {
+            unassignedInnerRings += inners.size();
+        }
+        return polygons;
+    }
+
+    /**
+     * @return number of ways that could not be made part of a closed ring
+     */
+    public int unusedWays() {
+        return unusedWays;
+    }
+
+    /**
+     * @return number of inner rings that are not inside any outer ring
+     */
+    public int unassignedInnerRings() {
+        return unassignedInnerRings;
+    }
+
+    private List<double[]> rings(List<double[]> ways) {
+        List<double[]> rings = new ArrayList<>();
+        boolean[] used = new boolean[ways.size()];
+        Map<Point, List<Integer>> byEndpoint = new HashMap<>();
+        for (int i = 0; i < ways.size(); i++) {
+            double[] way = ways.get(i);
+            Point first = first(way);
+            Point last = last(way);
+            if (first.equals(last)) {
+                used[i] = true;
+                if (way.length >= 8) {
+                    rings.add(way);
+                } else {
+                    unusedWays++;
+                }
+            } else {
+                endpoint(byEndpoint, first).add(i);
+                endpoint(byEndpoint, last).add(i);
+            }
+        }
+        for (int i = 0; i < ways.size(); i++) {
+            if (used[i]) {
+                continue;
+            }
+            used[i] = true;
+            int segments = 1;
+            double[] way = ways.get(i);
+            double[] ring = Arrays.copyOf(way, Math.max(way.length * 2, 64));
+            int length = way.length;
+            Point start = first(way);
+            Point end = last(way);
+            while (!end.equals(start)) {
+                int next = -1;
+                for (int candidate : byEndpoint.get(end)) {
+                    if (!used[candidate]) {
+                        next = candidate;
+                        break;
+                    }
+                }
+                if (next < 0) {
+                    break;
+                }
+                used[next] = true;
+                segments++;
+                double[] segment = ways.get(next);
+                if (ring.length < length + segment.length) {
+                    ring = Arrays.copyOf(ring, Math.max(ring.length * 2, length + segment.length));
+                }
+                // skip the shared point
+                if (first(segment).equals(end)) {
+                    System.arraycopy(segment, 2, ring, length, segment.length - 2);
+                    end = last(segment);
+                } else {
+                    for (int j = segment.length - 4; j >= 0; j -= 2) {
+                        ring[length + segment.length - 4 - j] = segment[j];
+                        ring[length + segment.length - 3 - j] = segment[j + 1];
+                    }
+                    end = first(segment);
+                }
+                length += segment.length - 2;
+            }
+            if (end.equals(start) && length >= 8) {
+                rings.add(Arrays.copyOf(ring, length));
+            } else {
+                unusedWays += segments;
+            }
+        }
+        return rings;
+    }
+
+    private static List<Integer> endpoint(Map<Point, List<Integer>> byEndpoint, Point p) {
+        List<Integer> ways = byEndpoint.get(p);
+        if (ways == null) {
+            // usually exactly two ways share an endpoint
+            ways = new ArrayList<>(2);
+            byEndpoint.put(p, ways);
+        }
+        return ways;
+    }
+
+    private static Point first(double[] way) {
+        return new Point(way[0], way[1]);
+    }
+
+    private static Point last(double[] way) {
+        return new Point(way[way.length - 2], way[way.length - 1]);
+    }
+
+    /**
+     * @return twice the signed area, positive for counter clockwise rings
+     */
+    static double signedArea(double[] ring) {
+        double sum = 0;
+        for (int i = 0; i < ring.length - 2; i += 2) {
+            sum += ring[i] * ring[i + 3] - ring[i + 2] * ring[i + 1];
+        }
+        return sum;
+    }
+
+    private static double[] orient(double[] ring, boolean counterClockwise) {
+        if (signedArea(ring) > 0 == counterClockwise) {
+            return ring;
+        }
+        double[] reversed = new double[ring.length];
+        for (int i = 0; i < ring.length; i += 2) {
+            reversed[ring.length - 2 - i] = ring[i];
+            reversed[ring.length - 1 - i] = ring[i + 1];
+        }
+        return reversed;
+    }
+
+    private static class Point {
+        final double lon;
+        final double lat;
+
+        Point(double lon, double lat) {
+            this.lon = lon;
+            this.lat = lat;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Point)) {
+                return false;
+            }
+            Point other = (Point) obj;
+            return lon == other.lon && lat == other.lat;
+        }
+
+        @Override
+        public int hashCode() {
+            long bits = Double.doubleToLongBits(lon) * 31 + Double.doubleToLongBits(lat);
+            return (int) (bits ^ (bits >>> 32));
+        }
+    }
+
+    /**
+     * Grid over the bounding boxes of the outer rings.
+     */
+    private static class OuterIndex {
+        private final List<double[]> outers;
+        private final double[][] bboxes;
+        private final double[] areas;
+        private final PolygonFilter[] filters;
+        private final double minLon, minLat, cellWidth, cellHeight;
+        private final int size;
+        private final List<List<Integer>> cells;
+
+        OuterIndex(List<double[]> outers) {
+            this.outers = outers;
+            bboxes = new double[outers.size()][];
+            areas = new double[outers.size()];
+            filters = new PolygonFilter[outers.size()];
+            double minLon = Double.MAX_VALUE, minLat = Double.MAX_VALUE, maxLon = -Double.MAX_VALUE, maxLat = -Double.MAX_VALUE;
+            for (int i = 0; i < outers.size(); i++) {
+                double[] ring = outers.get(i);
+                double[] bbox = new double[] { Double.MAX_VALUE, Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE };
+                for (int j = 0; j < ring.length; j += 2) {
+                    bbox[0] = Math.min(bbox[0], ring[j]);
+                    bbox[1] = Math.min(bbox[1], ring[j + 1]);
+                    bbox[2] = Math.max(bbox[2], ring[j]);
+                    bbox[3] = Math.max(bbox[3], ring[j + 1]);
+                }
+                bboxes[i] = bbox;
+                areas[i] = Math.abs(signedArea(ring));
+                minLon = Math.min(minLon, bbox[0]);
+                minLat = Math.min(minLat, bbox[1]);
+                maxLon = Math.max(maxLon, bbox[2]);
+                maxLat = Math.max(maxLat, bbox[3]);
+            }
+            this.minLon = minLon;
+            this.minLat = minLat;
+            size = Math.max(1, Math.min(256, (int) Math.sqrt(outers.size())));
+            cellWidth = Math.max((maxLon - minLon) / size, Double.MIN_VALUE);
+            cellHeight = Math.max((maxLat - minLat) / size, Double.MIN_VALUE);
+            cells = new ArrayList<>(size * size);
+            for (int i = 0; i < size * size; i++) {
+                cells.add(new ArrayList<Integer>(1));
+            }
+            for (int i = 0; i < outers.size(); i++) {
+                double[] bbox = bboxes[i];
+                for (int x = cell(bbox[0], minLon, cellWidth); x <= cell(bbox[2], minLon, cellWidth); x++) {
+                    for (int y = cell(bbox[1], minLat, cellHeight); y <= cell(bbox[3], minLat, cellHeight); y++) {
+                        cells.get(y * size + x).add(i);
+                    }
+                }
+            }
+        }
+
+        private int cell(double value, double min, double cellSize) {
+            return Math.max(0, Math.min(size - 1, (int) ((value - min) / cellSize)));
+        }
+
+        int smallestContaining(double lon, double lat) {
+            int best = -1;
+            for (int i : cells.get(cell(lat, minLat, cellHeight) * size + cell(lon, minLon, cellWidth))) {
+                double[] bbox = bboxes[i];
+                if (lon < bbox[0] || lon > bbox[2] || lat < bbox[1] || lat > bbox[3]) {
+                    continue;
+                }
+                if (best >= 0 && areas[i] >= areas[best]) {
+                    continue;
+                }
+                if (filter(i).contains(lat, lon)) {
+                    best = i;
+                }
+            }
+            return best;
+        }
+
+        private PolygonFilter filter(int i) {
+            // the banded edge index of the polygon filter makes this cheap for huge outer rings as well
+            if (filters[i] == null) {
+                double[] ring = outers.get(i);
+                double[][] points = new double[ring.length / 2][];
+                for (int j = 0; j < points.length; j++) {
+                    points[j] = new double[] { ring[j * 2], ring[j * 2 + 1] };
+                }
+                filters[i] = new PolygonFilter(Arrays.<double[][]> asList(points));
+            }
+            return filters[i];
+        }
+    }
+}
@@ -0,0 +1,252 @@
+package com.github.jillesvangurp.osm2geojson;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.github.jillesvangurp.common.ResourceUtil;
+import com.github.jillesvangurp.common.Threads;
+import com.github.jillesvangurp.flow.Pipe.BatchSize;
+import com.github.jillesvangurp.osm2geojson.AutoTuner.Stage;
+
+/**
+ * Settings for running OsmJoin and OsmPostProcessor. Anything that is not configured explicitly is derived by the
+ * {@link AutoTuner} from the available cores, the heap, and the measured record sizes.
+ *
+ * Settings can be provided in a properties file and on the command line, the command line wins:
+ *
+ * <pre>
+ * --config=osm2geojson.properties --threads=16 --join.blockSize=200 --bucketSize.wayid2completejson.gz=20000
+ * </pre>
+ *
+ * Supported keys: threads, split|join|postprocess.blockSize, split|join|postprocess.queueSize, bucketSize.&lt;file&gt;,
+ * bucketMemory (fraction of the heap used for sorting buckets, default 0.5), memberCache (fraction of the heap used to
+ * cache parsed relation members when not splicing, default 0.1). Arguments without a leading -- are available as
+ * positional arguments and flags without a value are set to true.
+ */
+public class RunConfig {
+    private static final Logger LOG = LoggerFactory.getLogger(RunConfig.class);
+
+    // flags that were spelled differently before there was a config, still accepted on the command line
+    private static final Map<String, String> RENAMED = Collections.singletonMap("prune-nodes", "pruneNodes");
+
+    private final Properties properties;
+    private final List<String> positional;
+    private final AutoTuner tuner;
+    // set for the part of the budget given to a stage that runs concurrently with other stages
+    private final int threads;
+    private final double memoryShare;
+    // shared by all shares and stages of this config, created when first used
+    private final AtomicReference<ExecutorService> executor;
+
+    public RunConfig() {
+        this(new Properties(), Collections.<String> emptyList(), new AutoTuner());
+    }
+
+    RunConfig(Properties properties, List<String> positional, AutoTuner tuner) {
+        this(properties, positional, tuner, -1, 1, new AtomicReference<ExecutorService>());
+    }
+
+    private RunConfig(Properties properties, List<String> positional, AutoTuner tuner, int threads, double memoryShare, AtomicReference<ExecutorService> executor) {
+        this.executor = executor;
+        this.properties = properties;
+        this.positional = positional;
+        this.tuner = tuner;
+        this.threads = threads;
+        this.memoryShare = memoryShare;
+    }
+
+    /**
+     * @param threads
+     *            number of threads for the stage
+     * @param memoryShare
+     *            fraction of the configured memory for buckets, caches, and queues that the stage may use
+     * @return a config with the same settings for a stage that shares the threads and memory with other stages
+     */
+    public RunConfig share(int threads, double memoryShare) {
+        if (threads < 1 || memoryShare <= 0 || memoryShare > 1) {
+            throw new IllegalArgumentException("invalid share of " + threads + " threads and " + memoryShare + " memory");
+        }
+        return new RunConfig(properties, positional, tuner, threads, memoryShare, executor);
+    }
+
+    /**
+     * @param name
+     *            name of the stage
+     * @return a config with the same settings and budget, but with its own measurements for the auto tuning, see
+     *         {@link AutoTuner#forStage(String)}
+     */
+    public RunConfig stage(String name) {
+        return new RunConfig(properties, positional, tuner.forStage(name), threads, memoryShare, executor);
+    }
+
+    public static RunConfig fromArgs(String... args) {
+        Properties properties = new Properties();
+        Properties overrides = new Properties();
+        List<String> positional = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.startsWith("--")) {
+                int idx = arg.indexOf('=');
+                String key = idx < 0 ? arg.substring(2) : arg.substring(2, idx);
+                String value = idx < 0 ? "true" : arg.substring(idx + 1);
+                if (RENAMED.containsKey(key)) {
+                    LOG.warn("--" + key + " is deprecated, use --" + RENAMED.get(key));
+                    key = RENAMED.get(key);
+                }
+                if ("config".equals(key)) {
+                    try (BufferedReader reader = ResourceUtil.fileReader(value)) {
+                        properties.load(reader);
+                    } catch (IOException e) {
+                        throw new IllegalArgumentException("cannot read config file " + value, e);
+                    }
+                } else {
+                    overrides.setProperty(key, value);
+                }
+            } else {
+                positional.add(arg);
+            }
+        }
+        properties.putAll(overrides);
+        return new RunConfig(properties, positional, new AutoTuner());
+    }
+
+    public List<String> getPositional() {
+        return positional;
+    }
+
+    public String get(String key) {
+        return properties.getProperty(key);
+    }
+
+    public int getInt(String key, int defaultValue) {
+        String value = properties.getProperty(key);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.valueOf(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("not a number " + key + "=" + value);
+        }
+    }
+
+    public long getLong(String key, long defaultValue) {
+        String value = properties.getProperty(key);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.valueOf(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("not a number " + key + "=" + value);
+        }
+    }
+
+    public double getDouble(String key, double defaultValue) {
+        String value = properties.getProperty(key);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Double.valueOf(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("not a number " + key + "=" + value);
+        }
+    }
+
+    public boolean getBoolean(String key, boolean defaultValue) {
+        String value = properties.getProperty(key);
+        return value == null ? defaultValue : Boolean.valueOf(value.trim());
+    }
+
+    public AutoTuner tuner() {
+        return tuner;
+    }
+
+    /**
+     * @return pool for the cpu bound work of all stages that run with this config or a share of it, with the configured
+     *         number of threads; each stage limits how much of it it uses. Idle threads go away after a while.
+     */
+    public ExecutorService executor() {
+        ExecutorService pool = executor.get();
+        if (pool == null) {
+            int poolThreads = getInt("threads", tuner.threads());
+            ThreadPoolExecutor created = new ThreadPoolExecutor(poolThreads, poolThreads, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                    Threads.platformThreadFactory("worker-"));
+            created.allowCoreThreadTimeOut(true);
+            if (executor.compareAndSet(null, created)) {
+                pool = created;
+            } else {
+                created.shutdown();
+                pool = executor.get();
+            }
+        }
+        return pool;
+    }
+
+    public int threads() {
+        return threads > 0 ? threads : getInt("threads", tuner.threads());
+    }
+
+    public int blockSize(Stage stage) {
+        return getInt(stage.name().toLowerCase(Locale.ROOT) + ".blockSize", tuner.blockSize(stage));
+    }
+
+    /**
+     * @return the block size of the stage, looked up again for every block so that it follows the record sizes the
+     *         tuner measures while the stage runs
+     */
+    public BatchSize blockSizes(final Stage stage) {
+        return new BatchSize() {
+            @Override
+            public int next() {
+                return blockSize(stage);
+            }
+        };
+    }
+
+    public int queueSize(Stage stage) {
+        int queueSize = getInt(stage.name().toLowerCase(Locale.ROOT) + ".queueSize", tuner.queueSize(stage));
+        return memoryShare < 1 ? Math.max(threads() * 2, (int) (queueSize * memoryShare)) : queueSize;
+    }
+
+    /**
+     * @param file
+     *            output file of the sorting writer
+     * @param defaultBucketSize
+     *            max number of entries per bucket if not configured
+     * @return the bucket size
+     */
+    public int bucketSize(String file, int defaultBucketSize) {
+        return getInt("bucketSize." + file, defaultBucketSize);
+    }
+
+    /**
+     * @param concurrentWriters
+     *            number of sorting writers open at the same time
+     * @return max bytes of each in memory bucket, buckets are flushed when either this or the bucket size is reached
+     */
+    public long maxBucketBytes(int concurrentWriters) {
+        return tuner.maxBucketBytes(concurrentWriters, getDouble("bucketMemory", 0.5) * memoryShare);
+    }
+
+    /**
+     * @return max bytes used by the cache of parsed relation members, see {@link MemberCache}
+     */
+    public long memberCacheBytes() {
+        return tuner.heapBytes(getDouble("memberCache", 0.1) * memoryShare);
+    }
+}
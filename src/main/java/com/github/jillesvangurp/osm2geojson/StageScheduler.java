@@ -0,0 +1,227 @@
+package com.github.jillesvangurp.osm2geojson;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.github.jillesvangurp.metrics.StopWatch;
+
+/**
+ * Runs stages that read and write files as a dependency graph. A stage depends on the stages that write its inputs and
+ * stages whose dependencies are done run at the same time, up to a maximum.
+ *
+ * The threads and memory of the run config are a global budget. A stage gets an equal share of the budget for the
+ * stages that could run at that point and only starts when that share is free, so running stages side by side never
+ * uses more than a single stage would on its own. Once the last stage that reads a file is done, the file is handed to
+ * the {@link Cleanup} so it can be deleted.
+ */
+public class StageScheduler {
+    private static final Logger LOG = LoggerFactory.getLogger(StageScheduler.class);
+
+    public interface Task {
+        /**
+         * @param config
+         *            config with the share of the threads and memory for this stage
+         */
+        void run(RunConfig config) throws Exception;
+    }
+
+    public interface Cleanup {
+        /**
+         * Called when all stages that read the file are done.
+         *
+         * @param file
+         *            file name as used for the stage inputs
+         */
+        void consumed(String file);
+    }
+
+    private final RunConfig config;
+    private final int maxConcurrent;
+    private final Cleanup cleanup;
+    private final List<StageNode> stages = new ArrayList<>();
+    // the last stage that writes each file
+    private final Map<String, StageNode> producers = new HashMap<>();
+    private final Map<String, Integer> readers = new HashMap<>();
+
+    /**
+     * @param config
+     *            config with the thread and memory budget
+     * @param maxConcurrent
+     *            max number of stages that run at the same time
+     * @param cleanup
+     *            called for files that are no longer needed
+     */
+    public StageScheduler(RunConfig config, int maxConcurrent, Cleanup cleanup) {
+        if (maxConcurrent < 1) {
+            throw new IllegalArgumentException("max concurrent stages should be at least 1 but was " + maxConcurrent);
+        }
+        this.config = config;
+        this.maxConcurrent = maxConcurrent;
+        this.cleanup = cleanup;
+    }
+
+    /**
+     * Adds a stage. Stages have to be added after the stages that write their inputs. A stage may write a file that it
+     * also reads, e.g. to filter it in place; later stages then depend on it rather than on the original writer.
+     *
+     * @param name
+     *            used for logging
+     * @param inputs
+     *            files read by the stage
+     * @param outputs
+     *            files written by the stage
+     * @param task
+     *            the work
+     */
+    public void add(String name, List<String> inputs, List<String> outputs, Task task) {
+        StageNode stage = new StageNode(name, inputs, task);
+        for (String input : inputs) {
+            StageNode producer = producers.get(input);
+            if (producer != null) {
+                stage.dependencies.add(producer);
+            }
+            Integer count = readers.get(input);
+            readers.put(input, count == null ? 1 : count + 1);
+        }
+        for (String output : outputs) {
+            producers.put(output, stage);
+        }
+        stages.add(stage);
+    }
+
+    public static List<String> files(String... files) {
+        return Arrays.asList(files);
+    }
+
+    /**
+     * Runs all stages and blocks until they are done.
+     *
+     * @throws IllegalStateException
+     *             if a stage fails; stages that are running are allowed to finish but no new stages are started
+     */
+    public void run() {
+        BlockingQueue<StageNode> done = new LinkedBlockingQueue<>();
+        List<StageNode> waiting = new ArrayList<>(stages);
+        List<StageNode> running = new ArrayList<>();
+        double free = 1;
+        Throwable failure = null;
+        while (!waiting.isEmpty() || !running.isEmpty()) {
+            if (failure == null) {
+                List<StageNode> ready = new ArrayList<>();
+                for (StageNode stage : waiting) {
+                    if (stage.ready()) {
+                        ready.add(stage);
+                    }
+                }
+                double share = 1.0 / Math.min(maxConcurrent, ready.size() + running.size());
+                for (StageNode stage : ready) {
+                    if (running.size() >= maxConcurrent) {
+                        break;
+                    }
+                    // allow for rounding errors
+                    if (free < share - 0.000001) {
+                        break;
+                    }
+                    free -= share;
+                    stage.share = share;
+                    waiting.remove(stage);
+                    running.add(stage);
+                    start(stage, share, done);
+                }
+                if (running.isEmpty()) {
+                    throw new IllegalStateException("stages " + waiting + " can never run, their inputs are not written by any stage before them");
+                }
+            } else if (running.isEmpty()) {
+                break;
+            }
+            StageNode finished;
+            try {
+                finished = done.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("interrupted while waiting for stages " + running, e);
+            }
+            running.remove(finished);
+            free += finished.share;
+            if (finished.failure != null) {
+                if (failure == null) {
+                    failure = finished.failure;
+                }
+            } else {
+                finished.done = true;
+                for (String input : finished.inputs) {
+                    int count = readers.get(input) - 1;
+                    readers.put(input, count);
+                    if (count == 0) {
+                        cleanup.consumed(input);
+                    }
+                }
+            }
+        }
+        if (failure != null) {
+            throw new IllegalStateException("stage failed", failure);
+        }
+    }
+
+    private void start(final StageNode stage, double share, final BlockingQueue<StageNode> done) {
+        final int threads = Math.max(1, (int) Math.round(config.threads() * share));
+        final RunConfig stageConfig = share < 1 ? config.stage(stage.name).share(threads, share) : config.stage(stage.name);
+        LOG.info("starting " + stage.name + " with " + threads + " threads and " + Math.round(share * 100) + "% of the memory");
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                StopWatch timer = StopWatch.time(LOG, stage.name);
+                try {
+                    stage.task.run(stageConfig);
+                } catch (Throwable t) {
+                    LOG.error(stage.name + " failed", t);
+                    stage.failure = t;
+                } finally {
+                    timer.stop();
+                    done.add(stage);
+                }
+            }
+        }, "stage " + stage.name);
+        thread.start();
+    }
+
+    private static class StageNode {
+        final String name;
+        final List<String> inputs;
+        final Task task;
+        final Set<StageNode> dependencies = new LinkedHashSet<>();
+        double share;
+        volatile boolean done = false;
+        volatile Throwable failure;
+
+        StageNode(String name, List<String> inputs, Task task) {
+            this.name = name;
+            this.inputs = inputs;
+            this.task = task;
+        }
+
+        boolean ready() {
+            for (StageNode dependency : dependencies) {
+                if (!dependency.done) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+}
@@ -0,0 +1,317 @@
+package com.github.jillesvangurp.osm2geojson;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.github.jillesvangurp.common.ResourceUtil;
+import com.github.jillesvangurp.common.StringPool;
+import com.github.jsonj.JsonElement;
+import com.github.jsonj.JsonObject;
+
+/**
+ * Turns osm tags into categories using a rule file (see tag-categories.txt for the format and the default rules).
+ *
+ * The rules are compiled into a map by tag key, with per key the rules that match any value and a map of the rules by
+ * value. So classifying a tag that no rule cares about costs a single hash lookup. Rules loaded from a file are
+ * reloaded when the file changes.
+ */
+public class TagClassifier {
+    private static final Logger LOG = LoggerFactory.getLogger(TagClassifier.class);
+
+    public static final String DEFAULT_RULES = "tag-categories.txt";
+
+    private static final long RELOAD_CHECK_MILLIS = 10000;
+
+    // for building the categories with a wildcard without allocating when they are in the pool
+    private static final ThreadLocal<StringBuilder> CATEGORY_BUFFER = new ThreadLocal<StringBuilder>() {
+        @Override
+        protected StringBuilder initialValue() {
+            return new StringBuilder(64);
+        }
+    };
+
+    private final String file;
+    private volatile Rules rules;
+    private volatile long lastModified;
+    private volatile long lastCheck;
+    // categories like highway:residential, there are only so many of these
+    private final StringPool categoryPool = new StringPool(8192, 64);
+
+    private TagClassifier(String file, Rules rules) {
+        this.file = file;
+        this.rules = rules;
+        if (file != null) {
+            lastModified = new File(file).lastModified();
+            lastCheck = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * @return classifier with the rules that ship with osm2geojson
+     */
+    public static TagClassifier defaultRules() {
+        try (BufferedReader reader = ResourceUtil.resource(DEFAULT_RULES)) {
+            return new TagClassifier(null, parse(reader));
+        } catch (IOException e) {
+            throw new IllegalStateException("cannot read " + DEFAULT_RULES, e);
+        }
+    }
+
+    /**
+     * @param file
+     *            rule file, reloaded when it is modified
+     * @return classifier
+     */
+    public static TagClassifier fromFile(String file) {
+        return new TagClassifier(file, read(file));
+    }
+
+    static TagClassifier fromReader(BufferedReader reader) throws IOException {
+        return new TagClassifier(null, parse(reader));
+    }
+
+    private static Rules read(String file) {
+        try (BufferedReader reader = ResourceUtil.fileReader(file)) {
+            return parse(reader);
+        } catch (IOException e) {
+            throw new IllegalStateException("cannot read " + file, e);
+        }
+    }
+
+    /**
+     * Reloads the rules from the file. Classifications that are in progress finish with the old rules.
+     */
+    public void reload() {
+        if (file == null) {
+            throw new IllegalStateException("default rules cannot be reloaded");
+        }
+        lastModified = new File(file).lastModified();
+        rules = read(file);
+        LOG.info("reloaded " + rules.count + " tag rules from " + file);
+    }
+
+    private Rules current() {
+        if (file != null) {
+            long now = System.currentTimeMillis();
+            if (now - lastCheck > RELOAD_CHECK_MILLIS) {
+                synchronized (this) {
+                    if (now - lastCheck > RELOAD_CHECK_MILLIS) {
+                        lastCheck = now;
+                        if (new File(file).lastModified() != lastModified) {
+                            try {
+                                reload();
+                            } catch (IllegalStateException | IllegalArgumentException e) {
+                                // keep going with what we have, the file may be half written
+                                LOG.error("cannot reload " + file + ": " + e.getMessage());
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        return rules;
+    }
+
+    /**
+     * @return hit rate of the pool for the categories with a wildcard
+     */
+    public String poolStats() {
+        return categoryPool.stats();
+    }
+
+    /**
+     * @return the tag keys that the rules are looked up by; objects without any of these never get a category
+     */
+    public String[] keys() {
+        return current().keys;
+    }
+
+    /**
+     * @param tags
+     *            osm tags
+     * @return the categories for the tags, may contain duplicates
+     */
+    public List<String> classify(JsonObject tags) {
+        Rules r = current();
+        List<String> categories = new ArrayList<>();
+        List<Rule> matched = null;
+        for (Entry<String, JsonElement> tag : tags.entrySet()) {
+            KeyRules keyRules = r.byKey.get(tag.getKey());
+            if (keyRules == null) {
+                continue;
+            }
+            String value = tag.getValue().asString();
+            for (Rule rule : keyRules.anyValue) {
+                if (rule.conditionsMatch(tags)) {
+                    rule.addCategories(value, categories, categoryPool);
+                }
+            }
+            if (value != null && !keyRules.byValue.isEmpty()) {
+                List<Rule> valueRules = keyRules.byValue.get(value.toLowerCase(Locale.ROOT));
+                if (valueRules != null) {
+                    for (Rule rule : valueRules) {
+                        if (rule.conditionsMatch(tags)) {
+                            if (matched == null) {
+                                matched = new ArrayList<>();
+                            }
+                            matched.add(rule);
+                        }
+                    }
+                }
+            }
+        }
+        if (matched != null) {
+            // rules for specific values apply in the order of the rule file
+            Collections.sort(matched, RULE_ORDER);
+            for (Rule rule : matched) {
+                rule.addCategories(null, categories, categoryPool);
+            }
+        }
+        return categories;
+    }
+
+    static Rules parse(BufferedReader reader) throws IOException {
+        Map<String, KeyRules> byKey = new HashMap<>();
+        int count = 0;
+        int lineNr = 0;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            lineNr++;
+            line = line.trim();
+            if (line.length() == 0 || line.startsWith("#")) {
+                continue;
+            }
+            int colon = line.indexOf(" : ");
+            if (colon < 0) {
+                throw new IllegalArgumentException("line " + lineNr + ": expected conditions : categories but was " + line);
+            }
+            String[] conditions = line.substring(0, colon).trim().split("\\s+");
+            String[] categories = line.substring(colon + 3).trim().split("\\s+");
+            String[] first = condition(conditions[0], lineNr);
+            if (first[2] != null) {
+                throw new IllegalArgumentException("line " + lineNr + ": first condition cannot be negated");
+            }
+            String[][] extra = new String[conditions.length - 1][];
+            for (int i = 1; i < conditions.length; i++) {
+                extra[i - 1] = condition(conditions[i], lineNr);
+                if ("*".equals(extra[i - 1][1])) {
+                    throw new IllegalArgumentException("line " + lineNr + ": only the first condition can match any value");
+                }
+            }
+            for (int i = 0; i < categories.length; i++) {
+                categories[i] = categories[i].intern();
+            }
+            Rule rule = new Rule(count++, extra, categories);
+            KeyRules keyRules = byKey.get(first[0]);
+            if (keyRules == null) {
+                keyRules = new KeyRules();
+                byKey.put(first[0], keyRules);
+            }
+            if ("*".equals(first[1])) {
+                keyRules.anyValue.add(rule);
+            } else {
+                List<Rule> valueRules = keyRules.byValue.get(first[1]);
+                if (valueRules == null) {
+                    valueRules = new ArrayList<>();
+                    keyRules.byValue.put(first[1], valueRules);
+                }
+                valueRules.add(rule);
+            }
+        }
+        return new Rules(byKey, count);
+    }
+
+    /**
+     * @return key, lower cased value, and non null if negated
+     */
+    private static String[] condition(String condition, int lineNr) {
+        boolean negated = condition.startsWith("!");
+        if (negated) {
+            condition = condition.substring(1);
+        }
+        int idx = condition.indexOf('=');
+        if (idx <= 0 || idx == condition.length() - 1) {
+            throw new IllegalArgumentException("line " + lineNr + ": expected key=value but was " + condition);
+        }
+        return new String[] { condition.substring(0, idx).intern(), condition.substring(idx + 1).toLowerCase(Locale.ROOT).intern(), negated ? "!" : null };
+    }
+
+    private static final Comparator<Rule> RULE_ORDER = new Comparator<Rule>() {
+        @Override
+        public int compare(Rule o1, Rule o2) {
+            return Integer.compare(o1.index, o2.index);
+        }
+    };
+
+    private static class Rule {
+        final int index;
+        final String[][] conditions;
+        final String[] categories;
+
+        Rule(int index, String[][] conditions, String[] categories) {
+            this.index = index;
+            this.conditions = conditions;
+            this.categories = categories;
+        }
+
+        boolean conditionsMatch(JsonObject tags) {
+            for (String[] condition : conditions) {
+                String value = tags.getString(condition[0]);
+                boolean matches = value != null && condition[1].equalsIgnoreCase(value);
+                if (matches == (condition[2] != null)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        void addCategories(String value, List<String> out, StringPool pool) {
+            for (String category : categories) {
+                if (value != null && category.indexOf('*') >= 0) {
+                    StringBuilder buf = CATEGORY_BUFFER.get();
+                    buf.setLength(0);
+                    for (int i = 0; i < category.length(); i++) {
+                        char c = category.charAt(i);
+                        if (c == '*') {
+                            buf.append(value);
+                        } else {
+                            buf.append(c);
+                        }
+                    }
+                    out.add(pool.intern(buf, 0, buf.length()));
+                } else {
+                    out.add(category);
+                }
+            }
+        }
+    }
+
+    private static class KeyRules {
+        final List<Rule> anyValue = new ArrayList<>();
+        final Map<String, List<Rule>> byValue = new HashMap<>();
+    }
+
+    static class Rules {
+        final Map<String, KeyRules> byKey;
+        final String[] keys;
+        final int count;
+
+        Rules(Map<String, KeyRules> byKey, int count) {
+            this.byKey = byKey;
+            this.count = count;
+            keys = byKey.keySet().toArray(new String[byKey.size()]);
+        }
+    }
+}
@@ -0,0 +1,292 @@
+package com.github.jillesvangurp.osm2geojson;
+
+import static com.github.jsonj.tools.JsonBuilder.primitive;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.apache.commons.lang.StringEscapeUtils;
+
+import com.github.jillesvangurp.common.JsonStreamWriter;
+import com.github.jillesvangurp.common.ResourceUtil;
+
+/**
+ * Dictionary of the tag keys, tag values, and member roles that occur a lot, e.g. highway, building, yes, or outer.
+ * While {@link OsmJoin} parses the osm file, a string that has been seen minCount times gets a short code that is used
+ * instead of the string from then on. The nodes are copied into the ways and the ways into the relations, so this takes
+ * a lot of bytes out of the intermediate files that are sorted and merged. The dictionary is written next to the outputs
+ * and the readers of the outputs, {@link OsmPostProcessor} and {@link OsmLookup}, expand the codes again.
+ *
+ * A code is a marker followed by the index of the string in base 36; strings that start with the marker get an extra
+ * marker. Codes are plain json strings, so the joins don't need to know about them. Codes are never reassigned, so
+ * strings that were written before they got a code simply stay as they are.
+ *
+ * Counting every string would take too much memory with all the names in the planet, so the candidates are counted
+ * in a bounded map. When it is full, all counts are decremented and the strings that drop to zero are removed; the
+ * frequent strings survive that.
+ */
+public class TagDictionary {
+    public static final String FILE = "tagdictionary.txt";
+
+    static final char MARKER = '~';
+
+    private final int minCount;
+    private final int maxSize;
+    private final int maxCandidates;
+    // string -> code or, for strings that are too short to benefit, the string itself
+    private final ConcurrentHashMap<String, String> codes = new ConcurrentHashMap<>();
+    private final AtomicReferenceArray<String> strings;
+    // the strings as json, for expanding codes in json
+    private final AtomicReferenceArray<String> quoted;
+    private volatile int size = 0;
+    private final ConcurrentHashMap<String, AtomicInteger> candidates = new ConcurrentHashMap<>();
+
+    /**
+     * @param minCount
+     *            number of times a string has to be seen before it gets a code
+     * @param maxSize
+     *            max number of codes; up to 36 codes take two characters, up to 1296 three
+     * @param maxCandidates
+     *            max number of strings that are counted at the same time
+     */
+    public TagDictionary(int minCount, int maxSize, int maxCandidates) {
+        if (minCount < 1 || maxSize < 0 || maxCandidates < 1) {
+            throw new IllegalArgumentException("invalid dictionary settings " + minCount + ", " + maxSize + ", " + maxCandidates);
+        }
+        this.minCount = minCount;
+        this.maxSize = maxSize;
+        this.maxCandidates = maxCandidates;
+        strings = new AtomicReferenceArray<>(maxSize);
+        quoted = new AtomicReferenceArray<>(maxSize);
+    }
+
+    /**
+     * @param config
+     *            supports tagDictionary.minCount, tagDictionary.maxSize, and tagDictionary.maxCandidates
+     * @return dictionary with the settings from the config
+     */
+    public static TagDictionary fromConfig(RunConfig config) {
+        return new TagDictionary(config.getInt("tagDictionary.minCount", 1000), config.getInt("tagDictionary.maxSize", 1296),
+                config.getInt("tagDictionary.maxCandidates", 100000));
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Counts the string and returns its code if it has one. Safe to use from multiple threads.
+     *
+     * @return the code, or the string with an extra marker if it starts with one
+     */
+    public String encode(String s) {
+        String code = codes.get(s);
+        if (code != null) {
+            return code;
+        }
+        // nothing to gain for strings this short
+        if (s.length() > 2 && size < maxSize) {
+            code = count(s);
+            if (code != null) {
+                return code;
+            }
+        }
+        return escape(s);
+    }
+
+    /**
+     * Looks the string up without counting it. A string can be written both ways, as it may have got its code after
+     * it was first written.
+     *
+     * @return the code of the string, or the string with an extra marker if it starts with one
+     */
+    public String encoded(String s) {
+        String code = codes.get(s);
+        return code != null ? code : escape(s);
+    }
+
+    private static String escape(String s) {
+        return s.length() > 0 && s.charAt(0) == MARKER ? MARKER + s : s;
+    }
+
+    private String count(String s) {
+        AtomicInteger count = candidates.get(s);
+        if (count == null) {
+            if (candidates.size() >= maxCandidates) {
+                prune();
+            }
+            count = new AtomicInteger();
+            AtomicInteger existing = candidates.putIfAbsent(s, count);
+            if (existing != null) {
+                count = existing;
+            }
+        }
+        if (count.incrementAndGet() >= minCount) {
+            return assign(s);
+        }
+        return null;
+    }
+
+    private void prune() {
+        synchronized (candidates) {
+            if (candidates.size() >= maxCandidates) {
+                Iterator<Entry<String, AtomicInteger>> it = candidates.entrySet().iterator();
+                while (it.hasNext()) {
+                    if (it.next().getValue().decrementAndGet() <= 0) {
+                        it.remove();
+                    }
+                }
+            }
+        }
+    }
+
+    private synchronized String assign(String s) {
+        String code = codes.get(s);
+        if (code == null) {
+            if (size >= maxSize) {
+                return null;
+            }
+            code = MARKER + Integer.toString(size, 36);
+            if (code.length() < s.length()) {
+                strings.set(size, s);
+                quoted.set(size, JsonStreamWriter.serialize(primitive(s)));
+                size++;
+            } else {
+                // don't count it again
+                code = escape(s);
+            }
+            codes.put(s, code);
+            candidates.remove(s);
+        }
+        return code;
+    }
+
+    /**
+     * @param encoded
+     *            a string returned by {@link #encode(String)}
+     * @return the original string
+     * @throws IllegalArgumentException
+     *             if the code is not in the dictionary
+     */
+    public String decode(String encoded) {
+        if (encoded.length() == 0 || encoded.charAt(0) != MARKER) {
+            return encoded;
+        }
+        if (encoded.length() > 1 && encoded.charAt(1) == MARKER) {
+            return encoded.substring(1);
+        }
+        return strings.get(index(encoded, 1, encoded.length()));
+    }
+
+    private int index(CharSequence s, int start, int end) {
+        int index = 0;
+        for (int i = start; i < end; i++) {
+            int digit = Character.digit(s.charAt(i), 36);
+            if (digit < 0) {
+                throw new IllegalArgumentException("not a dictionary code: " + s.subSequence(start - 1, end));
+            }
+            index = index * 36 + digit;
+        }
+        if (start == end || index >= size) {
+            throw new IllegalArgumentException("unknown dictionary code: " + s.subSequence(start - 1, end));
+        }
+        return index;
+    }
+
+    /**
+     * Expands the codes in json written with this dictionary. This works on the json text, so it is cheap for json
+     * without any codes.
+     *
+     * @param json
+     *            json
+     * @return json with the original strings
+     */
+    public String decodeJson(String json) {
+        int idx = json.indexOf("\"" + MARKER);
+        if (idx < 0) {
+            return json;
+        }
+        StringBuilder buf = new StringBuilder(json.length() + 256);
+        int start = 0;
+        while (idx >= 0) {
+            // a quote followed by a marker inside a json string is escaped; a closing quote is never followed by one
+            if (!escaped(json, idx)) {
+                int valueStart = idx + 2;
+                if (valueStart < json.length() && json.charAt(valueStart) == MARKER) {
+                    // drop the extra marker
+                    buf.append(json, start, idx + 1);
+                    start = valueStart;
+                } else {
+                    int end = json.indexOf('"', valueStart);
+                    if (end < 0) {
+                        throw new IllegalArgumentException("unterminated string at " + idx);
+                    }
+                    buf.append(json, start, idx);
+                    buf.append(quoted.get(index(json, valueStart, end)));
+                    start = end + 1;
+                }
+            }
+            idx = json.indexOf("\"" + MARKER, Math.max(idx + 1, start));
+        }
+        buf.append(json, start, json.length());
+        return buf.toString();
+    }
+
+    private static boolean escaped(String json, int idx) {
+        int backslashes = 0;
+        while (idx - backslashes - 1 >= 0 && json.charAt(idx - backslashes - 1) == '\\') {
+            backslashes++;
+        }
+        return backslashes % 2 == 1;
+    }
+
+    /**
+     * Writes the strings in the order of their codes, as a json string per line.
+     */
+    public void write(File file) throws IOException {
+        try (BufferedWriter out = ResourceUtil.fileWriter(file)) {
+            for (int i = 0; i < size; i++) {
+                out.write(quoted.get(i));
+                out.write('\n');
+            }
+        }
+    }
+
+    /**
+     * @param directory
+     *            directory with the outputs of {@link OsmJoin}
+     * @return the dictionary that was used for the outputs or null if they were written without one
+     */
+    public static TagDictionary read(String directory) throws IOException {
+        File file = new File(directory, FILE);
+        if (!file.exists()) {
+            return null;
+        }
+        List<String> lines = new ArrayList<>();
+        try (BufferedReader in = ResourceUtil.fileReader(file)) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                lines.add(line);
+            }
+        }
+        TagDictionary dictionary = new TagDictionary(1, lines.size(), 1);
+        for (String line : lines) {
+            // json string escapes are a subset of the java ones
+            String s = StringEscapeUtils.unescapeJava(line.substring(1, line.length() - 1));
+            dictionary.strings.set(dictionary.size, s);
+            dictionary.quoted.set(dictionary.size, line);
+            dictionary.codes.put(s, MARKER + Integer.toString(dictionary.size, 36));
+            dictionary.size++;
+        }
+        return dictionary;
+    }
+}
@@ -0,0 +1,71 @@
+package com.github.jillesvangurp.common;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+import java.util.Random;
+
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+@Test
+public class FixedPointTest {
+
+    @DataProvider
+    public Object[][] numbers() {
+        return new Object[][] {
+                { "51.5121071", 515121071l },
+                { "-0.1130375", -1130375l },
+                { "13", 130000000l },
+                { "13.4", 134000000l },
+                { "-180.0", -1800000000l },
+                { "0.00000004", 0l },
+                { "0.00000005", 1l },
+                { "9.99999995", 100000000l },
+                { "1.123456749", 11234567l } };
+    }
+
+    @Test(dataProvider = "numbers")
+    public void shouldParse(String number, long fixed) {
+        String text = "lat=\"" + number + "\"";
+        assertThat(FixedPoint.parse(text, 5, 5 + number.length()), is(fixed));
+    }
+
+    @Test(expectedExceptions = NumberFormatException.class)
+    public void shouldRejectExponents() {
+        FixedPoint.parse("1e7", 0, 3);
+    }
+
+    @Test(expectedExceptions = NumberFormatException.class)
+    public void shouldRejectEmptyNumbers() {
+        FixedPoint.parse("-", 0, 1);
+    }
+
+    public void shouldFormatLikeDoubleToString() {
+        Random random = new Random(42);
+        for (int i = 0; i < 100000; i++) {
+            // longitudes and latitudes
+            long fixed = (long) ((random.nextDouble() - 0.5) * 3600000000l);
+            if (i % 3 == 0) {
+                // fewer decimals
+                fixed = fixed / 1000 * 1000;
+            }
+            double value = FixedPoint.toDouble(fixed);
+            if (Math.abs(value) >= 0.001) {
+                assertThat(FixedPoint.toString(fixed), is(Double.toString(value)));
+            }
+        }
+        assertThat(FixedPoint.toString(130000000l), is("13.0"));
+        assertThat(FixedPoint.toString(-1130375l), is("-0.1130375"));
+        assertThat(FixedPoint.toString(10005l), is("0.0010005"));
+        assertThat(FixedPoint.toString(0), is("0.0"));
+    }
+
+    public void shouldDecodeCoordinatesInJson() {
+        String json = "{\"id\":4,\"l\":[116000000,482000000],\"tags\":{\"l\":\"x\"},\"nodes\":[{\"id\":1,\"l\":[-1130375,515121071]},{\"id\":2,\"l\":[13.4,52.5]}]}";
+        assertThat(FixedPoint.decodeJson(json),
+                is("{\"id\":4,\"l\":[11.6,48.2],\"tags\":{\"l\":\"x\"},\"nodes\":[{\"id\":1,\"l\":[-0.1130375,51.5121071]},{\"id\":2,\"l\":[13.4,52.5]}]}"));
+        String plain = "{\"id\":1}";
+        assertThat(FixedPoint.decodeJson(plain), is(plain));
+    }
+}
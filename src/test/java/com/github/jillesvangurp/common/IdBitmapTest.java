@@ -0,0 +1,36 @@
+package com.github.jillesvangurp.common;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+import org.testng.annotations.Test;
+
+@Test
+public class IdBitmapTest {
+
+    public void shouldSetAndGetIds() {
+        IdBitmap bitmap = new IdBitmap();
+        long[] ids = new long[] { 0, 1, 63, 64, 262143, 262144, 2_500_000_000l, 12_000_000_000l };
+        for (long id : ids) {
+            assertThat(bitmap.set(id), is(true));
+        }
+        for (long id : ids) {
+            assertThat(bitmap.get(id), is(true));
+            assertThat(bitmap.set(id), is(false));
+        }
+        assertThat(bitmap.get(2), is(false));
+        assertThat(bitmap.get(11_999_999_999l), is(false));
+        assertThat(bitmap.cardinality(), is((long) ids.length));
+    }
+
+    public void shouldOnlyAllocatePagesThatAreUsed() {
+        IdBitmap bitmap = new IdBitmap();
+        bitmap.set(5_000_000_000l);
+        assertThat(bitmap.allocatedBytes(), is(32l * 1024));
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void shouldRejectNegativeIds() {
+        new IdBitmap().set(-1);
+    }
+}
@@ -0,0 +1,44 @@
+package com.github.jillesvangurp.common;
+
+import static com.github.jsonj.tools.JsonBuilder.array;
+import static com.github.jsonj.tools.JsonBuilder.field;
+import static com.github.jsonj.tools.JsonBuilder.object;
+import static com.github.jsonj.tools.JsonBuilder.primitive;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+import java.io.IOException;
+import java.io.StringWriter;
+
+import org.testng.annotations.Test;
+
+import com.github.jsonj.JsonObject;
+import com.github.jsonj.tools.JsonParser;
+
+@Test
+public class JsonStreamWriterTest {
+
+    private JsonObject sample() {
+        JsonObject tags = object(field("name", "Caf\u00e9 \"Foo\"\\\n\t\u0001"), field("amenity", "cafe"));
+        return object(field("id", primitive(42)), field("l", array(13.4, -52.5)), field("tags", tags), field("nodes", array()), field("empty", new JsonObject()), field("closed", primitive(true)));
+    }
+
+    public void shouldSerializeLikeToString() {
+        JsonObject json = sample();
+        assertThat(JsonStreamWriter.serialize(json), is(json.toString()));
+    }
+
+    public void shouldWriteLines() throws IOException {
+        JsonObject json = sample();
+        StringWriter sw = new StringWriter();
+        JsonStreamWriter writer = new JsonStreamWriter();
+        writer.writeLine(sw, json);
+        writer.writeLine(sw, json);
+        assertThat(sw.toString(), is(json + "\n" + json + "\n"));
+    }
+
+    public void shouldRoundTrip() {
+        JsonObject json = sample();
+        assertThat(new JsonParser().parse(JsonStreamWriter.serialize(json)).asObject(), is(json));
+    }
+}
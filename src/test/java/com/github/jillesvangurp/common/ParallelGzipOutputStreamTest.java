@@ -0,0 +1,121 @@
+package com.github.jillesvangurp.common;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+@Test
+public class ParallelGzipOutputStreamTest {
+    private File dir;
+
+    @BeforeMethod
+    public void before() throws IOException {
+        dir = File.createTempFile("pgzip", "");
+        dir.delete();
+        dir.mkdirs();
+    }
+
+    @AfterMethod
+    public void after() throws IOException {
+        FileUtils.deleteDirectory(dir);
+    }
+
+    private String lines(int count) {
+        StringBuilder buf = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            buf.append(i).append(";{\"name\":\"caf\u00e9 ").append(i).append("\"}\n");
+        }
+        return buf.toString();
+    }
+
+    private String write(String content, int blockSize) throws IOException {
+        String file = new File(dir, "out.gz").getAbsolutePath();
+        try (ParallelGzipOutputStream out = new ParallelGzipOutputStream(new FileOutputStream(file), file, blockSize)) {
+            byte[] bytes = content.getBytes(ResourceUtil.UTF8);
+            // odd sized writes so blocks get cut in the middle of writes
+            for (int i = 0; i < bytes.length; i += 777) {
+                out.write(bytes, i, Math.min(777, bytes.length - i));
+            }
+        }
+        return file;
+    }
+
+    public void shouldReadBackWithGzipInputStream() throws IOException {
+        String content = lines(20000);
+        String file = write(content, 4096);
+        try (InputStream in = new GZIPInputStream(new FileInputStream(file))) {
+            assertThat(IOUtils.toString(in, "UTF-8"), is(content));
+        }
+    }
+
+    public void shouldWriteIndexWithMembersOfCompleteLines() throws IOException {
+        String content = lines(20000);
+        String file = write(content, 4096);
+        GzipIndex index = GzipIndex.read(file);
+        List<GzipIndex.Member> members = index.members();
+        assertThat(members.size(), greaterThan(10));
+        assertThat(index.lines(), is(20000l));
+        byte[] compressed = FileUtils.readFileToByteArray(new File(file));
+        long size = 0;
+        for (int i = 0; i < members.size(); i++) {
+            GzipIndex.Member member = members.get(i);
+            int end = i + 1 < members.size() ? (int) members.get(i + 1).offset : compressed.length;
+            byte[] memberBytes = new byte[end - (int) member.offset];
+            System.arraycopy(compressed, (int) member.offset, memberBytes, 0, memberBytes.length);
+            byte[] decompressed = IOUtils.toByteArray(new GZIPInputStream(new ByteArrayInputStream(memberBytes)));
+            assertThat((long) decompressed.length, is(member.size));
+            assertThat(decompressed[decompressed.length - 1], is((byte) '\n'));
+            size += member.size;
+        }
+        assertThat(size, is((long) content.getBytes(ResourceUtil.UTF8).length));
+    }
+
+    public void shouldHandleLinesLongerThanTheBlockSize() throws IOException {
+        StringBuilder buf = new StringBuilder();
+        for (int i = 0; i < 10; i++) {
+            for (int j = 0; j < 10000; j++) {
+                buf.append('x');
+            }
+            buf.append('\n');
+        }
+        String file = write(buf.toString(), 100);
+        assertThat(GzipIndex.read(file).members().size(), is(10));
+        try (InputStream in = new GZIPInputStream(new FileInputStream(file))) {
+            assertThat(IOUtils.toString(in, "UTF-8"), is(buf.toString()));
+        }
+    }
+
+    public void shouldWriteValidGzipWhenEmpty() throws IOException {
+        File file = new File(dir, "empty.gz");
+        ResourceUtil.gzipFileWriter(file).close();
+        try (InputStream in = new GZIPInputStream(new FileInputStream(file))) {
+            assertThat(in.read(), is(-1));
+        }
+        assertThat(GzipIndex.read(file.getAbsolutePath()).members().size(), is(1));
+    }
+
+    public void shouldWriteThroughResourceUtil() throws IOException {
+        File file = new File(dir, "writer.gz");
+        String content = lines(1000);
+        try (BufferedWriter writer = ResourceUtil.gzipFileWriter(file)) {
+            writer.write(content);
+        }
+        assertThat(ResourceUtil.string(ResourceUtil.gzipFileReader(file)), is(content));
+    }
+}
@@ -0,0 +1,141 @@
+package com.github.jillesvangurp.common;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.jillesvangurp.iterables.LineIterable;
+
+@Test
+public class ParallelGzipReaderTest {
+    private File dir;
+
+    @BeforeMethod
+    public void before() throws IOException {
+        dir = File.createTempFile("pgzip", "");
+        dir.delete();
+        dir.mkdirs();
+    }
+
+    @AfterMethod
+    public void after() throws IOException {
+        FileUtils.deleteDirectory(dir);
+    }
+
+    private String lines(int count) {
+        StringBuilder buf = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            buf.append(i).append(";{\"name\":\"caf\u00e9 ").append(i).append("\"}\n");
+        }
+        return buf.toString();
+    }
+
+    private String write(String content, int blockSize) throws IOException {
+        String file = new File(dir, "out.gz").getAbsolutePath();
+        try (Writer out = new OutputStreamWriter(new ParallelGzipOutputStream(new FileOutputStream(file), file, blockSize), ResourceUtil.UTF8)) {
+            out.write(content);
+        }
+        return file;
+    }
+
+    public void shouldReadLinesInOrder() throws IOException {
+        String content = lines(50000);
+        String file = write(content, 4096);
+        StringBuilder buf = new StringBuilder();
+        try (LineIterable lines = ResourceUtil.gzipLineIterable(file)) {
+            for (String line : lines) {
+                buf.append(line).append('\n');
+            }
+        }
+        assertThat(buf.toString(), is(content));
+    }
+
+    public void shouldReadPartitions() throws IOException {
+        String content = lines(50000);
+        String file = write(content, 4096);
+        GzipIndex index = GzipIndex.read(file);
+        int[] starts = index.split(4);
+        assertThat(starts.length, is(4));
+        StringBuilder buf = new StringBuilder();
+        for (int i = 0; i < starts.length; i++) {
+            int last = i + 1 < starts.length ? starts[i + 1] : index.members().size();
+            try (Reader reader = new ParallelGzipReader(file, index, starts[i], last, 2)) {
+                String partition = IOUtils.toString(reader);
+                assertThat(partition.endsWith("\n"), is(true));
+                buf.append(partition);
+            }
+        }
+        assertThat(buf.toString(), is(content));
+    }
+
+    public void shouldBuildSameIndexByScanning() throws IOException {
+        String file = write(lines(50000), 4096);
+        GzipIndex written = GzipIndex.read(file);
+        GzipIndex scanned = GzipIndex.build(file);
+        assertThat(scanned.members().size(), is(written.members().size()));
+        for (int i = 0; i < scanned.members().size(); i++) {
+            assertThat(scanned.members().get(i).offset, is(written.members().get(i).offset));
+            assertThat(scanned.members().get(i).size, is(written.members().get(i).size));
+            assertThat(scanned.members().get(i).lines, is(written.members().get(i).lines));
+        }
+    }
+
+    public void shouldStopScanningAtAMemberThatIsTooBig() throws IOException {
+        String file = write(lines(50000), 4096);
+        assertThat(GzipIndex.build(file, 64 * 1024) != null, is(true));
+        assertThat(GzipIndex.build(file, 1000), nullValue());
+    }
+
+    public void shouldReadGzipFilesWithoutIndex() throws IOException {
+        String content = lines(1000);
+        File file = new File(dir, "plain.gz");
+        try (Writer out = new OutputStreamWriter(new GZIPOutputStream(new FileOutputStream(file)), ResourceUtil.UTF8)) {
+            out.write(content);
+        }
+        assertThat(ResourceUtil.string(ResourceUtil.gzipFileReader(file)), is(content));
+        // the index is built on first use
+        assertThat(GzipIndex.read(file.getAbsolutePath()).members().size(), is(1));
+        assertThat(GzipIndex.read(file.getAbsolutePath()).lines(), is(1000l));
+    }
+
+    public void shouldSplitIntoFewerPartitionsIfThereAreFewMembers() throws IOException {
+        String file = write(lines(100), 1024);
+        GzipIndex index = GzipIndex.read(file);
+        assertThat(index.members().size(), greaterThan(1));
+        assertThat(index.split(1000).length, is(index.members().size()));
+    }
+
+    public void shouldConcatenateFilesWithTheirIndexes() throws IOException {
+        String first = lines(1000);
+        String second = lines(2000);
+        File firstFile = new File(write(first, 4096));
+        File moved = new File(dir, "first.gz");
+        FileUtils.moveFile(firstFile, moved);
+        FileUtils.moveFile(GzipIndex.indexFile(firstFile.getPath()), GzipIndex.indexFile(moved.getPath()));
+        String secondFile = write(second, 4096);
+        String concatenated = new File(dir, "all.gz").getPath();
+        GzipIndex.concat(Arrays.asList(moved.getPath(), secondFile), concatenated);
+        assertThat(GzipIndex.read(concatenated).lines(), is(3000l));
+        assertThat(ResourceUtil.string(ResourceUtil.gzipFileReader(concatenated)), is(first + second));
+        // the offsets in the index should match the file
+        GzipIndex scanned = GzipIndex.build(concatenated);
+        assertThat(scanned.members().get(scanned.members().size() - 1).offset,
+                is(GzipIndex.read(concatenated).members().get(scanned.members().size() - 1).offset));
+    }
+}
@@ -0,0 +1,51 @@
+package com.github.jillesvangurp.common;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+
+import java.util.Arrays;
+
+import org.testng.annotations.Test;
+
+@Test
+public class RawJsonTest {
+
+    public void shouldExtractIds() {
+        assertThat(RawJson.id("{\"id\":123,\"l\":[1.0,1.0]}"), is(123l));
+        assertThat(RawJson.id("{\"l\":[1.0,1.0],\"id\":123}"), is(-1l));
+        assertThat(RawJson.id("{\"id\":\"x\"}"), is(-1l));
+    }
+
+    public void shouldFindTopLevelFieldsOnly() {
+        String json = "{\"id\":1,\"tags\":{\"ns\":\"a,\\\"b}\"},\"ns\":[1,2,3]}";
+        int[] field = RawJson.field(json, "ns");
+        assertThat(json.substring(field[1], field[2]), is("[1,2,3]"));
+        assertThat(RawJson.field(json, "foo"), nullValue());
+        assertThat(RawJson.field("{}", "foo"), nullValue());
+    }
+
+    public void shouldFindFieldsOfNestedObjects() {
+        String json = "{\"id\":1,\"l\":[1.0,2.0],\"tags\":{\"name\":\"x\",\"amenity\":\"cafe\"}}";
+        int[] tags = RawJson.field(json, "tags");
+        assertThat(RawJson.field(json, tags[1], "name") != null, is(true));
+        assertThat(RawJson.hasAnyField(json, tags[1], "shop", "amenity"), is(true));
+        assertThat(RawJson.hasAnyField(json, tags[1], "shop", "highway"), is(false));
+        // only fields of the object itself
+        assertThat(RawJson.hasAnyField(json, 0, "amenity"), is(false));
+    }
+
+    public void shouldSpliceFields() {
+        String json = "{\"id\":1,\"ns\":[1,2],\"tags\":{}}";
+        StringBuilder buf = new StringBuilder();
+        RawJson.appendOpen(buf, json, RawJson.field(json, "ns"));
+        RawJson.appendArrayField(buf, "nodes", Arrays.asList("{\"id\":1}", "{\"id\":2}"));
+        assertThat(buf.append('}').toString(), is("{\"id\":1,\"tags\":{},\"nodes\":[{\"id\":1},{\"id\":2}]}"));
+
+        buf = new StringBuilder();
+        String onlyField = "{\"ns\":[]}";
+        RawJson.appendOpen(buf, onlyField, RawJson.field(onlyField, "ns"));
+        RawJson.appendArrayField(buf, "nodes", Arrays.<String> asList());
+        assertThat(buf.append('}').toString(), is("{\"nodes\":[]}"));
+    }
+}
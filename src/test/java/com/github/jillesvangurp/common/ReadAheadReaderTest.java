@@ -0,0 +1,95 @@
+package com.github.jillesvangurp.common;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.io.IOUtils;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+@Test
+public class ReadAheadReaderTest {
+
+    private String text(int lines) {
+        StringBuilder buf = new StringBuilder();
+        for (int i = 0; i < lines; i++) {
+            buf.append(i).append(";{\"id\":").append(i).append("}\n");
+        }
+        return buf.toString();
+    }
+
+    @DataProvider
+    public Object[][] chunkSizes() {
+        return new Object[][] { { 1 }, { 7 }, { 4096 }, { 1000000 } };
+    }
+
+    @Test(dataProvider = "chunkSizes")
+    public void shouldReadEverything(int chunkChars) throws IOException {
+        String text = text(10000);
+        try (Reader reader = new ReadAheadReader(new StringReader(text), chunkChars)) {
+            assertThat(IOUtils.toString(reader), is(text));
+        }
+    }
+
+    public void shouldHandleEmptyInput() throws IOException {
+        try (Reader reader = new ReadAheadReader(new StringReader(""), 10)) {
+            assertThat(reader.read(), is(-1));
+            assertThat(reader.read(), is(-1));
+        }
+    }
+
+    public void shouldReadManyInterleaved() throws IOException {
+        String text = text(1000);
+        List<Reader> readers = new ArrayList<>();
+        List<StringBuilder> results = new ArrayList<>();
+        for (int i = 0; i < 300; i++) {
+            readers.add(new ReadAheadReader(new StringReader(text), 100));
+            results.add(new StringBuilder());
+        }
+        char[] buf = new char[33];
+        boolean done = false;
+        while (!done) {
+            done = true;
+            for (int i = 0; i < readers.size(); i++) {
+                int n = readers.get(i).read(buf);
+                if (n > 0) {
+                    results.get(i).append(buf, 0, n);
+                    done = false;
+                }
+            }
+        }
+        for (int i = 0; i < readers.size(); i++) {
+            readers.get(i).close();
+            assertThat(results.get(i).toString(), is(text));
+        }
+    }
+
+    public void shouldCloseWhileReadingAhead() throws IOException {
+        Reader reader = new ReadAheadReader(new StringReader(text(10000)), 10);
+        assertThat(reader.read(), is((int) '0'));
+        reader.close();
+    }
+
+    @Test(expectedExceptions = IOException.class)
+    public void shouldPassOnReadErrors() throws IOException {
+        Reader failing = new Reader() {
+            @Override
+            public int read(char[] cbuf, int off, int len) throws IOException {
+                throw new IOException("oops");
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        try (Reader reader = new ReadAheadReader(failing, 10)) {
+            reader.read();
+        }
+    }
+}
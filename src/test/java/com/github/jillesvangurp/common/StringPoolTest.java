@@ -0,0 +1,94 @@
+package com.github.jillesvangurp.common;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.testng.annotations.Test;
+
+@Test
+public class StringPoolTest {
+
+    public void shouldReturnTheSameInstanceForARange() {
+        StringPool pool = new StringPool(1024, 32);
+        String input = "<tag k=\"highway\" v=\"residential\"/><tag k=\"highway\" v=\"primary\"/>";
+        String first = pool.intern(input, 8, 15);
+        assertThat(first, is("highway"));
+        String second = pool.intern(input, input.lastIndexOf("highway"), input.lastIndexOf("highway") + 7);
+        assertThat(second, sameInstance(first));
+        assertThat(pool.intern(new StringBuilder("highway"), 0, 7), sameInstance(first));
+        assertThat(pool.hits(), is(2l));
+        assertThat(pool.misses(), is(1l));
+    }
+
+    public void shouldNotPoolLongStrings() {
+        StringPool pool = new StringPool(1024, 4);
+        String first = pool.intern(new String("highway"));
+        assertThat(pool.intern(new String("highway")), not(sameInstance(first)));
+        assertThat(pool.intern(new String("yes")), is("yes"));
+        assertThat(pool.hits(), is(0l));
+        assertThat(pool.stats(), containsString("2 too long to pool"));
+    }
+
+    public void shouldReplaceOnCollision() {
+        // a single slot
+        StringPool pool = new StringPool(1, 32);
+        String highway = pool.intern(new String("highway"));
+        pool.intern(new String("building"));
+        assertThat(pool.intern(new String("highway")), not(sameInstance(highway)));
+        assertThat(pool.intern(new String("highway")), is("highway"));
+        assertThat(pool.intern((String) null), nullValue());
+    }
+
+    public void shouldNotMixUpStringsWhenThreadsReplaceEachOthersSlots() throws Exception {
+        // far more strings than slots, so the threads keep replacing the strings the others just pooled
+        final StringPool pool = new StringPool(16, 32);
+        StringBuilder buf = new StringBuilder();
+        final int[] starts = new int[1000];
+        for (int i = 0; i < starts.length; i++) {
+            starts[i] = buf.length();
+            buf.append("value").append(i).append(' ');
+        }
+        final String input = buf.toString();
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicInteger wrong = new AtomicInteger();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            final int offset = t * 250;
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int n = 0; n < 10000; n++) {
+                            int i = (offset + n) % starts.length;
+                            int end = input.indexOf(' ', starts[i]);
+                            String s = pool.intern(input, starts[i], end);
+                            if (s.length() != end - starts[i] || !input.startsWith(s, starts[i])) {
+                                wrong.incrementAndGet();
+                            }
+                        }
+                    } catch (InterruptedException | RuntimeException e) {
+                        wrong.incrementAndGet();
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertThat(wrong.get(), is(0));
+        assertThat(pool.hits() + pool.misses(), is(40000l));
+    }
+}
@@ -0,0 +1,61 @@
+package com.github.jillesvangurp.common;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.startsWith;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+@Test
+public class ThreadsTest {
+
+    @AfterMethod
+    public void platformThreads() {
+        Threads.setVirtual(false);
+    }
+
+    public void shouldUseDaemonPlatformThreadsByDefault() throws Exception {
+        final AtomicReference<String> name = new AtomicReference<>();
+        Thread thread = Threads.ioThreadFactory("test-").newThread(new Runnable() {
+            @Override
+            public void run() {
+                name.set(Thread.currentThread().getName());
+            }
+        });
+        assertThat(thread.isDaemon(), is(true));
+        thread.start();
+        thread.join();
+        assertThat(name.get(), is("test-1"));
+    }
+
+    public void shouldOnlyUseVirtualThreadsIfSupported() throws Exception {
+        Threads.setVirtual(true);
+        assertThat(Threads.isVirtual(), is(Threads.virtualThreadsSupported()));
+        ExecutorService executor = Threads.ioExecutor("test-", 2);
+        try {
+            List<Future<String>> futures = new ArrayList<>();
+            for (int i = 0; i < 100; i++) {
+                futures.add(executor.submit(new Callable<String>() {
+                    @Override
+                    public String call() throws Exception {
+                        Thread.sleep(1);
+                        return Thread.currentThread().getName();
+                    }
+                }));
+            }
+            for (Future<String> future : futures) {
+                assertThat(future.get(), startsWith("test-"));
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
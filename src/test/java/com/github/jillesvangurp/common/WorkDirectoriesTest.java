@@ -0,0 +1,53 @@
+package com.github.jillesvangurp.common;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.commons.io.FileUtils;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+@Test
+public class WorkDirectoriesTest {
+    private File dir;
+
+    @BeforeMethod
+    public void before() throws IOException {
+        dir = File.createTempFile("work", "");
+        dir.delete();
+    }
+
+    @AfterMethod
+    public void after() throws IOException {
+        FileUtils.deleteDirectory(dir);
+    }
+
+    public void shouldParseAndCreateDirectories() {
+        WorkDirectories dirs = WorkDirectories.parse(dir + "/a, " + dir + "/b,");
+        assertThat(dirs.size(), is(2));
+        assertThat(new File(dir, "a").isDirectory(), is(true));
+        assertThat(new File(dir, "b").isDirectory(), is(true));
+    }
+
+    public void shouldNotOfferDirectoriesOnTheSameDevice() {
+        WorkDirectories dirs = new WorkDirectories(Arrays.asList(dir + "/a", dir + "/b"));
+        // files that don't exist yet are on the device of their parent directory
+        assertThat(dirs.avoiding(dir + "/a/input.gz").size(), is(0));
+        assertThat(dirs.avoiding().size(), is(2));
+    }
+
+    public void shouldPickDirectoryWithMostFreeSpace() {
+        WorkDirectories dirs = new WorkDirectories(Arrays.asList(dir + "/a"));
+        assertThat(WorkDirectories.mostFreeSpace(dirs.dirs()), is(new File(dir, "a")));
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void shouldNeedADirectory() {
+        WorkDirectories.parse(" , ");
+    }
+}
@@ -0,0 +1,308 @@
+package com.github.jillesvangurp.flow;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.jillesvangurp.iterables.Processor;
+
+@Test
+public class PipeTest {
+    private ExecutorService executor;
+
+    @BeforeMethod
+    public void before() {
+        executor = Executors.newFixedThreadPool(4);
+    }
+
+    @AfterMethod
+    public void after() {
+        executor.shutdown();
+    }
+
+    public void shouldMapFilterAndBatch() {
+        final List<List<Integer>> batches = new ArrayList<>();
+        Pipe.from(numbers(10)).filter(new Processor<Integer, Boolean>() {
+            @Override
+            public Boolean process(Integer i) {
+                return i % 2 == 0;
+            }
+        }).map(new Processor<Integer, Integer>() {
+            @Override
+            public Integer process(Integer i) {
+                return i * 10;
+            }
+        }).batch(3).drain(collect(batches));
+        assertThat(batches, is(Arrays.asList(Arrays.asList(20, 40, 60), Arrays.asList(80, 100))));
+    }
+
+    public void shouldAskForTheSizeOfEachBatch() {
+        final AtomicInteger size = new AtomicInteger();
+        List<List<Integer>> batches = new ArrayList<>();
+        Pipe.from(numbers(10)).batch(new Pipe.BatchSize() {
+            @Override
+            public int next() {
+                return size.incrementAndGet();
+            }
+        }).drain(collect(batches));
+        assertThat(batches, is(Arrays.asList(Arrays.asList(1), Arrays.asList(2, 3), Arrays.asList(4, 5, 6), Arrays.asList(7, 8, 9, 10))));
+    }
+
+    public void shouldKeepTheOrderInParallelMap() {
+        final List<Integer> results = new ArrayList<>();
+        Pipe.from(numbers(1000)).parallelMap(new Processor<Integer, Integer>() {
+            @Override
+            public Integer process(Integer i) {
+                if (i % 7 == 0) {
+                    sleep(1);
+                }
+                // drop some
+                return i % 10 == 0 ? null : i;
+            }
+        }, executor, 8).drain(collect(results));
+        assertThat(results.size(), is(900));
+        for (int i = 1; i < results.size(); i++) {
+            assertThat(results.get(i - 1) < results.get(i), is(true));
+        }
+    }
+
+    public void shouldNotReadAheadOfASlowSink() {
+        final AtomicInteger read = new AtomicInteger();
+        final AtomicInteger sunk = new AtomicInteger();
+        final AtomicInteger maxAhead = new AtomicInteger();
+        final Iterator<Integer> numbers = numbers(200).iterator();
+        Iterable<Integer> counting = new Iterable<Integer>() {
+            @Override
+            public Iterator<Integer> iterator() {
+                return new Iterator<Integer>() {
+                    @Override
+                    public boolean hasNext() {
+                        return numbers.hasNext();
+                    }
+
+                    @Override
+                    public Integer next() {
+                        int ahead = read.incrementAndGet() - sunk.get();
+                        if (ahead > maxAhead.get()) {
+                            maxAhead.set(ahead);
+                        }
+                        return numbers.next();
+                    }
+
+                    @Override
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+        };
+        Pipe.from(counting).parallelMap(new Processor<Integer, Integer>() {
+            @Override
+            public Integer process(Integer i) {
+                return i;
+            }
+        }, executor, 4).drain(new Processor<Integer, Void>() {
+            @Override
+            public Void process(Integer i) {
+                sleep(1);
+                sunk.incrementAndGet();
+                return null;
+            }
+        });
+        assertThat(sunk.get(), is(200));
+        // the items in the parallel map plus the one the sink is working on
+        assertThat(maxAhead.get(), lessThanOrEqualTo(5));
+    }
+
+    public void shouldFanOutToAllBranches() {
+        List<Pipe<Integer>> branches = Pipe.from(numbers(100)).fanOut(2);
+        final List<Integer> fast = Collections.synchronizedList(new ArrayList<Integer>());
+        final List<Integer> slow = Collections.synchronizedList(new ArrayList<Integer>());
+        Sink<Integer> first = branches.get(0).to(collect(fast));
+        Sink<Integer> second = branches.get(1).parallelMap(new Processor<Integer, Integer>() {
+            @Override
+            public Integer process(Integer i) {
+                sleep(1);
+                return i;
+            }
+        }, executor, 4).to(collect(slow));
+        first.await();
+        second.await();
+        assertThat(fast, is(numbers(100)));
+        assertThat(slow, is(numbers(100)));
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void shouldNotSubscribeABranchTwice() {
+        List<Pipe<Integer>> branches = Pipe.from(numbers(10)).fanOut(2);
+        branches.get(0).to(collect(new ArrayList<Integer>()));
+        branches.get(0).to(collect(new ArrayList<Integer>()));
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class, expectedExceptionsMessageRegExp = ".*boom.*")
+    public void shouldFailTheSinkWhenAParallelStageFails() {
+        Pipe.from(numbers(1000)).parallelMap(new Processor<Integer, Integer>() {
+            @Override
+            public Integer process(Integer i) {
+                if (i == 500) {
+                    throw new IllegalArgumentException("boom");
+                }
+                return i;
+            }
+        }, executor, 8).drain();
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class, expectedExceptionsMessageRegExp = ".*boom.*")
+    public void shouldFailTheSinkWhenTheSinkFails() {
+        Pipe.from(numbers(10)).drain(new Processor<Integer, Void>() {
+            @Override
+            public Void process(Integer i) {
+                throw new IllegalArgumentException("boom");
+            }
+        });
+    }
+
+    public void shouldStopReadingWhenCancelled() {
+        final AtomicInteger processed = new AtomicInteger();
+        final CountDownLatch started = new CountDownLatch(1);
+        Sink<Integer> sink = Pipe.from(numbers(100000)).parallelMap(new Processor<Integer, Integer>() {
+            @Override
+            public Integer process(Integer i) {
+                sleep(1);
+                return i;
+            }
+        }, executor, 4).to(new Processor<Integer, Void>() {
+            @Override
+            public Void process(Integer i) {
+                processed.incrementAndGet();
+                started.countDown();
+                return null;
+            }
+        });
+        try {
+            started.await();
+        } catch (InterruptedException e) {
+            throw new IllegalStateException(e);
+        }
+        sink.cancel();
+        try {
+            sink.await();
+            throw new AssertionError("should have failed");
+        } catch (IllegalStateException e) {
+            assertThat(e.getCause() instanceof CancellationException, is(true));
+        }
+        // an item may be halfway through the sink when it is cancelled
+        sleep(20);
+        int afterCancel = processed.get();
+        sleep(50);
+        assertThat(processed.get(), is(afterCancel));
+        assertThat(afterCancel < 100000, is(true));
+    }
+
+    public void shouldReadOnTheCallingThreadInParallelDrain() {
+        final Thread caller = Thread.currentThread();
+        final AtomicInteger otherThreadReads = new AtomicInteger();
+        final AtomicInteger processed = new AtomicInteger();
+        Pipe.from(numbers(1000)).filter(new Processor<Integer, Boolean>() {
+            @Override
+            public Boolean process(Integer i) {
+                if (Thread.currentThread() != caller) {
+                    otherThreadReads.incrementAndGet();
+                }
+                return true;
+            }
+        }).batch(10).parallelDrain(new Processor<List<Integer>, Void>() {
+            @Override
+            public Void process(List<Integer> block) {
+                processed.addAndGet(block.size());
+                return null;
+            }
+        }, executor, 8);
+        assertThat(otherThreadReads.get(), is(0));
+        assertThat(processed.get(), is(1000));
+    }
+
+    public void shouldNotWaitForASlowItemInParallelDrain() {
+        final AtomicInteger processedDuringSlowItem = new AtomicInteger();
+        final AtomicInteger slowItemDone = new AtomicInteger();
+        Pipe.from(numbers(200)).parallelDrain(new Processor<Integer, Void>() {
+            @Override
+            public Void process(Integer i) {
+                if (i == 1) {
+                    sleep(500);
+                    slowItemDone.set(1);
+                } else if (slowItemDone.get() == 0) {
+                    processedDuringSlowItem.incrementAndGet();
+                }
+                return null;
+            }
+        }, executor, 4);
+        // an ordered parallel map would stop after the first few items
+        assertThat(processedDuringSlowItem.get(), is(199));
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class, expectedExceptionsMessageRegExp = ".*boom.*")
+    public void shouldFailParallelDrainWhenAnItemFails() {
+        Pipe.from(numbers(1000)).parallelDrain(new Processor<Integer, Void>() {
+            @Override
+            public Void process(Integer i) {
+                if (i == 500) {
+                    throw new IllegalArgumentException("boom");
+                }
+                return null;
+            }
+        }, executor, 8);
+    }
+
+    public void shouldCompleteEmptyPipes() {
+        List<List<Integer>> batches = new ArrayList<>();
+        Pipe.from(new ArrayList<Integer>()).batch(10).parallelMap(Pipe.<Integer, Integer> perItem(new Processor<Integer, Integer>() {
+            @Override
+            public Integer process(Integer i) {
+                return i;
+            }
+        }), executor, 2).drain(collect(batches));
+        assertThat(batches.isEmpty(), is(true));
+    }
+
+    private static List<Integer> numbers(int count) {
+        List<Integer> numbers = new ArrayList<>();
+        for (int i = 1; i <= count; i++) {
+            numbers.add(i);
+        }
+        return numbers;
+    }
+
+    private static <T> Processor<T, Void> collect(final List<T> list) {
+        return new Processor<T, Void>() {
+            @Override
+            public Void process(T item) {
+                list.add(item);
+                return null;
+            }
+        };
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
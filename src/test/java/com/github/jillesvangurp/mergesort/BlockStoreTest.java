@@ -0,0 +1,167 @@
+package com.github.jillesvangurp.mergesort;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.FileUtils;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.github.jillesvangurp.common.ImmutableEntry;
+
+@Test
+public class BlockStoreTest {
+    private File dir;
+
+    @BeforeMethod
+    public void before() throws IOException {
+        dir = File.createTempFile("blockstore", "");
+        dir.delete();
+        dir.mkdirs();
+    }
+
+    @AfterMethod
+    public void after() throws IOException {
+        FileUtils.deleteDirectory(dir);
+    }
+
+    private List<Entry<String, String>> entries(int count) {
+        List<Entry<String, String>> entries = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            String key = "" + i;
+            entries.add(new ImmutableEntry<String, String>(key, "{\"id\":" + key + ",\"name\":\"caf\u00e9 " + key + "\"}"));
+        }
+        // keys are sorted as strings, like in the sorted files
+        Collections.sort(entries, new Comparator<Entry<String, String>>() {
+            @Override
+            public int compare(Entry<String, String> o1, Entry<String, String> o2) {
+                return o1.getKey().compareTo(o2.getKey());
+            }
+        });
+        return entries;
+    }
+
+    private String store() {
+        return new File(dir, "store").getPath();
+    }
+
+    public void shouldLookupAllKeys() throws IOException {
+        BlockStore.write(entries(10000), store(), 1024, 10000, 0.01);
+        BlockStore blockStore = BlockStore.open(store());
+        assertThat(blockStore.blocks(), greaterThan(10));
+        for (int i = 0; i < 10000; i++) {
+            assertThat(blockStore.get(i), is("{\"id\":" + i + ",\"name\":\"caf\u00e9 " + i + "\"}"));
+        }
+    }
+
+    public void shouldNotFindMissingKeys() throws IOException {
+        BlockStore.write(entries(1000), store(), 1024, 1000, 0);
+        BlockStore blockStore = BlockStore.open(store());
+        assertThat(blockStore.get(1000), nullValue());
+        assertThat(blockStore.get("00"), nullValue());
+        assertThat(blockStore.get(""), nullValue());
+        assertThat(blockStore.get("999a"), nullValue());
+        // a key that is a prefix of other keys
+        assertThat(blockStore.get("10"), is("{\"id\":10,\"name\":\"caf\u00e9 10\"}"));
+        assertThat(new File(store() + BlockStore.BLOOM_SUFFIX).exists(), is(false));
+    }
+
+    public void shouldMapBigFilesInSegments() throws IOException {
+        BlockStore.write(entries(10000), store(), 512, 10000, 0);
+        BlockStore blockStore = BlockStore.open(store(), 4096);
+        assertThat(blockStore.segments(), greaterThan(1));
+        for (int i = 0; i < 10000; i += 7) {
+            assertThat(blockStore.get(i), is("{\"id\":" + i + ",\"name\":\"caf\u00e9 " + i + "\"}"));
+        }
+    }
+
+    public void shouldKeepDuplicateKeysInOneBlock() throws IOException {
+        List<Entry<String, String>> entries = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            entries.add(new ImmutableEntry<String, String>("1", "first " + i));
+        }
+        entries.add(new ImmutableEntry<String, String>("2", "second"));
+        BlockStore.write(entries, store(), 16, 2, 0.01);
+        BlockStore blockStore = BlockStore.open(store());
+        assertThat(blockStore.blocks(), is(2));
+        assertThat(blockStore.get(1), is("first 0"));
+        assertThat(blockStore.get(2), is("second"));
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void shouldRejectUnsortedEntries() throws IOException {
+        List<Entry<String, String>> entries = new ArrayList<>();
+        entries.add(new ImmutableEntry<String, String>("2", "x"));
+        entries.add(new ImmutableEntry<String, String>("1", "y"));
+        BlockStore.write(entries, store(), 1024, 2, 0);
+    }
+
+    public void shouldBuildFromSortedFiles() throws IOException {
+        String first = new File(dir, "first.gz").getPath();
+        String second = new File(dir, "second.gz").getPath();
+        try (SortingWriter writer = new SortingWriter(new File(dir, "buckets1").getPath(), first, 100)) {
+            for (int i = 0; i < 500; i += 2) {
+                writer.put("" + i, "even " + i);
+            }
+        }
+        try (SortingWriter writer = new SortingWriter(new File(dir, "buckets2").getPath(), second, 100)) {
+            for (int i = 1; i < 500; i += 2) {
+                writer.put("" + i, "odd " + i);
+            }
+        }
+        BlockStore.build(Arrays.asList(first, second), store(), 256, 0.01);
+        BlockStore blockStore = BlockStore.open(store());
+        assertThat(blockStore.get(42), is("even 42"));
+        assertThat(blockStore.get(43), is("odd 43"));
+        assertThat(blockStore.get(500), nullValue());
+    }
+
+    public void shouldSupportConcurrentLookupsInTheSameSegments() throws Exception {
+        BlockStore.write(entries(5000), store(), 512, 5000, 0.01);
+        // several blocks per segment, so the threads read at different positions of the same mapped buffers
+        final BlockStore blockStore = BlockStore.open(store(), 4096);
+        assertThat(blockStore.segments(), greaterThan(1));
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicInteger wrong = new AtomicInteger();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        // all threads look up the keys in the same order, so they hit the same blocks at the same time
+                        for (int i = 0; i < 5000; i++) {
+                            if (!("{\"id\":" + i + ",\"name\":\"caf\u00e9 " + i + "\"}").equals(blockStore.get(i)) || blockStore.get("x" + i) != null) {
+                                wrong.incrementAndGet();
+                            }
+                        }
+                    } catch (InterruptedException | RuntimeException e) {
+                        wrong.incrementAndGet();
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertThat(wrong.get(), is(0));
+    }
+}
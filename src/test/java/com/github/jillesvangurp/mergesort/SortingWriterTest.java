@@ -8,6 +8,7 @@ import static org.hamcrest.Matchers.is;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.concurrent.CopyOnWriteArrayList;
@@ -132,6 +133,30 @@ public class SortingWriterTest {
         assertThat(count(LineIterable.openGzipFile(outputFile)),is(0l));
     }
 
+    public void shouldSpreadBucketsOverTempDirs() throws IOException {
+        String outputFile = new File(tempDir,"out.gz").getAbsolutePath();
+        ArrayList<String> written = new ArrayList<>();
+        try(SortingWriter sortingWriter = new SortingWriter(Arrays.asList(tempDir+"/work1", tempDir+"/work2", tempDir+"/work3"), outputFile, 10, Long.MAX_VALUE)) {
+            for(int i=0;i<=1000;i++) {
+                sortingWriter.put("" + i%97, "-" + i);
+                written.add(""+i%97+";-" + i);
+            }
+            assertThat(new File(tempDir, "work1").list().length > 0, is(true));
+            assertThat(new File(tempDir, "work3").list().length > 0, is(true));
+        }
+        Collections.sort(written);
+        ArrayList<String> read = readItems(outputFile);
+        Collections.sort(read);
+        assertThat(read, is(written));
+        assertThat(new File(tempDir, "work2").exists(), is(false));
+    }
+
+    public void shouldBoundReadAheadPerBucket() {
+        assertThat(SortingWriter.readAheadChars(256 * 1024 * 1024, 1), is(256 * 1024));
+        assertThat(SortingWriter.readAheadChars(256 * 1024 * 1024, 500), is(256 * 1024 * 1024 / 500 / 4));
+        assertThat(SortingWriter.readAheadChars(1024, 500), is(4096));
+    }
+
     @AfterMethod
     public void afterMethod() throws IOException {
         FileUtils.forceDelete(new File(tempDir));
@@ -5,6 +5,7 @@ import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.is;
 
 import java.util.Arrays;
+import java.util.Iterator;
 import java.util.List;
 
 import org.testng.annotations.BeforeMethod;
@@ -58,4 +59,16 @@ public class EntryJoiningIterableTest {
         assertThat(next.left.size(), is(1));
         assertThat(next.right.size(), is(1));
     }
+
+    public void shouldIncludeUnmatchedLeftEntriesInLeftJoin() {
+        EntryJoiningIterable leftJoin = new EntryJoiningIterable(left, right, true);
+        assertThat(count(leftJoin), is(5l));
+        leftJoin = new EntryJoiningIterable(left, right, true);
+        Iterator<JoinedEntries> iterator = leftJoin.iterator();
+        iterator.next();
+        iterator.next();
+        JoinedEntries drei = iterator.next();
+        assertThat(drei.left.size(), is(3));
+        assertThat(drei.right.size(), is(0));
+    }
 }
@@ -0,0 +1,39 @@
+package com.github.jillesvangurp.osm2geojson;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+import org.testng.annotations.Test;
+
+import com.github.jsonj.JsonObject;
+import com.github.jsonj.tools.JsonParser;
+
+@Test
+public class GeometrySimplifierTest {
+    private final JsonParser parser = new JsonParser();
+
+    public void shouldRemovePointsWithinTolerance() {
+        double[] line = new double[] { 0, 0, 1, 0.0001, 2, -0.0001, 3, 5, 4, 6 };
+        assertThat(GeometrySimplifier.simplify(line, 0.01, 2), is(new double[] { 0, 0, 2, -0.0001, 3, 5, 4, 6 }));
+        assertThat(GeometrySimplifier.simplify(line, 100, 2), is(new double[] { 0, 0, 4, 6 }));
+        // rings should not collapse
+        double[] ring = new double[] { 0, 0, 1, 0, 1, 1, 0, 1, 0, 0 };
+        assertThat(GeometrySimplifier.simplify(ring, 100, 4), is(ring));
+    }
+
+    public void shouldUseToleranceOfCategory() {
+        GeometrySimplifier simplifier = new GeometrySimplifier(RunConfig.fromArgs("--simplify.highway=0.01", "--coordinatePrecision=2"));
+        JsonObject street = parser.parse("{\"geometry\":{\"type\":\"LineString\",\"coordinates\":[[0.0,0.0],[1.0,0.0001],[2.0,0.0]]},\"categories\":{\"osm\":[\"street\",\"highway:primary\"]}}").asObject();
+        simplifier.apply(street);
+        assertThat(street.getObject("geometry").getArray("coordinates").size(), is(2));
+        JsonObject park = parser.parse("{\"geometry\":{\"type\":\"LineString\",\"coordinates\":[[0.0,0.0],[1.0,0.0001],[2.0,0.0]]},\"categories\":{\"osm\":[\"leisure:park\"]}}").asObject();
+        simplifier.apply(park);
+        assertThat(park.getObject("geometry").getArray("coordinates").size(), is(3));
+        assertThat(simplifier.removedVertices(), is(1l));
+
+        JsonObject poi = parser.parse("{\"geometry\":{\"type\":\"Point\",\"coordinates\":[13.456789,52.123456]},\"categories\":{\"osm\":[\"amenity:cafe\"]}}").asObject();
+        simplifier.apply(poi);
+        assertThat(poi.getObject("geometry").getArray("coordinates").get(0).asDouble(), is(13.46));
+        assertThat(poi.getObject("geometry").getArray("coordinates").get(1).asDouble(), is(52.12));
+    }
+}
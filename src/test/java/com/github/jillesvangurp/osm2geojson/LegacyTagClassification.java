@@ -0,0 +1,107 @@
+package com.github.jillesvangurp.osm2geojson;
+
+import static com.github.jsonj.tools.JsonBuilder.set;
+
+import java.util.Map.Entry;
+
+import com.github.jsonj.JsonElement;
+import com.github.jsonj.JsonObject;
+import com.github.jsonj.JsonSet;
+
+/**
+ * The hand coded classification that interpretTags used before {@link TagClassifier}, kept to check that the default
+ * rules are equivalent and to benchmark against.
+ */
+class LegacyTagClassification {
+
+    static JsonSet classify(JsonObject tags) {
+        JsonSet osmCategories = set();
+        for(Entry<String, JsonElement> entry: tags.entrySet()) {
+            String tagName = entry.getKey();
+            String value = entry.getValue().asString();
+            if(!tagName.startsWith("addr:") && !tagName.startsWith("name:")) {
+                switch (tagName) {
+                    case "highway":
+                        osmCategories.add("street");
+                    osmCategories.add(tagName +":"+value);
+                        break;
+                    case "leisure":
+                    osmCategories.add(tagName +":"+value);
+                        break;
+                    case "amenity":
+                    osmCategories.add(tagName +":"+value);
+                        break;
+                    case "natural":
+                    osmCategories.add(tagName +":"+value);
+                        break;
+                    case "historic":
+                    osmCategories.add(tagName +":"+value);
+                        break;
+                    case "cuisine":
+                    osmCategories.add(tagName +":"+value);
+                        break;
+                    case "tourism":
+                    osmCategories.add(tagName +":"+value);
+                        break;
+                    case "shop":
+                    osmCategories.add(tagName +":"+value);
+                        break;
+                    case "building":
+                    osmCategories.add(tagName +":"+value);
+                        break;
+                    case "admin-level":
+                    osmCategories.add(tagName +":"+value);
+                        break;
+
+                    default:
+                        break;
+                }
+            }
+        }
+
+        if(hasPair(tags, "building", "yes")) {
+            if(hasPair(tags,"amenity", "public_building")) {
+                osmCategories.add("public-building");
+            } else {
+                osmCategories.add("building");
+            }
+        }
+
+        if (hasPair(tags, "railway", "tram_stop")) {
+            osmCategories.add("tram-stop");
+        }
+
+        if (hasPair(tags, "railway", "station")) {
+            osmCategories.add("train-station");
+        }
+
+        if (hasPair(tags, "railway", "halt")) {
+            // may be some rail way crossings included
+            osmCategories.add("train-station");
+        }
+
+        if (hasPair(tags, "station", "light_rail")) {
+            osmCategories.add("light-rail-station");
+        }
+
+        if (hasPair(tags, "public_transport", "stop_position")) {
+            if (hasPair(tags, "light_rail", "yes")) {
+                osmCategories.add("light-rail-station");
+            } else if(hasPair(tags, "bus", "yes")) {
+                osmCategories.add("bus-stop");
+            } else if(hasPair(tags, "railway", "halt")) {
+                osmCategories.add("train-station");
+            }
+        }
+        return osmCategories;
+    }
+
+    static boolean hasPair(JsonObject object, String key, String value) {
+        String objectValue = object.getString(key);
+        if(objectValue != null) {
+            return value.equalsIgnoreCase(objectValue);
+        } else {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package com.github.jillesvangurp.osm2geojson;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.sameInstance;
+
+import org.testng.annotations.Test;
+
+import com.github.jsonj.JsonObject;
+import com.github.jsonj.tools.JsonParser;
+
+@Test
+public class MemberCacheTest {
+    private final JsonParser parser = new JsonParser();
+
+    public void shouldParseOnce() {
+        MemberCache cache = new MemberCache("test", parser, 1024 * 1024, 2);
+        JsonObject way = cache.get("{\"id\":42,\"ns\":[1,2]}");
+        assertThat(way.getLong("id"), is(42l));
+        assertThat(cache.get("{\"id\":42,\"ns\":[1,2]}"), sameInstance(way));
+        assertThat(cache.stats().hitCount(), is(1l));
+    }
+
+    public void shouldEvictWhenFull() {
+        MemberCache cache = new MemberCache("test", parser, 1000, 1);
+        JsonObject first = cache.get("{\"id\":1,\"l\":[1.0,1.0]}");
+        for (int i = 2; i < 100; i++) {
+            cache.get("{\"id\":" + i + ",\"l\":[1.0,1.0]}");
+        }
+        assertThat(cache.get("{\"id\":1,\"l\":[1.0,1.0]}"), not(sameInstance(first)));
+        assertThat(cache.stats().evictionCount() > 0, is(true));
+    }
+}
@@ -0,0 +1,67 @@
+package com.github.jillesvangurp.osm2geojson;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+
+import java.util.Random;
+
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+@Test
+public class NodeRefsTest {
+
+    @DataProvider
+    public Object[][] refs() {
+        return new Object[][] {
+                { new long[0] },
+                { new long[] { 1 } },
+                { new long[] { 25737250l, 25737251l, 25737249l, 25737250l } },
+                { new long[] { 12000000000l, 1, 12000000000l, 0 } },
+                { new long[] { Long.MAX_VALUE, 0, Long.MAX_VALUE } } };
+    }
+
+    @Test(dataProvider = "refs")
+    public void shouldEncodeAndDecode(long[] ids) {
+        String encoded = NodeRefs.encode(ids, ids.length);
+        NodeRefs.Iterator it = NodeRefs.iterator(encoded);
+        for (long id : ids) {
+            assertThat(it.hasNext(), is(true));
+            assertThat(it.next(), is(id));
+        }
+        assertThat(it.hasNext(), is(false));
+    }
+
+    public void shouldEncodeNearbyIdsCompactly() {
+        Random random = new Random(42);
+        long[] ids = new long[100];
+        ids[0] = 2500000000l;
+        for (int i = 1; i < ids.length; i++) {
+            ids[i] = ids[i - 1] + random.nextInt(200) - 50;
+        }
+        String encoded = NodeRefs.encode(ids, ids.length);
+        // vs 11 characters per id as a json array
+        assertThat(encoded.length(), lessThan(220));
+        NodeRefs.Iterator it = NodeRefs.iterator("\"ns\":\"" + encoded + "\"", 6, encoded.length() + 6);
+        for (long id : ids) {
+            assertThat(it.next(), is(id));
+        }
+        assertThat(it.hasNext(), is(false));
+    }
+
+    public void shouldOnlyEncodeCount() {
+        assertThat(NodeRefs.encode(new long[] { 1, 2, 3 }, 2), is(NodeRefs.encode(new long[] { 1, 2 }, 2)));
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void shouldRejectTruncatedRefs() {
+        String encoded = NodeRefs.encode(new long[] { 12000000000l }, 1);
+        NodeRefs.iterator(encoded.substring(0, encoded.length() - 1)).next();
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void shouldRejectInvalidCharacters() {
+        NodeRefs.iterator("[1,2]").next();
+    }
+}
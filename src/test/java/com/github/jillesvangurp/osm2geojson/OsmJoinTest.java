@@ -4,11 +4,15 @@ import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.is;
 import static org.testng.Assert.assertTrue;
 
+import java.util.Arrays;
+import java.util.Map.Entry;
 import java.util.regex.Matcher;
 
 import org.testng.annotations.DataProvider;
 import org.testng.annotations.Test;
 
+import com.github.jillesvangurp.common.ImmutableEntry;
+
 @Test
 public class OsmJoinTest {
 
@@ -30,4 +34,12 @@ public class OsmJoinTest {
         assertTrue(lonMatcher.find());
         assertThat(lonMatcher.group(1), is(""+longitude));
     }
+
+    public void shouldSpliceNodesInTheOrderOfTheRefs() {
+        String way = "{\"id\":100,\"tags\":{\"highway\":\"residential\"},\"ns\":\"" + NodeRefs.encode(new long[] { 2, 1, 3, 2 }, 4) + "\"}";
+        String spliced = OsmJoin.spliceWayNodes(way, Arrays.<Entry<String, String>> asList(new ImmutableEntry<String, String>("100", "{\"id\":1,\"l\":[1.0,2.0]}"),
+                new ImmutableEntry<String, String>("100", "{\"id\":2,\"l\":[3.0,4.0]}")));
+        assertThat(spliced, is("{\"id\":100,\"tags\":{\"highway\":\"residential\"},\"missingNodeRefs\":[3],"
+                + "\"nodes\":[{\"id\":2,\"l\":[3.0,4.0]},{\"id\":1,\"l\":[1.0,2.0]},{\"id\":2,\"l\":[3.0,4.0]}]}"));
+    }
 }
@@ -0,0 +1,27 @@
+package com.github.jillesvangurp.osm2geojson;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+@Test
+public class OsmPostProcessorTest {
+
+    @DataProvider
+    public Object[][] records() {
+        return new Object[][] {
+                { "{\"id\":1,\"l\":[13.4,52.5]}", false },
+                { "{\"id\":2,\"l\":[13.5,52.6],\"tags\":{\"name\":\"Cafe Foo\",\"amenity\":\"cafe\"}}", true },
+                { "{\"id\":3,\"l\":[13.5,52.6],\"tags\":{\"amenity\":\"cafe\"}}", false },
+                { "{\"id\":4,\"l\":[13.5,52.6],\"tags\":{\"name\":\"Some name\",\"note\":\"amenity\"}}", false },
+                { "{\"id\":100,\"tags\":{\"highway\":\"residential\",\"name\":\"Foostrasse\"},\"nodes\":[{\"id\":1,\"l\":[13.4,52.5]}]}", true },
+                { "{\"id\":102,\"nodes\":[{\"id\":10,\"l\":[10.0,10.0],\"tags\":{\"name\":\"x\",\"shop\":\"y\"}}]}", false } };
+    }
+
+    @Test(dataProvider = "records")
+    public void shouldOnlyParseCandidates(String json, boolean candidate) {
+        assertThat(OsmPostProcessor.isCandidate(json, TagClassifier.defaultRules()), is(candidate));
+    }
+}
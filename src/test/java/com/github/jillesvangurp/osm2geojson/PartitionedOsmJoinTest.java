@@ -0,0 +1,119 @@
+package com.github.jillesvangurp.osm2geojson;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.is;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorOutputStream;
+import org.apache.commons.io.FileUtils;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.github.jillesvangurp.common.FixedPoint;
+import com.github.jillesvangurp.common.ResourceUtil;
+import com.jillesvangurp.iterables.LineIterable;
+
+@Test
+public class PartitionedOsmJoinTest {
+    private File dir;
+
+    @BeforeMethod
+    public void before() throws IOException {
+        dir = File.createTempFile("partitioned", "");
+        dir.delete();
+        dir.mkdirs();
+    }
+
+    @AfterMethod
+    public void after() throws IOException {
+        FileUtils.deleteDirectory(dir);
+    }
+
+    private Map<String, String> read(String file) throws IOException {
+        Map<String, String> entries = new TreeMap<>();
+        try (LineIterable lines = ResourceUtil.gzipLineIterable(new File(dir, file))) {
+            for (String line : lines) {
+                int idx = line.indexOf(';');
+                // the coordinates are fixed point, see FixedPoint
+                entries.put(line.substring(0, idx), FixedPoint.decodeJson(line.substring(idx + 1)));
+            }
+        }
+        return entries;
+    }
+
+    private File writeOsm() throws IOException {
+        // with these max ids, nodes 1-5, way 100, and relation 1000 are in the first partition, the rest in the second
+        String osm = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<osm version=\"0.6\">\n"
+                + " <node id=\"1\" lat=\"52.5\" lon=\"13.4\"/>\n"
+                + " <node id=\"2\" lat=\"52.6\" lon=\"13.5\"/>\n"
+                + " <node id=\"7\" lat=\"52.7\" lon=\"13.6\"/>\n"
+                + " <node id=\"8\" lat=\"52.8\" lon=\"13.7\">\n  <tag k=\"name\" v=\"Bar\"/>\n </node>\n"
+                + " <way id=\"100\">\n  <nd ref=\"1\"/>\n  <nd ref=\"7\"/>\n  <tag k=\"highway\" v=\"residential\"/>\n </way>\n"
+                + " <way id=\"150\">\n  <nd ref=\"8\"/>\n  <nd ref=\"2\"/>\n </way>\n"
+                + " <relation id=\"1000\">\n  <member type=\"way\" ref=\"150\" role=\"\"/>\n  <member type=\"node\" ref=\"8\" role=\"label\"/>\n"
+                + "  <member type=\"relation\" ref=\"1500\" role=\"\"/>\n  <tag k=\"type\" v=\"route\"/>\n </relation>\n"
+                + " <relation id=\"1500\">\n  <member type=\"way\" ref=\"100\" role=\"\"/>\n  <tag k=\"type\" v=\"route\"/>\n </relation>\n"
+                + "</osm>\n";
+        File osmFile = new File(dir, "test.osm.bz2");
+        try (Writer out = new OutputStreamWriter(new BZip2CompressorOutputStream(new FileOutputStream(osmFile)), ResourceUtil.UTF8)) {
+            out.write(osm);
+        }
+        return osmFile;
+    }
+
+    public void shouldJoinAcrossPartitionsWithLocalWorkers() throws IOException {
+        File osmFile = writeOsm();
+        new PartitionedOsmJoin("--partitions=2", "--maxNodeId=10", "--maxWayId=200", "--maxRelationId=2000", "--directory=" + dir.getPath(),
+                osmFile.getPath()).run();
+
+        assertThat(read(OsmJoin.NODE_ID_NODEJSON_MAP).keySet().toString(), is("[1, 2, 7, 8]"));
+        Map<String, String> ways = read(OsmJoin.WAY_ID_COMPLETE_JSON);
+        assertThat(ways.size(), is(2));
+        assertThat(ways.get("100"), containsString("\"nodes\":[{\"id\":1,\"l\":[13.4,52.5]},{\"id\":7,\"l\":[13.6,52.7]}]"));
+        assertThat(ways.get("150"), containsString("\"nodes\":[{\"id\":8,\"l\":[13.7,52.8],\"tags\":{\"name\":\"Bar\"}},{\"id\":2,\"l\":[13.5,52.6]}]"));
+        Map<String, String> relations = read(OsmJoin.REL_ID_COMPLETE_JSON);
+        assertThat(relations.size(), is(2));
+        assertThat(relations.get("1000"), containsString("\"nodes\":[{\"id\":8"));
+        assertThat(relations.get("1000"), containsString("\"ways\":[{\"id\":150"));
+        // the child relation from the other partition is embedded with its way
+        assertThat(relations.get("1000"), containsString("\"relations\":[{\"id\":1500"));
+        assertThat(relations.get("1500"), containsString("\"ways\":[{\"id\":100"));
+        assertThat(new File(dir, "partitions").exists(), is(false));
+    }
+
+    public void shouldOnlyDeleteItsOwnFilesFromTheSharedDirectory() throws IOException {
+        File osmFile = writeOsm();
+        File shared = new File(dir, "shared");
+        File other = new File(shared, "other.txt");
+        FileUtils.write(other, "not ours");
+        File stale = new File(new File(shared, "part-1"), "stale.gz");
+        FileUtils.write(stale, "left over");
+
+        new PartitionedOsmJoin("--partitions=2", "--maxNodeId=10", "--maxWayId=200", "--maxRelationId=2000", "--directory=" + dir.getPath(),
+                "--sharedDirectory=" + shared.getPath(), osmFile.getPath()).run();
+
+        assertThat(read(OsmJoin.WAY_ID_COMPLETE_JSON).size(), is(2));
+        assertThat(FileUtils.readFileToString(other), is("not ours"));
+        assertThat(stale.exists(), is(false));
+        assertThat(new File(shared, "part-0").exists(), is(false));
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void shouldRejectARegion() {
+        new PartitionedOsmJoin("--partitions=2", "--directory=" + dir.getPath(), "planet.osm.bz2", "13,52,14,53");
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void shouldRejectPruningNodes() {
+        new PartitionedOsmJoin("--partitions=2", "--pruneNodes", "--directory=" + dir.getPath(), "planet.osm.bz2");
+    }
+}
@@ -0,0 +1,98 @@
+package com.github.jillesvangurp.osm2geojson;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.github.jillesvangurp.common.ResourceUtil;
+import com.github.jillesvangurp.mergesort.EntryWriter;
+import com.github.jillesvangurp.mergesort.SortingWriter;
+import com.github.jillesvangurp.osm2geojson.Partitioning.Kind;
+import com.jillesvangurp.iterables.LineIterable;
+
+@Test
+public class PartitioningTest {
+    private File dir;
+
+    @BeforeMethod
+    public void before() throws IOException {
+        dir = File.createTempFile("partitions", "");
+        dir.delete();
+        dir.mkdirs();
+    }
+
+    @AfterMethod
+    public void after() throws IOException {
+        FileUtils.deleteDirectory(dir);
+    }
+
+    private Partitioning partitioning(int partition) {
+        return new Partitioning(dir.getPath(), 3, partition, 299, 29, 2);
+    }
+
+    public void shouldSplitIdsInRanges() {
+        Partitioning partitioning = partitioning(0);
+        assertThat(partitioning.partition(Kind.NODE, 0), is(0));
+        assertThat(partitioning.partition(Kind.NODE, 99), is(0));
+        assertThat(partitioning.partition(Kind.NODE, 100), is(1));
+        assertThat(partitioning.partition(Kind.NODE, 299), is(2));
+        // ids beyond the max go to the last partition
+        assertThat(partitioning.partition(Kind.NODE, 1000000), is(2));
+        assertThat(partitioning.partition(Kind.WAY, 10), is(1));
+        assertThat(partitioning.partition(Kind.RELATION, 2), is(2));
+        assertThat(partitioning.owns(Kind.WAY, 5), is(true));
+        assertThat(partitioning.owns(Kind.WAY, 15), is(false));
+    }
+
+    private void write(Partitioning partitioning, String name, String... keys) throws IOException {
+        List<SortingWriter> writers = new ArrayList<>();
+        for (int target = 0; target < partitioning.partitions(); target++) {
+            String file = partitioning.exchangeFile(name, target);
+            writers.add(new SortingWriter(file + ".buckets", file, 2));
+        }
+        try (EntryWriter writer = partitioning.writer(name, Kind.NODE, writers)) {
+            for (String key : keys) {
+                writer.put(key, "from " + partitioning.partition());
+            }
+        }
+    }
+
+    private List<String> lines(String file) throws IOException {
+        List<String> lines = new ArrayList<>();
+        try (LineIterable iterable = ResourceUtil.gzipLineIterable(file)) {
+            for (String line : iterable) {
+                lines.add(line);
+            }
+        }
+        return lines;
+    }
+
+    public void shouldExchangeEntriesBetweenPartitions() throws IOException {
+        write(partitioning(0), "test.gz", "5", "150", "120", "250");
+        write(partitioning(1), "test.gz", "110", "1");
+        write(partitioning(2), "test.gz", "260", "101", "2");
+        String output = new File(dir, "merged.gz").getPath();
+        partitioning(1).gather("test.gz", output);
+        assertThat(lines(output), is(Arrays.asList("101;from 2", "110;from 1", "120;from 0", "150;from 0")));
+        // the exchange files for this partition are deleted after merging
+        assertThat(new File(partitioning(0).exchangeFile("test.gz", 1)).exists(), is(false));
+        assertThat(new File(partitioning(0).exchangeFile("test.gz", 2)).exists(), is(true));
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void shouldStopWaitingIfAPartitionFailed() throws IOException {
+        write(partitioning(0), "test.gz", "5");
+        partitioning(2).markFailed();
+        partitioning(0).gather("test.gz", new File(dir, "merged.gz").getPath());
+    }
+}
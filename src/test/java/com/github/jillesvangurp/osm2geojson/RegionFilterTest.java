@@ -0,0 +1,48 @@
+package com.github.jillesvangurp.osm2geojson;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+
+import org.testng.annotations.Test;
+
+@Test
+public class RegionFilterTest {
+
+    public void shouldFilterOnBoundingBox() {
+        RegionFilter berlin = BoundingBoxFilter.parse("13.08,52.33,13.76,52.68");
+        assertThat(berlin.contains(52.52, 13.40), is(true));
+        assertThat(berlin.contains(48.14, 11.58), is(false));
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void shouldRejectMalformedBoundingBox() {
+        BoundingBoxFilter.parse("13.08,52.33,13.76");
+    }
+
+    public void shouldFilterOnPolygonWithHole() throws IOException {
+        String poly = "square_with_hole\n"
+                + "1\n"
+                + "   0.0 0.0\n"
+                + "   10.0 0.0\n"
+                + "   10.0 10.0\n"
+                + "   0.0 10.0\n"
+                + "END\n"
+                + "!2\n"
+                + "   4.0 4.0\n"
+                + "   6.0 4.0\n"
+                + "   6.0 6.0\n"
+                + "   4.0 6.0\n"
+                + "END\n"
+                + "END\n";
+        PolygonFilter filter = PolygonFilter.parse(new BufferedReader(new StringReader(poly)));
+        assertThat(filter.contains(1, 1), is(true));
+        assertThat(filter.contains(9.5, 2), is(true));
+        assertThat(filter.contains(5, 5), is(false));
+        assertThat(filter.contains(11, 5), is(false));
+        assertThat(filter.contains(5, -1), is(false));
+    }
+}
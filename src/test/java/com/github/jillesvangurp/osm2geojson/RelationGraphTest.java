@@ -0,0 +1,45 @@
+package com.github.jillesvangurp.osm2geojson;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+import org.testng.annotations.Test;
+
+@Test
+public class RelationGraphTest {
+
+    public void shouldLookupChildrenAndParents() {
+        RelationGraph graph = new RelationGraph();
+        graph.addEdge(1, 3);
+        graph.addEdge(1, 2);
+        graph.addEdge(4, 2);
+        graph.build();
+        assertThat(graph.children(1), is(new long[] { 2, 3 }));
+        assertThat(graph.parents(2), is(new long[] { 1, 4 }));
+        assertThat(graph.children(2), is(new long[0]));
+        assertThat(graph.cycles(), is(0));
+    }
+
+    public void shouldLimitAncestorsToMaxDepth() {
+        RelationGraph graph = new RelationGraph();
+        graph.addEdge(1, 2);
+        graph.addEdge(2, 3);
+        graph.addEdge(3, 4);
+        graph.build();
+        assertThat(graph.ancestors(4, 1), is(new long[] { 3 }));
+        assertThat(graph.ancestors(4, 2), is(new long[] { 2, 3 }));
+        assertThat(graph.ancestors(4, 10), is(new long[] { 1, 2, 3 }));
+    }
+
+    public void shouldDetectAndSurviveCycles() {
+        RelationGraph graph = new RelationGraph();
+        graph.addEdge(1, 2);
+        graph.addEdge(2, 3);
+        graph.addEdge(3, 1);
+        graph.addEdge(5, 5);
+        graph.build();
+        assertThat(graph.cycles(), is(2));
+        assertThat(graph.ancestors(1, 100), is(new long[] { 2, 3 }));
+        assertThat(graph.ancestors(5, 100), is(new long[0]));
+    }
+}
@@ -0,0 +1,75 @@
+package com.github.jillesvangurp.osm2geojson;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+
+import java.util.List;
+
+import org.testng.annotations.Test;
+
+@Test
+public class RingAssemblerTest {
+
+    public void shouldJoinSegmentsInAnyOrderAndDirection() {
+        RingAssembler assembler = new RingAssembler();
+        // square 0,0 - 10,10 in three segments, the middle one reversed
+        assembler.add(new double[] { 10, 10, 0, 10, 0, 0 }, false);
+        assembler.add(new double[] { 0, 0, 10, 0 }, false);
+        assembler.add(new double[] { 10, 10, 10, 0 }, false);
+        // closed inner ring
+        assembler.add(new double[] { 2, 2, 2, 4, 4, 4, 4, 2, 2, 2 }, true);
+        List<List<double[]>> polygons = assembler.assemble();
+        assertThat(polygons.size(), is(1));
+        List<double[]> polygon = polygons.get(0);
+        assertThat(polygon.size(), is(2));
+        double[] outer = polygon.get(0);
+        assertThat(outer.length, is(10));
+        assertThat(outer[0] == outer[8] && outer[1] == outer[9], is(true));
+        assertThat(RingAssembler.signedArea(outer), greaterThan(0.0));
+        assertThat(RingAssembler.signedArea(polygon.get(1)), lessThan(0.0));
+        assertThat(assembler.unusedWays(), is(0));
+    }
+
+    public void shouldAssignInnerRingsToSmallestOuterRing() {
+        RingAssembler assembler = new RingAssembler();
+        assembler.add(new double[] { 0, 0, 100, 0, 100, 100, 0, 100, 0, 0 }, false);
+        assembler.add(new double[] { 10, 10, 20, 10, 20, 20, 10, 20, 10, 10 }, false);
+        assembler.add(new double[] { 50, 50, 60, 50, 60, 60, 50, 60, 50, 50 }, false);
+        assembler.add(new double[] { 12, 12, 14, 12, 14, 14, 12, 14, 12, 12 }, true);
+        assembler.add(new double[] { 200, 200, 210, 200, 210, 210, 200, 200 }, true);
+        List<List<double[]>> polygons = assembler.assemble();
+        assertThat(polygons.size(), is(3));
+        assertThat(polygons.get(0).size(), is(1));
+        assertThat(polygons.get(1).size(), is(2));
+        assertThat(polygons.get(2).size(), is(1));
+        assertThat(assembler.unassignedInnerRings(), is(1));
+    }
+
+    public void shouldCountWaysThatDontClose() {
+        RingAssembler assembler = new RingAssembler();
+        assembler.add(new double[] { 0, 0, 1, 0 }, false);
+        assembler.add(new double[] { 1, 0, 1, 1 }, false);
+        assertThat(assembler.assemble().size(), is(0));
+        assertThat(assembler.unusedWays(), is(2));
+    }
+
+    public void shouldHandleManySegments() {
+        RingAssembler assembler = new RingAssembler();
+        // a circle in 50000 two point segments, added in a scrambled order
+        int n = 50000;
+        double[][] segments = new double[n][];
+        for (int i = 0; i < n; i++) {
+            double a1 = 2 * Math.PI * i / n;
+            double a2 = 2 * Math.PI * ((i + 1) % n) / n;
+            segments[i] = new double[] { Math.cos(a1), Math.sin(a1), Math.cos(a2), Math.sin(a2) };
+        }
+        for (int i = 0; i < n; i++) {
+            assembler.add(segments[(int) ((i * 7919l) % n)], false);
+        }
+        List<List<double[]>> polygons = assembler.assemble();
+        assertThat(polygons.size(), is(1));
+        assertThat(polygons.get(0).get(0).length, is((n + 1) * 2));
+    }
+}
@@ -0,0 +1,147 @@
+package com.github.jillesvangurp.osm2geojson;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.hamcrest.Matchers.sameInstance;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+import org.testng.annotations.Test;
+
+import com.github.jillesvangurp.flow.Pipe;
+import com.github.jillesvangurp.osm2geojson.AutoTuner.Stage;
+import com.jillesvangurp.iterables.Processor;
+
+@Test
+public class RunConfigTest {
+
+    public void shouldParseArguments() {
+        RunConfig config = RunConfig.fromArgs("--threads=3", "planet.osm.bz2", "--pruneNodes", "--join.blockSize=42");
+        assertThat(config.threads(), is(3));
+        assertThat(config.blockSize(Stage.JOIN), is(42));
+        assertThat(config.getBoolean("pruneNodes", false), is(true));
+        assertThat(config.getPositional(), is(Arrays.asList("planet.osm.bz2")));
+        assertThat(config.bucketSize("foo.gz", 10), is(10));
+    }
+
+    public void shouldAcceptTheOldPruneNodesFlag() {
+        assertThat(RunConfig.fromArgs("--prune-nodes", "planet.osm.bz2").getBoolean("pruneNodes", false), is(true));
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void shouldRejectBadNumbers() {
+        RunConfig.fromArgs("--threads=many").threads();
+    }
+
+    public void shouldScaleWithCoresAndHeap() {
+        RunConfig small = new RunConfig(new Properties(), Collections.<String> emptyList(), new AutoTuner(1, 256l * 1024 * 1024));
+        RunConfig big = new RunConfig(new Properties(), Collections.<String> emptyList(), new AutoTuner(32, 32l * 1024 * 1024 * 1024));
+        assertThat(small.threads(), is(2));
+        assertThat(big.threads(), is(32));
+        assertThat(big.queueSize(Stage.SPLIT), greaterThanOrEqualTo(small.queueSize(Stage.SPLIT)));
+        assertThat(big.maxBucketBytes(6), is(big.maxBucketBytes(1) / 6));
+        // queued blocks should not use more than about 10% of a small heap
+        long queuedBytes = (long) small.queueSize(Stage.JOIN) * small.blockSize(Stage.JOIN) * 1000 * 2;
+        assertThat(queuedBytes, lessThanOrEqualTo(256l * 1024 * 1024 / 10));
+    }
+
+    public void shouldAdjustBlockSizeToRecordSize() {
+        AutoTuner tuner = new AutoTuner(4, 1024l * 1024 * 1024);
+        int before = tuner.blockSize(Stage.POSTPROCESS);
+        String big = new String(new char[10000]);
+        for (String s : tuner.measure(Stage.POSTPROCESS, Arrays.asList(big, big, big))) {
+            assertThat(s.length(), is(10000));
+        }
+        assertThat(tuner.blockSize(Stage.POSTPROCESS) < before, is(true));
+    }
+
+    public void shouldChangeTheBlockSizeWhileRunning() {
+        RunConfig config = new RunConfig(new Properties(), Collections.<String> emptyList(), new AutoTuner(4, 1024l * 1024 * 1024));
+        String small = new String(new char[100]);
+        String big = new String(new char[10000]);
+        List<String> records = new ArrayList<>();
+        records.addAll(Collections.nCopies(3000, small));
+        records.addAll(Collections.nCopies(3000, big));
+        final List<Integer> sizes = new ArrayList<>();
+        Pipe.from(config.tuner().measure(Stage.POSTPROCESS, records)).batch(config.blockSizes(Stage.POSTPROCESS)).drain(new Processor<List<String>, Void>() {
+            @Override
+            public Void process(List<String> block) {
+                sizes.add(block.size());
+                return null;
+            }
+        });
+        // the first block is sized for the expected record size, the next ones for the measured ones
+        assertThat(sizes.get(0), is(131));
+        assertThat(sizes.get(1), is(1310));
+        assertThat(sizes.get(sizes.size() - 2), lessThanOrEqualTo(26));
+    }
+
+    public void shouldCountBothSidesOfAJoinPerLeftRecord() {
+        AutoTuner tuner = new AutoTuner(4, 1024l * 1024 * 1024);
+        String record = new String(new char[1000]);
+        for (String s : tuner.measure(Stage.JOIN, Arrays.asList(record, record))) {
+            assertThat(s.length(), is(1000));
+        }
+        int leftOnly = tuner.blockSize(Stage.JOIN);
+        for (String s : tuner.measureChars(Stage.JOIN, Arrays.asList(record, record, record, record, record, record))) {
+            assertThat(s.length(), is(1000));
+        }
+        // four times the chars for the same number of joined records
+        assertThat(tuner.blockSize(Stage.JOIN), is(leftOnly / 4));
+    }
+
+    public void shouldShareThreadsAndMemory() {
+        RunConfig config = new RunConfig(new Properties(), Collections.<String> emptyList(), new AutoTuner(8, 4l * 1024 * 1024 * 1024));
+        RunConfig half = config.share(4, 0.5);
+        assertThat(half.threads(), is(4));
+        assertThat(half.maxBucketBytes(1), is(config.maxBucketBytes(1) / 2));
+        assertThat(half.memberCacheBytes(), is(config.memberCacheBytes() / 2));
+        assertThat(half.queueSize(Stage.JOIN), lessThanOrEqualTo(config.queueSize(Stage.JOIN)));
+        assertThat(half.queueSize(Stage.JOIN), greaterThanOrEqualTo(8));
+    }
+
+    public void shouldMeasureStagesSeparately() {
+        RunConfig config = new RunConfig(new Properties(), Collections.<String> emptyList(), new AutoTuner(8, 4l * 1024 * 1024 * 1024));
+        RunConfig ways = config.stage("ways").share(4, 0.5);
+        RunConfig relations = config.stage("relations").share(4, 0.5);
+        int before = relations.blockSize(Stage.JOIN);
+        String big = new String(new char[10000]);
+        for (String s : ways.tuner().measure(Stage.JOIN, Arrays.asList(big, big, big))) {
+            assertThat(s.length(), is(10000));
+        }
+        assertThat(ways.blockSize(Stage.JOIN) < before, is(true));
+        assertThat(relations.blockSize(Stage.JOIN), is(before));
+        assertThat(config.stage("ways").tuner(), sameInstance(ways.tuner()));
+    }
+
+    public void shouldStartNewStagesFromTheMeasurementsSoFar() {
+        RunConfig config = new RunConfig(new Properties(), Collections.<String> emptyList(), new AutoTuner(8, 4l * 1024 * 1024 * 1024));
+        RunConfig ways = config.stage("ways");
+        int before = ways.blockSize(Stage.JOIN);
+        String big = new String(new char[10000]);
+        for (String s : ways.tuner().measure(Stage.JOIN, Arrays.asList(big, big, big))) {
+            assertThat(s.length(), is(10000));
+        }
+        RunConfig relations = config.stage("relations");
+        assertThat(relations.blockSize(Stage.JOIN) < before, is(true));
+        assertThat(relations.blockSize(Stage.JOIN), is(ways.blockSize(Stage.JOIN)));
+        assertThat(config.blockSize(Stage.JOIN), is(ways.blockSize(Stage.JOIN)));
+    }
+
+    public void shouldShareOneExecutor() {
+        RunConfig config = new RunConfig(new Properties(), Collections.<String> emptyList(), new AutoTuner(8, 4l * 1024 * 1024 * 1024));
+        assertThat(config.stage("ways").share(4, 0.5).executor(), sameInstance(config.executor()));
+        assertThat(config.share(2, 0.25).executor(), sameInstance(config.executor()));
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void shouldRejectBadShares() {
+        new RunConfig().share(2, 1.5);
+    }
+}
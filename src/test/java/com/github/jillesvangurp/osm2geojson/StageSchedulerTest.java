@@ -0,0 +1,151 @@
+package com.github.jillesvangurp.osm2geojson;
+
+import static com.github.jillesvangurp.osm2geojson.StageScheduler.files;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.testng.annotations.Test;
+
+@Test
+public class StageSchedulerTest {
+
+    private static class RecordingCleanup implements StageScheduler.Cleanup {
+        final List<String> consumed = Collections.synchronizedList(new ArrayList<String>());
+
+        @Override
+        public void consumed(String file) {
+            consumed.add(file);
+        }
+    }
+
+    private static StageScheduler.Task log(final List<String> log, final String name) {
+        return new StageScheduler.Task() {
+            @Override
+            public void run(RunConfig config) {
+                log.add(name);
+            }
+        };
+    }
+
+    public void shouldRunStagesAfterTheirInputsAreWritten() {
+        List<String> log = Collections.synchronizedList(new ArrayList<String>());
+        RecordingCleanup cleanup = new RecordingCleanup();
+        StageScheduler scheduler = new StageScheduler(new RunConfig(), 2, cleanup);
+        scheduler.add("a", files("in"), files("a"), log(log, "a"));
+        scheduler.add("b", files("a"), files("b"), log(log, "b"));
+        scheduler.add("c", files("in"), files("c"), log(log, "c"));
+        scheduler.add("d", files("b", "c"), files("d"), log(log, "d"));
+        scheduler.run();
+        assertThat(log.size(), is(4));
+        assertThat(log.indexOf("a") < log.indexOf("b"), is(true));
+        assertThat(log.indexOf("b") < log.indexOf("d"), is(true));
+        assertThat(log.indexOf("c") < log.indexOf("d"), is(true));
+        // d is the last stage, nothing reads its output
+        assertThat(cleanup.consumed.contains("d"), is(false));
+        assertThat(cleanup.consumed.size(), is(4));
+        // a file is only cleaned up after its last reader is done
+        assertThat(cleanup.consumed.indexOf("in") >= 0, is(true));
+    }
+
+    public void shouldRunIndependentStagesConcurrently() throws InterruptedException {
+        final CountDownLatch bothStarted = new CountDownLatch(2);
+        final AtomicInteger overlapping = new AtomicInteger();
+        StageScheduler.Task task = new StageScheduler.Task() {
+            @Override
+            public void run(RunConfig config) throws InterruptedException {
+                bothStarted.countDown();
+                if (bothStarted.await(10, TimeUnit.SECONDS)) {
+                    overlapping.incrementAndGet();
+                }
+            }
+        };
+        StageScheduler scheduler = new StageScheduler(new RunConfig(), 2, new RecordingCleanup());
+        scheduler.add("a", files("in"), files("a"), task);
+        scheduler.add("b", files("in"), files("b"), task);
+        scheduler.run();
+        assertThat(overlapping.get(), is(2));
+    }
+
+    public void shouldShareTheBudget() {
+        final RunConfig config = RunConfig.fromArgs("--threads=8");
+        final List<Integer> threads = Collections.synchronizedList(new ArrayList<Integer>());
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        StageScheduler.Task task = new StageScheduler.Task() {
+            @Override
+            public void run(RunConfig stageConfig) throws InterruptedException {
+                int now = running.incrementAndGet();
+                synchronized (maxRunning) {
+                    maxRunning.set(Math.max(now, maxRunning.get()));
+                }
+                threads.add(stageConfig.threads());
+                assertThat(stageConfig.maxBucketBytes(1), lessThanOrEqualTo(config.maxBucketBytes(1) / now));
+                Thread.sleep(50);
+                running.decrementAndGet();
+            }
+        };
+        StageScheduler scheduler = new StageScheduler(config, 4, new RecordingCleanup());
+        for (int i = 0; i < 4; i++) {
+            scheduler.add("stage" + i, files("in"), files("out" + i), task);
+        }
+        scheduler.add("last", files("out0", "out1", "out2", "out3"), files("result"), task);
+        scheduler.run();
+        assertThat(maxRunning.get(), is(4));
+        assertThat(threads.subList(0, 4), is(Arrays.asList(2, 2, 2, 2)));
+        // the last stage runs on its own and gets everything
+        assertThat(threads.get(4), is(8));
+    }
+
+    public void shouldNotStartMoreThanMaxConcurrent() {
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        StageScheduler.Task task = new StageScheduler.Task() {
+            @Override
+            public void run(RunConfig config) throws InterruptedException {
+                int now = running.incrementAndGet();
+                synchronized (maxRunning) {
+                    maxRunning.set(Math.max(now, maxRunning.get()));
+                }
+                Thread.sleep(20);
+                running.decrementAndGet();
+            }
+        };
+        StageScheduler scheduler = new StageScheduler(new RunConfig(), 2, new RecordingCleanup());
+        for (int i = 0; i < 6; i++) {
+            scheduler.add("stage" + i, files("in"), files("out" + i), task);
+        }
+        scheduler.run();
+        assertThat(maxRunning.get(), is(2));
+    }
+
+    public void shouldStopStartingStagesAfterAFailure() {
+        List<String> log = Collections.synchronizedList(new ArrayList<String>());
+        RecordingCleanup cleanup = new RecordingCleanup();
+        StageScheduler scheduler = new StageScheduler(new RunConfig(), 1, cleanup);
+        scheduler.add("a", files("in"), files("a"), new StageScheduler.Task() {
+            @Override
+            public void run(RunConfig config) {
+                throw new IllegalStateException("oops");
+            }
+        });
+        scheduler.add("b", files("a"), files("b"), log(log, "b"));
+        try {
+            scheduler.run();
+            throw new AssertionError("should have failed");
+        } catch (IllegalStateException e) {
+            assertThat(e.getCause().getMessage(), is("oops"));
+        }
+        assertThat(log.isEmpty(), is(true));
+        // inputs of failed stages are kept
+        assertThat(cleanup.consumed.isEmpty(), is(true));
+    }
+}
@@ -0,0 +1,41 @@
+package com.github.jillesvangurp.osm2geojson;
+
+import java.util.List;
+import java.util.Random;
+
+import com.github.jsonj.JsonObject;
+import com.github.jsonj.JsonSet;
+
+/**
+ * Compares the rule based {@link TagClassifier} with the hand coded classification it replaced. Run the main method;
+ * this is not part of the test suite.
+ */
+public class TagClassifierBenchmark {
+
+    public static void main(String[] args) {
+        int count = args.length > 0 ? Integer.valueOf(args[0]) : 1000000;
+        Random random = new Random(42);
+        JsonObject[] tags = new JsonObject[count];
+        for (int i = 0; i < count; i++) {
+            tags[i] = TagClassifierTest.randomTags(random);
+        }
+        TagClassifier classifier = TagClassifier.defaultRules();
+        // a few rounds so the jit kicks in
+        for (int round = 0; round < 5; round++) {
+            long categories = 0;
+            long start = System.nanoTime();
+            for (JsonObject t : tags) {
+                JsonSet set = LegacyTagClassification.classify(t);
+                categories += set.size();
+            }
+            long legacy = System.nanoTime() - start;
+            start = System.nanoTime();
+            for (JsonObject t : tags) {
+                List<String> list = classifier.classify(t);
+                categories += list.size();
+            }
+            long rules = System.nanoTime() - start;
+            System.out.println(String.format("round %d: legacy %d ns/object, rules %d ns/object (%d categories)", round, legacy / count, rules / count, categories));
+        }
+    }
+}
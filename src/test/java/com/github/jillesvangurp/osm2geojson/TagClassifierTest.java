@@ -0,0 +1,76 @@
+package com.github.jillesvangurp.osm2geojson;
+
+import static com.github.jsonj.tools.JsonBuilder.field;
+import static com.github.jsonj.tools.JsonBuilder.object;
+import static com.github.jsonj.tools.JsonBuilder.set;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.apache.commons.io.FileUtils;
+import org.testng.annotations.Test;
+
+import com.github.jsonj.JsonObject;
+import com.github.jsonj.JsonSet;
+
+@Test
+public class TagClassifierTest {
+    private static final String[] KEYS = { "highway", "leisure", "amenity", "natural", "historic", "cuisine", "tourism", "shop", "building", "admin-level", "railway", "station",
+            "public_transport", "light_rail", "bus", "name", "name:de", "addr:street", "website", "surface", "oneway", "source", "note" };
+    private static final String[] VALUES = { "yes", "YES", "no", "public_building", "tram_stop", "station", "halt", "Halt", "light_rail", "stop_position", "residential", "cafe", "bar",
+            "park", "Some name" };
+
+    static JsonObject randomTags(Random random) {
+        JsonObject tags = new JsonObject();
+        int count = random.nextInt(8);
+        for (int i = 0; i < count; i++) {
+            tags.put(KEYS[random.nextInt(KEYS.length)], VALUES[random.nextInt(VALUES.length)]);
+        }
+        return tags;
+    }
+
+    public void shouldClassifyLikeLegacyCode() {
+        TagClassifier classifier = TagClassifier.defaultRules();
+        Random random = new Random(42);
+        for (int i = 0; i < 100000; i++) {
+            JsonObject tags = randomTags(random);
+            JsonSet categories = set();
+            for (String category : classifier.classify(tags)) {
+                categories.add(category);
+            }
+            assertThat(tags.toString(), categories.toString(), is(LegacyTagClassification.classify(tags).toString()));
+        }
+    }
+
+    public void shouldApplyConditions() throws IOException {
+        TagClassifier classifier = TagClassifier.fromReader(new BufferedReader(new StringReader("# comment\nshop=* : shop:*\nshop=bakery !organic=only : bakery\n")));
+        assertThat(classifier.classify(object(field("shop", "Bakery"))), is(Arrays.asList("shop:Bakery", "bakery")));
+        assertThat(classifier.classify(object(field("shop", "bakery"), field("organic", "only"))), is(Arrays.asList("shop:bakery")));
+        assertThat(classifier.keys(), is(new String[] { "shop" }));
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void shouldRejectBadRules() throws IOException {
+        TagClassifier.fromReader(new BufferedReader(new StringReader("shop bakery\n")));
+    }
+
+    public void shouldReload() throws IOException {
+        File file = File.createTempFile("rules", ".txt");
+        try {
+            FileUtils.writeStringToFile(file, "shop=* : shop\n");
+            TagClassifier classifier = TagClassifier.fromFile(file.getAbsolutePath());
+            assertThat(classifier.classify(object(field("amenity", "cafe"))).size(), is(0));
+            FileUtils.writeStringToFile(file, "amenity=* : amenity:*\n");
+            classifier.reload();
+            assertThat(classifier.classify(object(field("amenity", "cafe"))), is(Arrays.asList("amenity:cafe")));
+        } finally {
+            FileUtils.deleteQuietly(file);
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package com.github.jillesvangurp.osm2geojson;
+
+import static com.github.jsonj.tools.JsonBuilder.object;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.nullValue;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.commons.io.FileUtils;
+import org.testng.annotations.Test;
+
+import com.github.jillesvangurp.common.JsonStreamWriter;
+import com.github.jsonj.JsonObject;
+
+@Test
+public class TagDictionaryTest {
+
+    public void shouldAssignCodesToFrequentStrings() {
+        TagDictionary dictionary = new TagDictionary(2, 100, 100);
+        assertThat(dictionary.encode("highway"), is("highway"));
+        assertThat(dictionary.encode("highway"), is("~0"));
+        assertThat(dictionary.encode("highway"), is("~0"));
+        dictionary.encode("building");
+        assertThat(dictionary.encode("building"), is("~1"));
+        assertThat(dictionary.decode("~0"), is("highway"));
+        assertThat(dictionary.decode("~1"), is("building"));
+        assertThat(dictionary.decode("residential"), is("residential"));
+        assertThat(dictionary.size(), is(2));
+    }
+
+    public void shouldLookUpCodesWithoutCounting() {
+        TagDictionary dictionary = new TagDictionary(2, 100, 100);
+        assertThat(dictionary.encoded("highway"), is("highway"));
+        assertThat(dictionary.encoded("highway"), is("highway"));
+        dictionary.encode("highway");
+        assertThat(dictionary.encoded("highway"), is("highway"));
+        dictionary.encode("highway");
+        assertThat(dictionary.encoded("highway"), is("~0"));
+        assertThat(dictionary.encoded("~approx"), is("~~approx"));
+    }
+
+    public void shouldNotCodeShortStrings() {
+        TagDictionary dictionary = new TagDictionary(1, 100, 100);
+        assertThat(dictionary.encode("no"), is("no"));
+        assertThat(dictionary.encode("yes"), is("~0"));
+        for (int i = 1; i < 36; i++) {
+            dictionary.encode("value" + i);
+        }
+        // codes take three characters from here on
+        assertThat(dictionary.encode("abc"), is("abc"));
+        assertThat(dictionary.encode("abcd"), is("~10"));
+    }
+
+    public void shouldEscapeStringsStartingWithTheMarker() {
+        TagDictionary dictionary = new TagDictionary(1000, 100, 100);
+        for (String s : new String[] { "~", "~~", "~0", "~approx", "a~b", "" }) {
+            String encoded = dictionary.encode(s);
+            assertThat(encoded, is(s.startsWith("~") ? "~" + s : s));
+            assertThat(dictionary.decode(encoded), is(s));
+        }
+    }
+
+    public void shouldStopAssigningAtMaxSize() {
+        TagDictionary dictionary = new TagDictionary(1, 2, 100);
+        assertThat(dictionary.encode("highway"), is("~0"));
+        assertThat(dictionary.encode("building"), is("~1"));
+        assertThat(dictionary.encode("amenity"), is("amenity"));
+        assertThat(dictionary.size(), is(2));
+    }
+
+    public void shouldKeepFrequentCandidatesWhenPruning() {
+        TagDictionary dictionary = new TagDictionary(5, 10, 3);
+        for (int i = 0; i < 20; i++) {
+            dictionary.encode("highway");
+            dictionary.encode("name" + i);
+        }
+        assertThat(dictionary.encode("highway"), is("~0"));
+        assertThat(dictionary.size(), is(1));
+    }
+
+    public void shouldDecodeJson() {
+        TagDictionary dictionary = new TagDictionary(1, 100, 100);
+        JsonObject original = object().put("id", 1).put("tags",
+                object().put("highway", "residential").put("name", "say \"~hi\" \\").put("note", "~0").put("quote", "a \"b\"").get()).get();
+        JsonObject encoded = object().put("id", 1).put("tags", object().put(dictionary.encode("highway"), dictionary.encode("residential"))
+                .put(dictionary.encode("name"), "say \"~hi\" \\").put(dictionary.encode("note"), dictionary.encode("~0"))
+                .put(dictionary.encode("quote"), dictionary.encode("a \"b\"")).get()).get();
+        String json = JsonStreamWriter.serialize(encoded);
+        assertThat(json, not(is(JsonStreamWriter.serialize(original))));
+        assertThat(dictionary.decodeJson(json), is(JsonStreamWriter.serialize(original)));
+    }
+
+    public void shouldLeaveJsonWithoutCodesAlone() {
+        TagDictionary dictionary = new TagDictionary(1, 100, 100);
+        String json = "{\"id\":1,\"tags\":{\"name\":\"x\"}}";
+        assertThat(dictionary.decodeJson(json), is(json));
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void shouldRejectUnknownCodes() {
+        new TagDictionary(1, 100, 100).decodeJson("{\"tags\":{\"~5\":\"x\"}}");
+    }
+
+    public void shouldWriteAndRead() throws IOException {
+        File dir = File.createTempFile("dictionary", "");
+        dir.delete();
+        dir.mkdirs();
+        try {
+            assertThat(TagDictionary.read(dir.getPath()), nullValue());
+            TagDictionary dictionary = new TagDictionary(1, 100, 100);
+            String json = "{\"" + dictionary.encode("highway") + "\":\"" + dictionary.encode("line\nbreak \u00e9") + "\"}";
+            dictionary.write(new File(dir, TagDictionary.FILE));
+            TagDictionary read = TagDictionary.read(dir.getPath());
+            assertThat(read.size(), is(2));
+            assertThat(read.decode("~1"), is("line\nbreak \u00e9"));
+            assertThat(read.decodeJson(json), is(dictionary.decodeJson(json)));
+            assertThat(read.encoded("highway"), is("~0"));
+        } finally {
+            FileUtils.deleteDirectory(dir);
+        }
+    }
+}